@@ -0,0 +1,68 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * A significant finding annotated with its q-value and local FDR under the fitted BUM model, written as the text line
+ * id, p, q, lfdr separated by tabs.
+ *
+ * @author Will Findley
+ */
+public class AnnotatedPValue implements Writable {
+
+	private long id = 0;		// the hypothesis label
+	private double pValue = 0;	// the p-value of the hypothesis
+	private double qValue = 0;	// the false discovery rate of calling everything up to this p-value significant
+	private double localFdr = 0;	// the probability that this hypothesis itself is a null
+
+	public void set(long id, double pValue, double qValue, double localFdr) {
+
+		this.id = id;
+		this.pValue = pValue;
+		this.qValue = qValue;
+		this.localFdr = localFdr;
+	}
+
+	public long getId() {
+
+		return this.id;
+	}
+
+	public double getPValue() {
+
+		return this.pValue;
+	}
+
+	public double getQValue() {
+
+		return this.qValue;
+	}
+
+	public double getLocalFdr() {
+
+		return this.localFdr;
+	}
+
+	public void readFields(DataInput in) throws IOException {
+
+		this.id = in.readLong();
+		this.pValue = in.readDouble();
+		this.qValue = in.readDouble();
+		this.localFdr = in.readDouble();
+	}
+
+	public void write(DataOutput out) throws IOException {
+
+		out.writeLong(this.id);
+		out.writeDouble(this.pValue);
+		out.writeDouble(this.qValue);
+		out.writeDouble(this.localFdr);
+	}
+
+	public String toString() {
+
+		return this.id + "\t" + this.pValue + "\t" + this.qValue + "\t" + this.localFdr;
+	}
+}
@@ -0,0 +1,245 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+/**
+ * Percentile confidence intervals for pi0, alpha, beta and the p-value cutoff from one pass over the input, by the
+ * Poisson bootstrap: instead of resampling the p-values B times, every p-value is counted into each of B replicate
+ * histograms a Poisson(1) number of times, which for large inputs is the same as drawing each replicate with
+ * replacement.  The replicates are merged like the sketch mode histogram itself, keyed REPLICATE_KEY_PREFIX and their
+ * number, and the fitting reducer fits each weighted ECDF, starting from the point estimate, on its container's vcores.
+ *
+ * The bootstrap-r-00000 file next to the coefficients holds one line per quantity: its name, the point estimate, and
+ * the lower and upper bounds of the CONFIDENCE interval, tab separated.  The cutoff is that of Q_VALUE_CUTOFF.
+ *
+ * @author Will Findley
+ */
+public class BootstrapIntervals {
+
+	// job configuration key for the number of bootstrap replicates, 0 (the default) for no intervals
+	public static final String REPLICATES = "bootstrapReplicates";
+	// job configuration key for the coverage of the intervals
+	public static final String CONFIDENCE = "bootstrapConfidence";
+	public static final double DEFAULT_CONFIDENCE = 0.95;
+	// job configuration key for the q-value cutoff whose p-value cutoff gets an interval
+	public static final String Q_VALUE_CUTOFF = "bootstrapQValueCutoff";
+	public static final double DEFAULT_Q_VALUE_CUTOFF = 0.05;
+	// job configuration key for the seed of the Poisson weights, mixed with each map task's number
+	public static final String SEED = "bootstrapSeed";
+	// the named output of the intervals, and so the prefix of its file
+	public static final String BOOTSTRAP_OUTPUT = "bootstrap";
+	// the key of every replicate histogram is this followed by its number; it sorts after the point estimate's key
+	public static final String REPLICATE_KEY_PREFIX = "bootstrap#";
+
+	// the cumulative Poisson(1) probabilities of 0 to 16 as 53 bit integers; the chance of more than 16 is about 1e-15
+	private static final long[] POISSON_THRESHOLDS = new long[17];
+	static {
+		double probability = Math.exp(-1);
+		double cumulative = 0;
+		for (int k = 0; k < POISSON_THRESHOLDS.length; k++) {
+			cumulative += probability;
+			probability /= k + 1;
+			POISSON_THRESHOLDS[k] = (long) (cumulative * (1L << 53));
+		}
+		// every 53 bit uniform is below the last
+		POISSON_THRESHOLDS[POISSON_THRESHOLDS.length - 1] = 1L << 53;
+	}
+
+	private BootstrapIntervals() {
+	}
+
+	public static int numReplicates(Configuration conf) {
+
+		return conf.getInt(REPLICATES, 0);
+	}
+
+	public static void addBootstrapOutput(Job job) {
+
+		MultipleOutputs.addNamedOutput(job, BOOTSTRAP_OUTPUT, TextOutputFormat.class, Text.class, Text.class);
+	}
+
+	/**
+	 * The replicate histograms of one map task, each p-value's bin counted into every replicate a Poisson(1) number of
+	 * times.  The weights come from an inline xorshift generator, since a draw per p-value per replicate is most of the
+	 * work and the atomic seed update of java.util.Random would dominate it.
+	 */
+	public static class Resampler {
+
+		private final PValueHistogram[] replicates;
+		private final Text key = new Text();
+		private long state;
+
+		public Resampler(int numReplicates, int numBins, long seed) {
+
+			replicates = new PValueHistogram[numReplicates];
+			for (int i = 0; i < numReplicates; i++) {
+				replicates[i] = new PValueHistogram(numBins);
+			}
+			// xorshift must not start from 0, and nearby seeds should not give nearby streams
+			state = (seed * 0x9E3779B97F4A7C15L) | 1;
+		}
+
+		public static Resampler create(TaskInputOutputContext<?, ?, ?, ?> context) {
+
+			Configuration conf = context.getConfiguration();
+			int numReplicates = numReplicates(conf);
+			if (numReplicates <= 0) return null;
+			long seed = conf.getLong(SEED, 0) * 31 + context.getTaskAttemptID().getTaskID().getId();
+			return new Resampler(numReplicates, conf.getInt(PValueHistogram.NUM_BINS, PValueHistogram.DEFAULT_NUM_BINS), seed);
+		}
+
+		/**
+		 * Counts a p-value already binned by the point estimate's histogram into every replicate.
+		 */
+		public void add(int bin) {
+
+			for (PValueHistogram replicate : replicates) {
+				int weight = nextPoisson();
+				if (weight > 0) replicate.addCount(bin, weight);
+			}
+		}
+
+		public void write(TaskInputOutputContext<?, ?, Text, PValueHistogram> context) throws IOException, InterruptedException {
+
+			for (int i = 0; i < replicates.length; i++) {
+				if (replicates[i].getTotal() == 0) continue;
+				key.set(REPLICATE_KEY_PREFIX + i);
+				context.write(key, replicates[i]);
+			}
+		}
+
+		private int nextPoisson() {
+
+			state ^= state << 13;
+			state ^= state >>> 7;
+			state ^= state << 17;
+			long uniform = state >>> 11;
+			int k = 0;
+			while (uniform >= POISSON_THRESHOLDS[k]) k++;
+			return k;
+		}
+	}
+
+	/**
+	 * Fits the replicates a fitting reducer is given, in parallel, and writes the intervals when it finishes.
+	 */
+	public static class Fitter {
+
+		private final Configuration conf;
+		private final ForkJoinPool pool;
+		private final List<ForkJoinTask<TimedFit>> fits = new ArrayList<ForkJoinTask<TimedFit>>();
+		private final MultipleOutputs<Text, ?> outputs;
+		private double[] pointEstimate;
+
+		public <VALUEOUT> Fitter(TaskInputOutputContext<?, ?, Text, VALUEOUT> context) {
+
+			this.conf = context.getConfiguration();
+			this.pool = new ForkJoinPool(Math.max(1, conf.getInt(MultiStartBumFitter.NUM_THREADS, MultiStartBumFitter.taskCores(conf))));
+			this.outputs = new MultipleOutputs<Text, VALUEOUT>(context);
+		}
+
+		public static boolean isReplicate(Text key) {
+
+			return key.toString().startsWith(REPLICATE_KEY_PREFIX);
+		}
+
+		/**
+		 * @param coeffs the point estimate's pi0, alpha and beta, which every replicate fit starts from
+		 */
+		public void setPointEstimate(double[] coeffs) {
+
+			pointEstimate = coeffs.clone();
+		}
+
+		/**
+		 * Starts the fit of a replicate's merged histogram, which may be reused as soon as this returns.
+		 */
+		public void submit(PValueHistogram replicate) {
+
+			final EmpiricalCdf ecdf = replicate.toEmpiricalCdf();
+			final double[] start = (pointEstimate != null) ? pointEstimate.clone() : null;
+			fits.add(pool.submit(new Callable<TimedFit>() {
+				public TimedFit call() {
+					// fitters are not thread safe, so each fit has its own
+					BumFitter fitter = BumFitters.create(conf, BumFitters.LEVENBERG_MARQUARDT_OPTIMIZER);
+					long begin = System.nanoTime();
+					BumFit fit = fitter.fit(ecdf, (start != null) ? start : fitter.startingCoefficients(ecdf));
+					return new TimedFit(fit, System.nanoTime() - begin);
+				}
+			}));
+		}
+
+		/**
+		 * Waits for every replicate fit, records them, and writes the intervals around the point estimate.
+		 */
+		public void close(FitTelemetry telemetry) throws IOException, InterruptedException {
+
+			try {
+				if (pointEstimate == null || fits.isEmpty()) return;
+
+				double qValueCutoff = conf.getDouble(Q_VALUE_CUTOFF, DEFAULT_Q_VALUE_CUTOFF);
+				int n = fits.size();
+				double[][] samples = new double[4][n];
+				for (int i = 0; i < n; i++) {
+					TimedFit timed = fits.get(i).join();
+					telemetry.record(timed.fit, timed.wallNanos);
+					double[] coeffs = timed.fit.getCoeffs();
+					samples[0][i] = coeffs[0];
+					samples[1][i] = coeffs[1];
+					samples[2][i] = coeffs[2];
+					samples[3][i] = MapReduceSignificantFindings.CheckSignificanceMapper.computeSignificancePValueCutoff(
+							coeffs[0], coeffs[1], coeffs[2], qValueCutoff);
+				}
+
+				double confidence = conf.getDouble(CONFIDENCE, DEFAULT_CONFIDENCE);
+				double[] point = {pointEstimate[0], pointEstimate[1], pointEstimate[2],
+						MapReduceSignificantFindings.CheckSignificanceMapper.computeSignificancePValueCutoff(
+								pointEstimate[0], pointEstimate[1], pointEstimate[2], qValueCutoff)};
+				String[] names = {"pi0", "alpha", "beta", "pValueCutoff(q=" + qValueCutoff + ")"};
+				for (int j = 0; j < names.length; j++) {
+					Arrays.sort(samples[j]);
+					double lower = percentile(samples[j], (1 - confidence) / 2);
+					double upper = percentile(samples[j], (1 + confidence) / 2);
+					outputs.write(BOOTSTRAP_OUTPUT, new Text(names[j]), new Text(point[j] + "\t" + lower + "\t" + upper));
+				}
+			} finally {
+				pool.shutdown();
+				outputs.close();
+			}
+		}
+
+		/**
+		 * @return the linearly interpolated quantile of the sorted values
+		 */
+		static double percentile(double[] sorted, double quantile) {
+
+			double position = quantile * (sorted.length - 1);
+			int below = (int) Math.floor(position);
+			int above = Math.min(sorted.length - 1, below + 1);
+			return sorted[below] + (position - below) * (sorted[above] - sorted[below]);
+		}
+	}
+
+	private static class TimedFit {
+
+		final BumFit fit;
+		final long wallNanos;
+
+		TimedFit(BumFit fit, long wallNanos) {
+
+			this.fit = fit;
+			this.wallNanos = wallNanos;
+		}
+	}
+}
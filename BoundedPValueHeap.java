@@ -0,0 +1,130 @@
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Keeps the rows with the capacity smallest p-values seen so far, for the top-K significant findings.
+ *
+ * The p-values sit in a primitive max-heap, so a row that does not make the cut costs one comparison against the
+ * root.  Each heap slot keeps its row serialized in a reusable buffer of its own, so once the heap is full rows are
+ * copied rather than allocated, whatever Writable they are.
+ *
+ * @author Will Findley
+ */
+public class BoundedPValueHeap {
+
+	private final double[] pValues;		// a max-heap on the p-value of each slot
+	private final int[] slots;			// the slot of the row of each heap position
+	private final DataOutputBuffer[] rows;	// the serialized row of each slot
+	private int size = 0;
+	private final DataInputBuffer input = new DataInputBuffer();
+
+	public BoundedPValueHeap(int capacity) {
+
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("a p-value heap needs a positive capacity: " + capacity);
+		}
+		this.pValues = new double[capacity];
+		this.slots = new int[capacity];
+		this.rows = new DataOutputBuffer[capacity];
+	}
+
+	public int size() {
+
+		return this.size;
+	}
+
+	/**
+	 * Keeps the row if its p-value is among the capacity smallest so far, evicting the row with the largest p-value.
+	 *
+	 * @return true if the row was kept
+	 */
+	public boolean offer(double pValue, Writable row) throws IOException {
+
+		int slot;
+		if (size < pValues.length) {
+			slot = size;
+			if (rows[slot] == null) rows[slot] = new DataOutputBuffer();
+			pValues[size] = pValue;
+			slots[size] = slot;
+			siftUp(size++);
+		} else if (pValue < pValues[0]) {
+			// the root's slot is free for the new row
+			slot = slots[0];
+			pValues[0] = pValue;
+			siftDown(0);
+		} else {
+			return false;
+		}
+		rows[slot].reset();
+		row.write(rows[slot]);
+		return true;
+	}
+
+	/**
+	 * Empties the heap, ascending by p-value.  The rows stay readable with readRow until the next offer.
+	 *
+	 * @return the p-values of the rows, smallest first
+	 */
+	public double[] drainSorted() {
+
+		int n = size;
+		double[] sorted = new double[n];
+		int[] sortedSlots = new int[n];
+		// pop the largest into the back until the heap is empty
+		for (int i = n - 1; i >= 0; i--) {
+			sorted[i] = pValues[0];
+			sortedSlots[i] = slots[0];
+			size--;
+			pValues[0] = pValues[size];
+			slots[0] = slots[size];
+			siftDown(0);
+		}
+		System.arraycopy(sortedSlots, 0, slots, 0, n);
+		return sorted;
+	}
+
+	/**
+	 * Reads the row of the given rank in the last drainSorted into row, which must be of the class it was offered as.
+	 */
+	public void readRow(int rank, Writable row) throws IOException {
+
+		DataOutputBuffer serialized = rows[slots[rank]];
+		input.reset(serialized.getData(), serialized.getLength());
+		row.readFields(input);
+	}
+
+	private void siftUp(int position) {
+
+		double p = pValues[position];
+		int slot = slots[position];
+		while (position > 0) {
+			int parent = (position - 1) / 2;
+			if (pValues[parent] >= p) break;
+			pValues[position] = pValues[parent];
+			slots[position] = slots[parent];
+			position = parent;
+		}
+		pValues[position] = p;
+		slots[position] = slot;
+	}
+
+	private void siftDown(int position) {
+
+		double p = pValues[position];
+		int slot = slots[position];
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= size) break;
+			if (child + 1 < size && pValues[child + 1] > pValues[child]) child++;
+			if (pValues[child] <= p) break;
+			pValues[position] = pValues[child];
+			slots[position] = slots[child];
+			position = child;
+		}
+		pValues[position] = p;
+		slots[position] = slot;
+	}
+}
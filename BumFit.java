@@ -0,0 +1,73 @@
+/**
+ * The result of one BUM fit: the coefficients and how the fitter got there.
+ *
+ * @author Will Findley
+ */
+public class BumFit {
+
+	private final double[] coeffs;		// {pi0, alpha, beta}
+	private final int iterations;		// epochs or iterations the fitter ran
+	private final double error;		// the final value of the objective the fitter minimizes
+	private final boolean converged;	// false if the fitter stopped on its iteration limit or its budget
+	private final boolean timedOut;		// true if the fitter stopped on its budget's time limit
+
+	public BumFit(double[] coeffs, int iterations, double error, boolean converged) {
+
+		this(coeffs, iterations, error, converged, false);
+	}
+
+	public BumFit(double[] coeffs, int iterations, double error, boolean converged, boolean timedOut) {
+
+		this.coeffs = coeffs;
+		this.iterations = iterations;
+		this.error = error;
+		this.converged = converged;
+		this.timedOut = timedOut;
+	}
+
+	public double[] getCoeffs() {
+
+		return this.coeffs;
+	}
+
+	public double getPi0() {
+
+		return this.coeffs[0];
+	}
+
+	public double getAlpha() {
+
+		return this.coeffs[1];
+	}
+
+	public double getBeta() {
+
+		return this.coeffs[2];
+	}
+
+	public int getIterations() {
+
+		return this.iterations;
+	}
+
+	public double getError() {
+
+		return this.error;
+	}
+
+	public boolean isConverged() {
+
+		return this.converged;
+	}
+
+	public boolean isTimedOut() {
+
+		return this.timedOut;
+	}
+
+	public String toString() {
+
+		return "pi0: " + coeffs[0] + "\t alpha: " + coeffs[1] + "\t beta: " + coeffs[2] +
+			"\t iterations: " + iterations + "\t error: " + error + "\t converged: " + converged + "\t timed out: " + timedOut;
+	}
+}
@@ -0,0 +1,26 @@
+/**
+ * Fits the beta-uniform mixture coefficients {pi0, alpha, beta} to an empirical CDF.
+ *
+ * Implementations are chosen per job through {@link BumFitters#create}.  They are not thread safe; each fitting
+ * thread should hold its own instance.
+ *
+ * @author Will Findley
+ */
+public interface BumFitter {
+
+	/**
+	 * @return the coefficients {pi0, alpha, beta} this fitter starts from for the given data
+	 */
+	double[] startingCoefficients(EmpiricalCdf ecdf);
+
+	/**
+	 * Fits the model starting from coeffs, which may be modified in place.
+	 * The rows of the empirical CDF may be reordered.
+	 */
+	BumFit fit(EmpiricalCdf ecdf, double[] coeffs);
+
+	/**
+	 * Fits the model as above, but stops early once the budget no longer allows another epoch.
+	 */
+	BumFit fit(EmpiricalCdf ecdf, double[] coeffs, FitBudget budget);
+}
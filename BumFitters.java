@@ -0,0 +1,108 @@
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Creates the BUM fitter a job is configured to use, and holds the pieces every fitter shares.
+ *
+ * @author Will Findley
+ */
+public class BumFitters {
+
+	// job configuration key choosing the fitter, one of the optimizer names below
+	public static final String FIT_OPTIMIZER = "fitOptimizer";
+	// per-p-value stochastic gradient descent on the CDF error
+	public static final String SGD_OPTIMIZER = "sgd";
+	// mini-batch gradient descent on the CDF error
+	public static final String MINI_BATCH_OPTIMIZER = "minibatch";
+	// Levenberg-Marquardt least squares on the CDF residuals
+	public static final String LEVENBERG_MARQUARDT_OPTIMIZER = "lm";
+	// maximum likelihood of the BUM density
+	public static final String MAXIMUM_LIKELIHOOD_OPTIMIZER = "mle";
+
+	// number of significant digits in the model parameters
+	public static final int SIG_DIGITS = 4;
+	// the decimal place to which the significance corresponds, also the margin kept from the coefficient bounds
+	public static final double TOLERANCE = 1.0 / Math.pow(10, SIG_DIGITS);
+
+	private BumFitters() {
+	}
+
+	/**
+	 * @return the fitter named by FIT_OPTIMIZER in the configuration, or by defaultOptimizer if it is not set, run from
+	 * several starting points and under a budget when the configuration asks for either
+	 */
+	public static BumFitter create(Configuration conf, String defaultOptimizer) {
+
+		String optimizer = conf.get(FIT_OPTIMIZER, defaultOptimizer);
+		int numStarts = conf.getInt(MultiStartBumFitter.NUM_STARTS, 1);
+		if (numStarts <= 1 && !FitBudget.isConfigured(conf)) return createOptimizer(conf, optimizer);
+
+		BumFitter[] fitters = new BumFitter[Math.max(1, numStarts)];
+		for (int i = 0; i < fitters.length; i++) {
+			fitters[i] = createOptimizer(conf, optimizer);
+		}
+		int defaultThreads = Math.min(fitters.length, MultiStartBumFitter.taskCores(conf));
+		return new MultiStartBumFitter(fitters, conf.getInt(MultiStartBumFitter.NUM_THREADS, defaultThreads),
+				conf.getInt(FitBudget.MAX_EPOCHS, 0), conf.getLong(FitBudget.TIME_LIMIT, 0));
+	}
+
+	/**
+	 * Lets go of any threads the fitter holds, once it has done its last fit.
+	 */
+	public static void close(BumFitter fitter) {
+
+		if (fitter instanceof MultiStartBumFitter) ((MultiStartBumFitter) fitter).close();
+	}
+
+	private static BumFitter createOptimizer(Configuration conf, String optimizer) {
+
+		if (SGD_OPTIMIZER.equals(optimizer)) {
+			return new StochasticGradientBumFitter();
+		} else if (MINI_BATCH_OPTIMIZER.equals(optimizer)) {
+			return new MiniBatchBumFitter(conf.getInt(MiniBatchBumFitter.BATCH_SIZE, MiniBatchBumFitter.DEFAULT_BATCH_SIZE));
+		} else if (LEVENBERG_MARQUARDT_OPTIMIZER.equals(optimizer)) {
+			return new LevenbergMarquardtBumFitter();
+		} else if (MAXIMUM_LIKELIHOOD_OPTIMIZER.equals(optimizer)) {
+			return new MaximumLikelihoodBumFitter();
+		}
+		throw new IllegalArgumentException("unknown " + FIT_OPTIMIZER + ": " + optimizer);
+	}
+
+	/**
+	 * The starting point the gradient descent fitters have always used: pi0 is 1 because should always conservatively
+	 * start by overestimating the proportion of negatives, with a random beta distribution.
+	 */
+	public static double[] randomStartingCoefficients(Random rndm) {
+
+		return new double[] {1.0, rndm.nextDouble(), 1+rndm.nextInt(9)+rndm.nextDouble()};
+	}
+
+	/**
+	 * A data-driven starting point: pi0 from the share of p-values above 1/2, which are nearly all uniform
+	 * (Storey's estimator), and a beta distribution concentrated towards zero.
+	 */
+	public static double[] estimatedStartingCoefficients(EmpiricalCdf ecdf) {
+
+		double[] pValues = ecdf.getPValues();
+		double[] cdfValues = ecdf.getCdfValues();
+		// rows may be shuffled, so look for the largest CDF value at or below 1/2 rather than a position
+		double cdfAtHalf = 0;
+		for (int i = 0; i < pValues.length; i++) {
+			if (pValues[i] <= 0.5 && cdfValues[i] > cdfAtHalf) cdfAtHalf = cdfValues[i];
+		}
+		double pi0 = Math.min(0.99, Math.max(0.01, 2 * (1 - cdfAtHalf)));
+		return new double[] {pi0, 0.5, 10.0};
+	}
+
+	/**
+	 * Rectifies the coefficients so that pi0 is between 0 and 1, alpha is between 0 and 1 and beta is greater than 1,
+	 * keeping alpha and beta the given margin away from their bounds.
+	 */
+	public static void clampCoefficients(double[] coeffs, double margin) {
+
+		coeffs[0] = Math.min(1.0, Math.max(0.0, coeffs[0]));
+		coeffs[1] = Math.min(1.0-margin, Math.max(margin, coeffs[1]));
+		coeffs[2] = Math.max(1.0+margin, coeffs[2]);
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * The beta-uniform mixture (BUM) model of the p-value CDF, F(p) = pi0 * p + (1 - pi0) * I_p(alpha, beta),
+ * evaluated together with its exact gradient with respect to the coefficients {pi0, alpha, beta}.
+ *
+ * Instances are not thread safe; each fitting thread should hold its own.
+ *
+ * @author Will Findley
+ */
+public class BumModel {
+
+	private final IncompleteBetaEvaluator incompleteBeta = new IncompleteBetaEvaluator();
+
+	/**
+	 * @return the model CDF value at p for the given coefficients
+	 */
+	public double cdf(double p, double pi0, double alpha, double beta) {
+
+		return pi0 * p + (1 - pi0) * incompleteBeta.evaluate(p, alpha, beta);
+	}
+
+	/**
+	 * Evaluates the model CDF at p and writes dF/dpi0, dF/dalpha and dF/dbeta into the first three entries of gradient.
+	 *
+	 * @return the model CDF value at p for coeffs {pi0, alpha, beta}
+	 */
+	public double cdfWithGradient(double p, double[] coeffs, double[] gradient) {
+
+		double betaCDF = incompleteBeta.evaluate(p, coeffs[1], coeffs[2]);
+		gradient[0] = p - betaCDF;
+		gradient[1] = (1 - coeffs[0]) * incompleteBeta.getDerivativeAlpha();
+		gradient[2] = (1 - coeffs[0]) * incompleteBeta.getDerivativeBeta();
+		return coeffs[0] * p + (1 - coeffs[0]) * betaCDF;
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * The Levenberg-Marquardt iteration shared by the second-order BUM fitters.
+ *
+ * A subclass supplies an objective to minimize together with a descent vector g and a positive semi-definite
+ * approximation A of the objective's Hessian.  Each iteration solves (A + lambda diag(A)) delta = g and keeps the step
+ * only if the objective decreased, shrinking lambda towards Gauss-Newton steps after a success and growing it towards
+ * short gradient steps after a failure.  On smooth problems this converges in tens of iterations, and it never runs
+ * past its iteration limit.
+ *
+ * The steps are taken in unconstrained coordinates u, with pi0 = s(u0), alpha = m + (1 - 2m) s(u1) and
+ * beta = 1 + m + exp(u2), where s is the logistic function and m the coefficient margin.  Every step therefore stays
+ * inside the feasible region on its own, and coefficients approach their bounds smoothly instead of sticking to them
+ * the way clamped steps do.
+ *
+ * @author Will Findley
+ */
+public abstract class DampedNewtonBumFitter implements BumFitter {
+
+	public static final int DEFAULT_MAX_ITERATIONS = 100;
+
+	// stop once no coefficient moves by more than this
+	private static final double STEP_TOLERANCE = 1e-7;
+	// stop once the objective improves by less than this fraction
+	private static final double RELATIVE_TOLERANCE = 1e-11;
+	// how close to 0 or 1 pi0 may start, since the logistic function never reaches either
+	private static final double PI0_MARGIN = 1e-6;
+	// the longest step in unconstrained coordinates, e.g. beta can grow at most e^2 times in one step
+	private static final double MAX_STEP = 2;
+	private static final double MAX_DAMPING = 1e12;
+	// keeps the damped system solvable when a coefficient has no influence, e.g. alpha and beta at pi0 = 1
+	private static final double RIDGE = 1e-12;
+
+	private int maxIterations = DEFAULT_MAX_ITERATIONS;
+
+	// reused between iterations
+	private final double[] descent = new double[3];
+	private final double[] hessian = new double[9];
+	private final double[] damped = new double[9];
+	private final double[] step = new double[3];
+	private final double[] trial = new double[3];
+	private final double[] unconstrained = new double[3];
+	private final double[] trialUnconstrained = new double[3];
+	private final double[] jacobian = new double[3];
+	private final double[] augmented = new double[12];
+
+	public void setMaxIterations(int maxIterations) {
+
+		this.maxIterations = maxIterations;
+	}
+
+	public double[] startingCoefficients(EmpiricalCdf ecdf) {
+
+		return BumFitters.estimatedStartingCoefficients(ecdf);
+	}
+
+	/**
+	 * Evaluates the objective at coeffs.  When descent and hessian are not null, also fills descent with the
+	 * direction to move (the negative gradient) and hessian, row major, with the approximate Hessian.
+	 *
+	 * @return the objective value to minimize
+	 */
+	protected abstract double evaluate(EmpiricalCdf ecdf, double[] coeffs, double[] descent, double[] hessian);
+
+	public BumFit fit(EmpiricalCdf ecdf, double[] coeffs) {
+
+		return fit(ecdf, coeffs, FitBudget.unlimited());
+	}
+
+	public BumFit fit(EmpiricalCdf ecdf, double[] coeffs, FitBudget budget) {
+
+		double margin = BumFitters.TOLERANCE;
+		BumFitters.clampCoefficients(coeffs, margin);
+		coeffs[0] = Math.min(1 - PI0_MARGIN, Math.max(PI0_MARGIN, coeffs[0]));
+		toUnconstrained(coeffs, margin, unconstrained);
+		toCoefficients(unconstrained, margin, coeffs, jacobian);
+
+		double objective = evaluate(ecdf, coeffs, descent, hessian);
+		changeCoordinates(jacobian, descent, hessian);
+		double damping = 1e-3;
+
+		int iteration = 0;
+		boolean converged = false;
+		while (!converged && iteration < maxIterations && budget.allows(iteration, coeffs)) {
+			iteration++;
+
+			// try ever more heavily damped steps until one improves the objective
+			boolean improved = false;
+			while (!improved && damping < MAX_DAMPING) {
+				for (int i = 0; i < 9; i++) {
+					damped[i] = hessian[i];
+				}
+				for (int i = 0; i < 3; i++) {
+					damped[4*i] += damping * hessian[4*i] + RIDGE;
+				}
+				if (!solve(damped, descent, step)) {
+					damping *= 10;
+					continue;
+				}
+				double stepLength = Math.sqrt(step[0] * step[0] + step[1] * step[1] + step[2] * step[2]);
+				if (stepLength > MAX_STEP) {
+					for (int i = 0; i < 3; i++) {
+						step[i] *= MAX_STEP / stepLength;
+					}
+				}
+
+				for (int i = 0; i < 3; i++) {
+					trialUnconstrained[i] = unconstrained[i] + step[i];
+				}
+				toCoefficients(trialUnconstrained, margin, trial, jacobian);
+				double trialObjective = evaluate(ecdf, trial, null, null);
+
+				if (trialObjective < objective) {
+					improved = true;
+					double maxStep = 0;
+					for (int i = 0; i < 3; i++) {
+						maxStep = Math.max(maxStep, Math.abs(trial[i] - coeffs[i]));
+						coeffs[i] = trial[i];
+						unconstrained[i] = trialUnconstrained[i];
+					}
+					converged = maxStep < STEP_TOLERANCE || objective - trialObjective <= RELATIVE_TOLERANCE * Math.abs(objective);
+					objective = evaluate(ecdf, coeffs, descent, hessian);
+					changeCoordinates(jacobian, descent, hessian);
+					damping = Math.max(damping / 10, 1e-12);
+				} else {
+					damping *= 10;
+				}
+			}
+
+			// no damping finds a better point, so this is as good as it gets
+			if (!improved) converged = true;
+		}
+
+		return new BumFit(coeffs, iteration, objective, converged, budget.isTimedOut());
+	}
+
+	private static void toUnconstrained(double[] coeffs, double margin, double[] u) {
+
+		u[0] = Math.log(coeffs[0] / (1 - coeffs[0]));
+		double alphaShare = (coeffs[1] - margin) / (1 - 2 * margin);
+		alphaShare = Math.min(1 - PI0_MARGIN, Math.max(PI0_MARGIN, alphaShare));
+		u[1] = Math.log(alphaShare / (1 - alphaShare));
+		u[2] = Math.log(Math.max(coeffs[2] - 1 - margin, Double.MIN_NORMAL));
+	}
+
+	/**
+	 * Maps unconstrained coordinates to coefficients, writing d coeffs[i] / d u[i] into jacobian.
+	 */
+	private static void toCoefficients(double[] u, double margin, double[] coeffs, double[] jacobian) {
+
+		double share = 1 / (1 + Math.exp(-u[0]));
+		coeffs[0] = share;
+		jacobian[0] = share * (1 - share);
+		share = 1 / (1 + Math.exp(-u[1]));
+		coeffs[1] = margin + (1 - 2 * margin) * share;
+		jacobian[1] = (1 - 2 * margin) * share * (1 - share);
+		double excess = Math.exp(u[2]);
+		coeffs[2] = 1 + margin + excess;
+		jacobian[2] = excess;
+	}
+
+	/**
+	 * Converts the descent vector and approximate Hessian from coefficients to unconstrained coordinates.
+	 * The term from the curvature of the coordinate change is dropped, as it vanishes at the optimum.
+	 */
+	private static void changeCoordinates(double[] jacobian, double[] descent, double[] hessian) {
+
+		for (int i = 0; i < 3; i++) {
+			descent[i] *= jacobian[i];
+			for (int j = 0; j < 3; j++) {
+				hessian[3*i + j] *= jacobian[i] * jacobian[j];
+			}
+		}
+	}
+
+	/**
+	 * Solves the 3x3 system a x = b by Gaussian elimination with partial pivoting.  a and b are left untouched.
+	 *
+	 * @return false if the system is singular
+	 */
+	private boolean solve(double[] a, double[] b, double[] x) {
+
+		// the augmented matrix [a | b], row major
+		double[] m = augmented;
+		for (int row = 0; row < 3; row++) {
+			m[4*row] = a[3*row];
+			m[4*row + 1] = a[3*row + 1];
+			m[4*row + 2] = a[3*row + 2];
+			m[4*row + 3] = b[row];
+		}
+		for (int col = 0; col < 3; col++) {
+			int pivot = col;
+			for (int row = col + 1; row < 3; row++) {
+				if (Math.abs(m[4*row + col]) > Math.abs(m[4*pivot + col])) pivot = row;
+			}
+			if (!(Math.abs(m[4*pivot + col]) > 0)) return false;
+			if (pivot != col) {
+				for (int k = 0; k < 4; k++) {
+					double tmp = m[4*col + k];
+					m[4*col + k] = m[4*pivot + k];
+					m[4*pivot + k] = tmp;
+				}
+			}
+			for (int row = col + 1; row < 3; row++) {
+				double factor = m[4*row + col] / m[4*col + col];
+				for (int k = col; k < 4; k++) {
+					m[4*row + k] -= factor * m[4*col + k];
+				}
+			}
+		}
+		for (int row = 2; row >= 0; row--) {
+			double sum = m[4*row + 3];
+			for (int k = row + 1; k < 3; k++) {
+				sum -= m[4*row + k] * x[k];
+			}
+			x[row] = sum / m[4*row + row];
+		}
+		return !(Double.isNaN(x[0]) || Double.isNaN(x[1]) || Double.isNaN(x[2]));
+	}
+}
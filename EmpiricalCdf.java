@@ -0,0 +1,143 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An empirical CDF kept as two flat primitive columns, the sorted p-values and their empirical CDF values,
+ * so fitting loops run over contiguous double arrays instead of one small array per row.
+ *
+ * Rows may optionally carry weights, for example when each row stands for a whole histogram bin of p-values.
+ * Without weights every row counts the same.
+ *
+ * @author Will Findley
+ */
+public class EmpiricalCdf {
+
+	// job configuration key for the number of quantile knots each block is compressed to before its fit, 0 (the
+	// default) to fit every p-value of the block
+	public static final String QUANTILE_KNOTS = "fitQuantileKnots";
+	// knot j of k sits at the rank n (j/k)^KNOT_SPACING_POWER, so the knots crowd towards p = 0
+	static final double KNOT_SPACING_POWER = 2;
+
+	private final double[] pValues;		// the p-value in each row
+	private final double[] cdfValues;	// the empirical CDF value in each row
+	private final double[] weights;		// the weight of each row, or null when all rows are weighted equally
+
+	public EmpiricalCdf(double[] pValues, double[] cdfValues) {
+
+		this(pValues, cdfValues, null);
+	}
+
+	public EmpiricalCdf(double[] pValues, double[] cdfValues, double[] weights) {
+
+		if (pValues.length != cdfValues.length || (weights != null && weights.length != pValues.length)) {
+			throw new IllegalArgumentException("empirical CDF columns differ in length: " + pValues.length + " vs " + cdfValues.length);
+		}
+		this.pValues = pValues;
+		this.cdfValues = cdfValues;
+		this.weights = weights;
+	}
+
+	/**
+	 * Sorts the given p-values in place and pairs each with its empirical CDF value i/n.
+	 */
+	public static EmpiricalCdf fromPValues(double[] pValues) {
+
+		return fromPValues(pValues, new double[pValues.length]);
+	}
+
+	/**
+	 * As above, but fills the given buffer with the CDF values instead of allocating a column, so a caller fitting one
+	 * block after another can reuse both columns and keep its heap at 16 bytes per p-value of a block.
+	 */
+	public static EmpiricalCdf fromPValues(double[] pValues, double[] cdfValues) {
+
+		Arrays.sort(pValues);
+		for (int i = 1; i <= pValues.length; i++) {
+			cdfValues[i-1] = i / (double) pValues.length;
+		}
+		return new EmpiricalCdf(pValues, cdfValues);
+	}
+
+	/**
+	 * Compresses a sorted, unweighted empirical CDF to at most numKnots weighted quantile knots, as the original
+	 * cdfFit.m downsampled to 1000 p-values, so the cost of every epoch of a fit no longer grows with the block.
+	 *
+	 * Each knot is the row at its rank, keeping that row's exact CDF value, and weighs the share of rows from the knot
+	 * before it, so a weighted fit on the knots approximates the fit on every row as a histogram's ECDF does.  The knots
+	 * are spaced as the square of their number in rank, so at a CDF value F they are about 2 / (numKnots sqrt(F)) of F
+	 * apart: with 1000 knots that is 0.6% of the p-values below a cutoff passing 10% of them and 2% at 1%, against a
+	 * 10% gap at 1% for evenly spaced knots.  The README gives the measured effect on the p-value cutoff of each fitter.
+	 * Blocks of no more rows than numKnots are returned as they are.
+	 */
+	public EmpiricalCdf toQuantileKnots(int numKnots) {
+
+		int n = pValues.length;
+		if (numKnots <= 0 || n <= numKnots) return this;
+
+		double[] knotPValues = new double[numKnots];
+		double[] knotCdfValues = new double[numKnots];
+		double[] knotWeights = new double[numKnots];
+		int previousRank = 0;
+		for (int j = 1; j <= numKnots; j++) {
+			// the first knots would share ranks, so each takes the next rank at the least; the last is always row n
+			int rank = Math.max(previousRank + 1, (int) Math.ceil(n * Math.pow(j / (double) numKnots, KNOT_SPACING_POWER)));
+			knotPValues[j - 1] = pValues[rank - 1];
+			knotCdfValues[j - 1] = cdfValues[rank - 1];
+			knotWeights[j - 1] = (rank - previousRank) / (double) n;
+			previousRank = rank;
+		}
+		return new EmpiricalCdf(knotPValues, knotCdfValues, knotWeights);
+	}
+
+	/**
+	 * @return a copy with columns of its own, for fitting the same data on another thread
+	 */
+	public EmpiricalCdf copy() {
+
+		return new EmpiricalCdf(pValues.clone(), cdfValues.clone(), (weights == null) ? null : weights.clone());
+	}
+
+	public int size() {
+
+		return this.pValues.length;
+	}
+
+	public double[] getPValues() {
+
+		return this.pValues;
+	}
+
+	public double[] getCdfValues() {
+
+		return this.cdfValues;
+	}
+
+	/**
+	 * @return the row weights, or null when all rows are weighted equally
+	 */
+	public double[] getWeights() {
+
+		return this.weights;
+	}
+
+	/**
+	 * Fisher-Yates shuffle of the rows, swapping every column in place.
+	 */
+	public void shuffle(Random rndm) {
+
+		for (int i = pValues.length - 1; i > 0; i--) {
+			int ranSpot = rndm.nextInt(i + 1);
+			double tmp = pValues[i];
+			pValues[i] = pValues[ranSpot];
+			pValues[ranSpot] = tmp;
+			tmp = cdfValues[i];
+			cdfValues[i] = cdfValues[ranSpot];
+			cdfValues[ranSpot] = tmp;
+			if (weights != null) {
+				tmp = weights[i];
+				weights[i] = weights[ranSpot];
+				weights[ranSpot] = tmp;
+			}
+		}
+	}
+}
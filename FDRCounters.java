@@ -0,0 +1,28 @@
+/**
+ * Hadoop counters reported by the FDR jobs.
+ *
+ * @author Will Findley
+ */
+public enum FDRCounters {
+
+	// rows read with a p-value between 0 and 1
+	RECORDS_PARSED,
+	// rows without a readable p-value between 0 and 1, skipped rather than failing the task
+	MALFORMED_ROWS,
+	// BUM fits finished, one per block or per sketch
+	FITS_COMPLETED,
+	// epochs or iterations run by all of the fits together
+	FIT_ITERATIONS,
+	// fits that stopped on their iteration limit or their epoch or time budget before converging
+	FITS_NOT_CONVERGED,
+	// fits that stopped on the fitTimeLimitMillis budget, a subset of FITS_NOT_CONVERGED
+	FITS_TIMED_OUT,
+	// rows at or below the significance p-value cutoff, i.e. significant findings
+	ROWS_BELOW_CUTOFF,
+	// rows above the significance p-value cutoff
+	ROWS_ABOVE_CUTOFF,
+	// rows of grouped FDR without a g attribute, and in the significance job the rows of groups without a fitted model
+	ROWS_WITHOUT_GROUP_MODEL,
+	// p-values left at the end of a block mode split, or of a group in it, too few to fit as a block of their own
+	ROWS_NOT_FIT
+}
@@ -0,0 +1,136 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Runs the whole FDR analysis from one command: the BUM fitting job, then the significance job with the fitted
+ * coefficients read straight from the fitting job's output.  The p-value cutoff is computed once here on the client,
+ * so the significance mappers skip their own search.  Given the generator's arguments as well, it first generates
+ * synthetic p-values into the input path, so a test data set is analyzed end to end in one submission.
+ *
+ * Every -D job setting of the individual programs is passed on to the jobs they apply to.  With buildPValueIndex set,
+ * the significance job also skips the input stripes the fitting job's p-value index rules out.  With groupedFit set,
+ * the significance job applies each group's own model and cutoff from the fitting job's output instead.
+ *
+ * @author Will Findley
+ */
+public class FDRPipelineDriver extends Configured implements Tool {
+
+	// sub-directories of the working directory for each job's output
+	public static final String COEFFICIENTS_DIR = "coefficients";
+	public static final String SIGNIFICANT_FINDINGS_DIR = "significant";
+
+	public static void main(String[] args) throws Exception {
+
+		// pull out the -D job settings first so that only the positional args are counted
+		Configuration conf = new Configuration();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+		if (args.length != 4 && args.length != 9) {
+			System.out.println("\n" +
+					"This program fits the BUM model and then finds the p-value entries that are significant at the FDR cutoff \n" +
+					"Usage is: \n\n" +
+					"hadoop jar [jarFile] FDRPipelineDriver [args0] [args1] [args2] [args3] ([args4] [args5] [args6] [args7] [args8]) \n\n" +
+					"args0 - input path of p-values \n" +
+					"args1 - working directory, the coefficients are written to args1/" + COEFFICIENTS_DIR +
+					" and the significant findings to args1/" + SIGNIFICANT_FINDINGS_DIR + " \n" +
+					"args2 - number of p-values for each map's independent BUM fit \n" +
+					"args3 - false discovery rate cutoff for significance, or a comma separated list of them \n\n" +
+					"optionally, to first generate random p-values into args0 as RandomDataGenerationDriver does: \n" +
+					"args4 - number of mapper tasks \n" +
+					"args5 - number of records produced by each mapper \n" +
+					"args6 - pi0, the proportion of p-values that are uniformly distributed (false hypotheses) \n" +
+					"args7 - alpha, the alpha for the beta distribution \n" +
+					"args8 - beta, the beta for the beta distribution \n\n" +
+					"-D settings of RandomDataGenerationDriver, MapReduceCDFFalseDiscoveryRate and MapReduceSignificantFindings are passed on \n"
+					);
+			return;
+		}
+		int res = ToolRunner.run(conf, new FDRPipelineDriver(), args);
+		System.exit(res);
+	}
+
+	public int run(String[] args) throws Exception {
+
+		Configuration conf = this.getConf();
+		String input = args[0];
+		Path coefficientsDir = new Path(args[1], COEFFICIENTS_DIR);
+		Path significantDir = new Path(args[1], SIGNIFICANT_FINDINGS_DIR);
+		// fail before the fit rather than after it
+		if (GroupedFdr.isGrouped(conf)) {
+			MapReduceSignificantFindings.checkGroupedOptions(conf, SignificanceThresholds.parseQValueCutoffs(args[3]));
+		}
+
+		// every job gets its own copy of the settings, since they each set keys such as pi0 for themselves
+		if (args.length == 9) {
+			String[] generatorArgs = {args[4], args[5], args[6], args[7], args[8], input};
+			if (ToolRunner.run(new Configuration(conf), new RandomDataGenerationDriver(), generatorArgs) != 0) return 1;
+		}
+
+		String[] fitArgs = {input, coefficientsDir.toString(), args[2]};
+		if (ToolRunner.run(new Configuration(conf), new MapReduceCDFFalseDiscoveryRate(), fitArgs) != 0) return 1;
+
+		Configuration significanceConf = new Configuration(conf);
+		// the fitting job indexed the very same input, so the significance job can skip by it straight away
+		if (conf.getBoolean(PValueIndex.BUILD, false) && conf.get(PValueIndex.INDEX) == null) {
+			significanceConf.set(PValueIndex.INDEX, coefficientsDir.toString());
+		}
+
+		// every group's model and cutoff are read by the significance job itself, and there is no one model to pass on
+		if (GroupedFdr.isGrouped(conf)) {
+			significanceConf.set(GroupedFdr.GROUP_COEFFICIENTS, coefficientsDir.toString());
+			String[] significanceArgs = {input, significantDir.toString(), "NaN", "NaN", "NaN", args[3]};
+			return ToolRunner.run(significanceConf, new MapReduceSignificantFindings(), significanceArgs);
+		}
+
+		Pi0AlphaBetaCountTuple coefficients = readCoefficients(conf, coefficientsDir);
+		System.out.println("BUM coefficients\t" + coefficients);
+
+		// the loosest of several q-value cutoffs, which every finding passes
+		double[] significanceQValueCutoffs = SignificanceThresholds.parseQValueCutoffs(args[3]);
+		double significanceQValueCutoff = significanceQValueCutoffs[significanceQValueCutoffs.length - 1];
+		double significancePValueCutoff = MapReduceSignificantFindings.CheckSignificanceMapper.computeSignificancePValueCutoff(
+				coefficients.getPi0(), coefficients.getAlpha(), coefficients.getBeta(), significanceQValueCutoff);
+		System.out.println("Significance p-value cutoff: " + significancePValueCutoff);
+
+		significanceConf.set(MapReduceSignificantFindings.SIGNIFICANCE_P_VALUE_CUTOFF, Double.toString(significancePValueCutoff));
+		String[] significanceArgs = {input, significantDir.toString(), Double.toString(coefficients.getPi0()),
+				Double.toString(coefficients.getAlpha()), Double.toString(coefficients.getBeta()), args[3]};
+		return ToolRunner.run(significanceConf, new MapReduceSignificantFindings(), significanceArgs);
+	}
+
+	/**
+	 * Reads the fitted coefficients from the text output of the BUM fitting job.
+	 *
+	 * @throws IOException if no part file holds a coefficients line
+	 */
+	public static Pi0AlphaBetaCountTuple readCoefficients(Configuration conf, Path outputDir) throws IOException {
+
+		FileSystem fs = outputDir.getFileSystem(conf);
+		for (FileStatus status : fs.listStatus(outputDir)) {
+			if (!status.getPath().getName().startsWith("part-")) continue;
+			BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					// each line is the reducer key, a tab, and the tuple
+					int tab = line.indexOf('\t');
+					if (tab >= 0) return Pi0AlphaBetaCountTuple.parse(line.substring(tab + 1));
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		throw new IOException("no BUM coefficients found in " + outputDir);
+	}
+}
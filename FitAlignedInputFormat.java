@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReaderWrapper;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+
+/**
+ * Packs the input of the block mode fitting job into splits of a whole number of fit blocks each, combining small
+ * files and cutting large ones, so there are fewer, evenly loaded map tasks and none reads p-values it cannot fit.
+ *
+ * Every split holds blocksPerSplit blocks of numSamplesForFit rows, blocksPerSplit being as many as a task fits in
+ * TARGET_TASK_SECONDS at ROWS_PER_SECOND rows a second (e.g. the fit phase's rowsPerSecond from ScaleBenchmark), and
+ * the files are laid end to end so a split may span several of them.  Binary records are fixed width, so the splits
+ * are exact: every split but the last holds exactly its blocks, and the rows that make up no whole block all end up
+ * in the last split, one leftover block for the whole job.  Xml rows vary in length, so their splits are cut at the
+ * sampled bytes per row and hold only about a whole number of blocks; every xml task has a leftover block of its own,
+ * since the mappers write coefficients rather than p-values and so can not pool them.  Either way a leftover block is
+ * fit only if it holds at least MapReduceCDFFalseDiscoveryRate.MIN_LEFTOVER_FIT p-values, and is counted in
+ * FDRCounters.ROWS_NOT_FIT otherwise.
+ *
+ * @author Will Findley
+ */
+public class FitAlignedInputFormat extends CombineFileInputFormat<LongWritable, Writable> {
+
+	// job configuration key, true for the fitting job to read its input through this format
+	public static final String FIT_ALIGNED = "fitAlignedInput";
+	// job configuration key for how long each map task should take
+	public static final String TARGET_TASK_SECONDS = "fitAlignedTaskSeconds";
+	public static final int DEFAULT_TARGET_TASK_SECONDS = 60;
+	// job configuration key for the rows a map task reads and fits each second
+	public static final String ROWS_PER_SECOND = "fitAlignedRowsPerSecond";
+	public static final long DEFAULT_ROWS_PER_SECOND = 20000;
+
+	// bytes read from the start of each of the first few xml files for their bytes per row
+	static final int XML_SAMPLE_BYTES = 1 << 16;
+	static final int XML_SAMPLE_FILES = 3;
+
+	private static final Log LOG = LogFactory.getLog(FitAlignedInputFormat.class);
+
+	public static boolean isFitAligned(Configuration conf) {
+
+		return conf.getBoolean(FIT_ALIGNED, false);
+	}
+
+	/**
+	 * @return the rows of every split but the last, a whole number of blocks of numSamplesForFit
+	 */
+	public static long rowsPerSplit(Configuration conf, int numSamplesForFit) {
+
+		double rowsPerTask = (double) conf.getInt(TARGET_TASK_SECONDS, DEFAULT_TARGET_TASK_SECONDS) * conf.getLong(ROWS_PER_SECOND, DEFAULT_ROWS_PER_SECOND);
+		long blocksPerSplit = Math.max(1, Math.round(rowsPerTask / numSamplesForFit));
+		return blocksPerSplit * numSamplesForFit;
+	}
+
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+
+		Configuration conf = job.getConfiguration();
+		List<FileStatus> files = new ArrayList<FileStatus>();
+		for (FileStatus file : listStatus(job)) {
+			if (file.getLen() > 0) files.add(file);
+		}
+		long rowsPerSplit = rowsPerSplit(conf, Integer.parseInt(conf.get("numSamplesForFit")));
+		boolean binary = PValueRecord.isBinaryFormat(conf);
+
+		// each file is a range of rows, for binary records, or of bytes, for xml rows, and splits take the same amount
+		// of either in turn, ending wherever they fill
+		long splitSize;
+		if (binary) {
+			splitSize = rowsPerSplit;
+		} else {
+			splitSize = Math.max(1, Math.round(rowsPerSplit * sampleBytesPerRow(conf, files)));
+		}
+
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+		SplitBuilder split = new SplitBuilder(splitSize);
+		for (FileStatus file : files) {
+			FileSystem fs = file.getPath().getFileSystem(conf);
+			long units = binary ? PValueRecordInputFormat.numRecords(file.getLen()) : file.getLen();
+			long position = 0;
+			while (position < units) {
+				long taken = Math.min(units - position, split.room());
+				if (binary) {
+					// the records starting in a byte range are the split's, so the range is cut on record boundaries
+					long start = (position == 0) ? 0 : PValueRecordInputFormat.HEADER_SIZE + position * PValueRecord.RECORD_SIZE;
+					long end = PValueRecordInputFormat.HEADER_SIZE + (position + taken) * PValueRecord.RECORD_SIZE;
+					split.add(fs, file, start, end - start, taken);
+				} else {
+					split.add(fs, file, position, taken, taken);
+				}
+				position += taken;
+				if (split.room() == 0) splits.add(split.build());
+			}
+		}
+		if (!split.isEmpty()) splits.add(split.build());
+		LOG.info("Fit aligned input: " + splits.size() + " splits of " + rowsPerSplit + " rows from " + files.size() + " files");
+		return splits;
+	}
+
+	/**
+	 * @return the average bytes per xml row at the start of the first XML_SAMPLE_FILES files
+	 */
+	static double sampleBytesPerRow(Configuration conf, List<FileStatus> files) throws IOException {
+
+		long bytes = 0;
+		long rows = 0;
+		byte[] buffer = new byte[XML_SAMPLE_BYTES];
+		for (int i = 0; i < Math.min(XML_SAMPLE_FILES, files.size()); i++) {
+			Path path = files.get(i).getPath();
+			int length = (int) Math.min(XML_SAMPLE_BYTES, files.get(i).getLen());
+			FSDataInputStream in = path.getFileSystem(conf).open(path);
+			try {
+				in.readFully(0, buffer, 0, length);
+			} finally {
+				in.close();
+			}
+			// only whole rows count, up to the last line break
+			int wholeRows = 0;
+			int wholeBytes = 0;
+			for (int j = 0; j < length; j++) {
+				if (buffer[j] == '\n') {
+					wholeRows++;
+					wholeBytes = j + 1;
+				}
+			}
+			rows += wholeRows;
+			bytes += wholeBytes;
+		}
+		return (rows == 0) ? PValueRecord.MAX_XML_LENGTH : bytes / (double) rows;
+	}
+
+	public RecordReader<LongWritable, Writable> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException {
+
+		Class<? extends RecordReader<LongWritable, Writable>> reader = PValueRecord.isBinaryFormat(context.getConfiguration())
+				? BinaryChunkReader.class : TextChunkReader.class;
+		return new CombineFileRecordReader<LongWritable, Writable>((CombineFileSplit) split, context, reader);
+	}
+
+	/**
+	 * Collects the file ranges of one split, until it holds its size in rows or bytes.
+	 */
+	private static class SplitBuilder {
+
+		private final long size;
+		private long filled = 0;
+		private final List<Path> paths = new ArrayList<Path>();
+		private final List<Long> starts = new ArrayList<Long>();
+		private final List<Long> lengths = new ArrayList<Long>();
+		private final List<String> hosts = new ArrayList<String>();
+
+		SplitBuilder(long size) {
+
+			this.size = size;
+		}
+
+		long room() {
+
+			return size - filled;
+		}
+
+		boolean isEmpty() {
+
+			return paths.isEmpty();
+		}
+
+		void add(FileSystem fs, FileStatus file, long start, long length, long units) throws IOException {
+
+			paths.add(file.getPath());
+			starts.add(start);
+			lengths.add(length);
+			filled += units;
+			// the hosts of the start of the split's first range, for the scheduler's locality
+			if (hosts.isEmpty()) {
+				BlockLocation[] blocks = fs.getFileBlockLocations(file, start, Math.max(1, length));
+				if (blocks.length > 0) {
+					for (String host : blocks[0].getHosts()) {
+						hosts.add(host);
+					}
+				}
+			}
+		}
+
+		CombineFileSplit build() {
+
+			Path[] splitPaths = paths.toArray(new Path[paths.size()]);
+			long[] splitStarts = new long[starts.size()];
+			long[] splitLengths = new long[lengths.size()];
+			for (int i = 0; i < splitStarts.length; i++) {
+				splitStarts[i] = starts.get(i);
+				splitLengths[i] = lengths.get(i);
+			}
+			CombineFileSplit split = new CombineFileSplit(splitPaths, splitStarts, splitLengths, hosts.toArray(new String[hosts.size()]));
+			paths.clear();
+			starts.clear();
+			lengths.clear();
+			hosts.clear();
+			filled = 0;
+			return split;
+		}
+	}
+
+	/**
+	 * Reads one range of a split as a plain xml text file split.
+	 */
+	public static class TextChunkReader extends CombineFileRecordReaderWrapper<LongWritable, Writable> {
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public TextChunkReader(CombineFileSplit split, TaskAttemptContext context, Integer index) throws IOException, InterruptedException {
+
+			super((FileInputFormat) new TextInputFormat(), split, context, index);
+		}
+	}
+
+	/**
+	 * Reads one range of a split as a binary p-value file split.
+	 */
+	public static class BinaryChunkReader extends CombineFileRecordReaderWrapper<LongWritable, Writable> {
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public BinaryChunkReader(CombineFileSplit split, TaskAttemptContext context, Integer index) throws IOException, InterruptedException {
+
+			super((FileInputFormat) new PValueRecordInputFormat(), split, context, index);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Hard caps on one BUM fit: a number of epochs (or iterations) and a wall time.  Fitters ask the budget before every
+ * epoch and stop with whatever coefficients they have once it is spent, reporting the fit as not converged, so a block
+ * that would otherwise run on and on can not hold up its map task.
+ *
+ * A budget can also be cancelled from another thread, which is how MultiStartBumFitter stops the starts that are
+ * losing.  The time limit counts from when the budget is made.
+ *
+ * @author Will Findley
+ */
+public class FitBudget {
+
+	// job configuration key for the most epochs or iterations any one fit may run, 0 (the default) for no cap
+	public static final String MAX_EPOCHS = "fitMaxEpochs";
+	// job configuration key for the most milliseconds any one fit may run, 0 (the default) for no cap
+	public static final String TIME_LIMIT = "fitTimeLimitMillis";
+
+	private final int maxEpochs;
+	private final boolean hasDeadline;
+	private final long deadline;		// System.nanoTime() at which the fit must stop
+	private volatile boolean cancelled = false;
+	private volatile boolean timedOut = false;
+
+	/**
+	 * @param maxEpochs the most epochs the fit may run, 0 or less for no cap
+	 * @param timeLimitMillis the most milliseconds the fit may run from now, 0 or less for no cap
+	 */
+	public FitBudget(int maxEpochs, long timeLimitMillis) {
+
+		this.maxEpochs = (maxEpochs > 0) ? maxEpochs : Integer.MAX_VALUE;
+		this.hasDeadline = timeLimitMillis > 0;
+		this.deadline = hasDeadline ? System.nanoTime() + timeLimitMillis * 1000000 : 0;
+	}
+
+	/**
+	 * A budget with the same caps and the same deadline as shared, but which is cancelled on its own.
+	 */
+	protected FitBudget(FitBudget shared) {
+
+		this.maxEpochs = shared.maxEpochs;
+		this.hasDeadline = shared.hasDeadline;
+		this.deadline = shared.deadline;
+	}
+
+	public static FitBudget unlimited() {
+
+		return new FitBudget(0, 0);
+	}
+
+	/**
+	 * @return the budget the configuration's MAX_EPOCHS and TIME_LIMIT give a fit starting now
+	 */
+	public static FitBudget fromConfiguration(Configuration conf) {
+
+		return new FitBudget(conf.getInt(MAX_EPOCHS, 0), conf.getLong(TIME_LIMIT, 0));
+	}
+
+	/**
+	 * @return true if the budget caps anything at all
+	 */
+	public static boolean isConfigured(Configuration conf) {
+
+		return conf.getInt(MAX_EPOCHS, 0) > 0 || conf.getLong(TIME_LIMIT, 0) > 0;
+	}
+
+	/**
+	 * Asked by the fitter before each epoch.
+	 *
+	 * @param epochs the epochs the fit has already run
+	 * @param coeffs the fit's current coefficients, which subclasses may score
+	 * @return false once the fit must stop
+	 */
+	public boolean allows(int epochs, double[] coeffs) {
+
+		if (cancelled || epochs >= maxEpochs) return false;
+		if (hasDeadline && System.nanoTime() - deadline >= 0) {
+			timedOut = true;
+			return false;
+		}
+		return true;
+	}
+
+	public void cancel() {
+
+		this.cancelled = true;
+	}
+
+	public boolean isCancelled() {
+
+		return this.cancelled;
+	}
+
+	/**
+	 * @return true if a fit was stopped because it ran out of time
+	 */
+	public boolean isTimedOut() {
+
+		return this.timedOut;
+	}
+}
@@ -0,0 +1,70 @@
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+/**
+ * Reports every BUM fit a task makes, in the fit counters and as one line of the fitMetrics side output, so slow or
+ * diverging blocks can be found without reading task logs.
+ *
+ * Each fitMetrics line is the fit's name (the task attempt and the fit's number within it) followed by the tab
+ * separated iterations, final error, wall time in milliseconds, whether it converged, pi0, alpha and beta.  The lines
+ * land next to the job's coefficients in fitMetrics-m-* files from block fits and fitMetrics-r-* files from sketch fits.
+ *
+ * @author Will Findley
+ */
+public class FitTelemetry {
+
+	// the name of the side output, and so the prefix of its files
+	public static final String FIT_METRICS_OUTPUT = "fitMetrics";
+
+	private final MultipleOutputs<?, ?> outputs;
+	private final String taskName;
+	private final Counter fitsCompleted;
+	private final Counter fitIterations;
+	private final Counter fitsNotConverged;
+	private final Counter fitsTimedOut;
+	private int fitNumber = 0;
+	private final Text name = new Text();
+	private final Text metrics = new Text();
+
+	public static void addFitMetricsOutput(Job job) {
+
+		MultipleOutputs.addNamedOutput(job, FIT_METRICS_OUTPUT, TextOutputFormat.class, Text.class, Text.class);
+	}
+
+	public <KEYOUT, VALUEOUT> FitTelemetry(TaskInputOutputContext<?, ?, KEYOUT, VALUEOUT> context) {
+
+		this.outputs = new MultipleOutputs<KEYOUT, VALUEOUT>(context);
+		this.taskName = context.getTaskAttemptID().toString();
+		this.fitsCompleted = context.getCounter(FDRCounters.FITS_COMPLETED);
+		this.fitIterations = context.getCounter(FDRCounters.FIT_ITERATIONS);
+		this.fitsNotConverged = context.getCounter(FDRCounters.FITS_NOT_CONVERGED);
+		this.fitsTimedOut = context.getCounter(FDRCounters.FITS_TIMED_OUT);
+	}
+
+	/**
+	 * Counts a finished fit and writes its metrics line.
+	 */
+	public void record(BumFit fit, long wallNanos) throws IOException, InterruptedException {
+
+		fitsCompleted.increment(1);
+		fitIterations.increment(fit.getIterations());
+		if (!fit.isConverged()) fitsNotConverged.increment(1);
+		if (fit.isTimedOut()) fitsTimedOut.increment(1);
+
+		name.set(taskName + "#" + fitNumber++);
+		metrics.set(fit.getIterations() + "\t" + fit.getError() + "\t" + (wallNanos / 1000000.0) + "\t" + fit.isConverged() +
+				"\t" + fit.getPi0() + "\t" + fit.getAlpha() + "\t" + fit.getBeta());
+		outputs.write(FIT_METRICS_OUTPUT, name, metrics);
+	}
+
+	public void close() throws IOException, InterruptedException {
+
+		outputs.close();
+	}
+}
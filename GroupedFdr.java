@@ -0,0 +1,120 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Grouped FDR: one BUM model per group of p-values, e.g. one per assay or tissue, all fit by one job and applied by
+ * one significance pass instead of a pair of jobs per group.
+ *
+ * The group of an xml row is its g="..." attribute.  With GROUPED set, the fitting job keys every block fit, or every
+ * histogram, by its group, so its reducers (as many as the job has) average or fit each group on its own and write one
+ * coefficients line per group, keyed by the group.  The significance job's GROUP_COEFFICIENTS points at that output:
+ * the driver computes every group's p-value cutoff once and ships them to the mappers as a table of group, tab, cutoff
+ * lines through the distributed cache.
+ *
+ * @author Will Findley
+ */
+public class GroupedFdr {
+
+	// job configuration key, true to fit one model per group
+	public static final String GROUPED = "groupedFit";
+	// job configuration key for the fitting job's output of per group coefficients, for the significance job
+	public static final String GROUP_COEFFICIENTS = "groupCoefficients";
+	// the link name of the cutoff table in the distributed cache
+	public static final String GROUP_CUTOFFS_LINK = "groupCutoffs";
+
+	private GroupedFdr() {
+	}
+
+	public static boolean isGrouped(Configuration conf) {
+
+		return conf.getBoolean(GROUPED, false);
+	}
+
+	/**
+	 * Reads every group's coefficients from the text output of a grouped fitting job, or the one model's of any other
+	 * fitting job, keyed by the group or by the job's one key.
+	 *
+	 * @throws IOException if no part file holds a coefficients line
+	 */
+	public static Map<String, Pi0AlphaBetaCountTuple> readCoefficients(Configuration conf, Path outputDir) throws IOException {
+
+		Map<String, Pi0AlphaBetaCountTuple> coefficients = new HashMap<String, Pi0AlphaBetaCountTuple>();
+		FileSystem fs = outputDir.getFileSystem(conf);
+		for (FileStatus status : fs.listStatus(outputDir)) {
+			if (!status.getPath().getName().startsWith("part-")) continue;
+			BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					// each line is the group, a tab, and the tuple
+					int tab = line.indexOf('\t');
+					if (tab >= 0) coefficients.put(line.substring(0, tab), Pi0AlphaBetaCountTuple.parse(line.substring(tab + 1)));
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		if (coefficients.isEmpty()) {
+			throw new IOException("no BUM coefficients found in " + outputDir);
+		}
+		return coefficients;
+	}
+
+	/**
+	 * Writes the p-value cutoff of every group at the q-value cutoff to path.
+	 *
+	 * @return the largest of the cutoffs, which no significant p-value of any group is above
+	 */
+	public static double writeCutoffs(Configuration conf, Path path, Map<String, Pi0AlphaBetaCountTuple> coefficients,
+			double significanceQValueCutoff) throws IOException {
+
+		double loosest = 0;
+		FileSystem fs = path.getFileSystem(conf);
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(path, false), StandardCharsets.UTF_8));
+		try {
+			for (Map.Entry<String, Pi0AlphaBetaCountTuple> group : coefficients.entrySet()) {
+				Pi0AlphaBetaCountTuple c = group.getValue();
+				double cutoff = MapReduceSignificantFindings.CheckSignificanceMapper.computeSignificancePValueCutoff(
+						c.getPi0(), c.getAlpha(), c.getBeta(), significanceQValueCutoff);
+				loosest = Math.max(loosest, cutoff);
+				writer.write(group.getKey() + "\t" + cutoff);
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+		return loosest;
+	}
+
+	/**
+	 * Reads a table written by writeCutoffs, keyed by Text so that a mapper can look up the group of each row in place.
+	 */
+	public static Map<Text, Double> readCutoffs(InputStream in) throws IOException {
+
+		Map<Text, Double> cutoffs = new HashMap<Text, Double>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.lastIndexOf('\t');
+				if (tab >= 0) cutoffs.put(new Text(line.substring(0, tab)), Double.valueOf(line.substring(tab + 1)));
+			}
+		} finally {
+			reader.close();
+		}
+		return cutoffs;
+	}
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+/**
+ * Updates the fitted models with a new batch of p-values, merging the batch into the state a previous fitting job
+ * left behind rather than refitting the whole history, so an update costs in proportion to the batch.
+ *
+ * The state of each model (one, or one per group) is what the fitting job writes anyway.  In block mode it is the
+ * coefficients line itself, whose count of the p-values fit makes the averages of two runs merge exactly as the blocks
+ * of one run do.  In sketch mode it is also the merged histogram behind the fit, which the reducer writes to the
+ * fitState-r-* SequenceFiles next to the coefficients.  With PREVIOUS_FIT pointing at the output of the last run, that
+ * state is read as a second input beside the new batch and shuffled into the same reducers, and every fit starts from
+ * the model's previous coefficients.  Each run's output is the state for the next one; the histogramBins and the fitMode
+ * must stay the same from run to run.
+ *
+ * @author Will Findley
+ */
+public class IncrementalFit {
+
+	// job configuration key for the output directory of the previous fitting job, whose models the new input updates
+	public static final String PREVIOUS_FIT = "previousFit";
+	// the named output of the merged sketch mode histograms, and so the prefix of their files
+	public static final String FIT_STATE_OUTPUT = "fitState";
+
+	private IncrementalFit() {
+	}
+
+	public static void addFitStateOutput(Job job) {
+
+		MultipleOutputs.addNamedOutput(job, FIT_STATE_OUTPUT, SequenceFileOutputFormat.class, Text.class, PValueHistogram.class);
+	}
+
+	/**
+	 * Reads the new input with its own input format and mapper, and the previous run's state in PREVIOUS_FIT beside it.
+	 *
+	 * @throws IOException if the previous run left no state for this fit mode
+	 */
+	public static void addInputs(Job job, Path input, Class<? extends InputFormat<?, ?>> inputFormat, Class<? extends Mapper<?, ?, ?, ?>> mapper,
+			boolean sketch) throws IOException {
+
+		Path previousFit = new Path(job.getConfiguration().get(PREVIOUS_FIT));
+		Path state = new Path(previousFit, sketch ? FIT_STATE_OUTPUT + "-r-*" : "part-r-*");
+		// a sketch mode run has coefficients lines too, but they are of one fit on the whole histogram rather than averages
+		Path sketchState = new Path(previousFit, FIT_STATE_OUTPUT + "-r-*");
+		FileSystem fs = state.getFileSystem(job.getConfiguration());
+		if (!hasFiles(fs, state) || (!sketch && hasFiles(fs, sketchState))) {
+			throw new IOException("no " + (sketch ? "sketch" : "block") + " mode fit state in " + previousFit);
+		}
+
+		MultipleInputs.addInputPath(job, input, inputFormat, mapper);
+		if (sketch) {
+			// the histograms go straight to the combiners and reducers as they are
+			MultipleInputs.addInputPath(job, state, SequenceFileInputFormat.class, Mapper.class);
+		} else {
+			MultipleInputs.addInputPath(job, state, TextInputFormat.class, PreviousCoefficientsMapping.class);
+		}
+	}
+
+	private static boolean hasFiles(FileSystem fs, Path glob) throws IOException {
+
+		FileStatus[] files = fs.globStatus(glob);
+		return files != null && files.length > 0;
+	}
+
+	/**
+	 * @return the previous coefficients of every model, by its reducer key, or none unless the job has a PREVIOUS_FIT
+	 */
+	public static Map<String, Pi0AlphaBetaCountTuple> readPreviousCoefficients(Configuration conf) throws IOException {
+
+		String previousFit = conf.get(PREVIOUS_FIT);
+		if (previousFit == null) return Collections.emptyMap();
+		return GroupedFdr.readCoefficients(conf, new Path(previousFit));
+	}
+
+	/**
+	 * @return a copy of the coefficients of the tuple, to start a fit from
+	 */
+	public static double[] startingCoefficients(Pi0AlphaBetaCountTuple previous) {
+
+		return new double[] {previous.getPi0(), previous.getAlpha(), previous.getBeta()};
+	}
+
+	/**
+	 * Passes the coefficients lines of a previous block mode run on to the averaging combiners and reducers, keyed as
+	 * the job's own block fits are.
+	 */
+	public static class PreviousCoefficientsMapping extends Mapper<LongWritable, Text, Text, Pi0AlphaBetaCountTuple> {
+
+		private Text model = new Text();
+
+		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+
+			String line = value.toString();
+			int tab = line.indexOf('\t');
+			if (tab < 0) return;
+			model.set(line.substring(0, tab));
+			context.write(model, Pi0AlphaBetaCountTuple.parse(line.substring(tab + 1)));
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * Fits the BUM coefficients by Levenberg-Marquardt least squares on the CDF residuals,
+ * minimizing the (weighted) sum of squared differences between the empirical and model CDFs.
+ *
+ * @author Will Findley
+ */
+public class LevenbergMarquardtBumFitter extends DampedNewtonBumFitter {
+
+	private final BumModel bumModel = new BumModel();
+	private final double[] cdfGradient = new double[3];
+
+	protected double evaluate(EmpiricalCdf ecdf, double[] coeffs, double[] descent, double[] hessian) {
+
+		double[] pValues = ecdf.getPValues();
+		double[] cdfValues = ecdf.getCdfValues();
+		double[] weights = ecdf.getWeights();
+		boolean withDerivatives = descent != null;
+
+		double sumOfSquares = 0;
+		// J^T W r and the Gauss-Newton Hessian J^T W J, J being dF/dcoeffs
+		double g0 = 0, g1 = 0, g2 = 0;
+		double h00 = 0, h01 = 0, h02 = 0, h11 = 0, h12 = 0, h22 = 0;
+		for (int i = 0; i < pValues.length; i++) {
+			double w = (weights == null) ? 1 : weights[i];
+			if (w == 0) continue;
+
+			double residual;
+			if (withDerivatives) {
+				residual = cdfValues[i] - bumModel.cdfWithGradient(pValues[i], coeffs, cdfGradient);
+				double j0 = cdfGradient[0];
+				double j1 = cdfGradient[1];
+				double j2 = cdfGradient[2];
+				g0 += w * residual * j0;
+				g1 += w * residual * j1;
+				g2 += w * residual * j2;
+				h00 += w * j0 * j0;
+				h01 += w * j0 * j1;
+				h02 += w * j0 * j2;
+				h11 += w * j1 * j1;
+				h12 += w * j1 * j2;
+				h22 += w * j2 * j2;
+			} else {
+				residual = cdfValues[i] - bumModel.cdf(pValues[i], coeffs[0], coeffs[1], coeffs[2]);
+			}
+			sumOfSquares += w * residual * residual;
+		}
+
+		if (withDerivatives) {
+			descent[0] = g0;
+			descent[1] = g1;
+			descent[2] = g2;
+			hessian[0] = h00; hessian[1] = h01; hessian[2] = h02;
+			hessian[3] = h01; hessian[4] = h11; hessian[5] = h12;
+			hessian[6] = h02; hessian[7] = h12; hessian[8] = h22;
+		}
+		return sumOfSquares;
+	}
+}
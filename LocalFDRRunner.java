@@ -0,0 +1,514 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Runs the BUM fit and the significance filter on one machine, without a cluster, for data sets that fit on a
+ * single big box.
+ *
+ * The input files are memory-mapped and cut into chunks that play the part of input splits: each chunk is parsed and
+ * fit by its own task on a fork-join pool, exactly as a mapper would fit its split, and the chunk results are
+ * combined with the reducers' logic.  The filter pass then runs over the same chunks in parallel, each chunk writing
+ * its significant findings to its own part file.  The output directory ends up laid out like FDRPipelineDriver's, with
+ * the coefficients in coefficients/part-r-00000 and the significant findings in significant/part-m-*.
+ *
+ * The job settings of MapReduceCDFFalseDiscoveryRate and MapReduceSignificantFindings apply here as well.
+ *
+ * @author Will Findley
+ */
+public class LocalFDRRunner extends Configured implements Tool {
+
+	// configuration key for the number of worker threads, all available processors by default
+	public static final String NUM_THREADS = "localThreads";
+	// configuration key for the most bytes of input in one chunk
+	public static final String CHUNK_SIZE = "localChunkSize";
+	public static final long DEFAULT_CHUNK_SIZE = 32L << 20;
+
+	// chunks are made small enough that every thread gets several, to even out their running times
+	private static final int CHUNKS_PER_THREAD = 4;
+	private static final long MIN_CHUNK_SIZE = 1L << 20;
+
+	public static void main(String[] args) throws Exception {
+
+		// pull out the -D job settings first so that only the positional args are counted
+		Configuration conf = new Configuration();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+		if (args.length != 4) {
+			System.out.println("\n" +
+					"This program fits the BUM model and finds the significant p-value entries on this machine's cores, without mapreduce \n" +
+					"Usage is: \n\n" +
+					"hadoop jar [jarFile] LocalFDRRunner [args0] [args1] [args2] [args3] \n\n" +
+					"args0 - local input file or directory of p-values \n" +
+					"args1 - local output directory, the coefficients are written to args1/" + FDRPipelineDriver.COEFFICIENTS_DIR +
+					" and the significant findings to args1/" + FDRPipelineDriver.SIGNIFICANT_FINDINGS_DIR + " \n" +
+					"args2 - number of p-values for each independent BUM fit \n" +
+					"args3 - false discovery rate cutoff for significance, a single one \n\n" +
+					"-D localThreads=[n] number of worker threads (default all processors) \n" +
+					"-D localChunkSize=[bytes] most input parsed by one task (default 32MB) \n" +
+					"-D pValueFormat, fitMode=block or sketch, histogramBins, fitOptimizer, miniBatchSize, fitQuantileKnots, fitStarts, \n" +
+					"   fitThreads, fitMaxEpochs, fitTimeLimitMillis, minLeftoverFit and annotateQValues work as in the mapreduce jobs; \n" +
+					"   grouped, iterative, incremental, bootstrap, indexed, fit aligned and ordered runs are mapreduce only \n"
+					);
+			return;
+		}
+		int res = ToolRunner.run(conf, new LocalFDRRunner(), args);
+		System.exit(res);
+	}
+
+	public int run(String[] args) throws Exception {
+
+		final Configuration conf = this.getConf();
+		final boolean binary = PValueRecord.isBinaryFormat(conf);
+		final int numSamplesForFit = Integer.parseInt(args[2]);
+		checkOptions(conf);
+		double[] significanceQValueCutoffs = SignificanceThresholds.parseQValueCutoffs(args[3]);
+		if (significanceQValueCutoffs.length > 1) {
+			throw new IllegalArgumentException("the local runner takes a single q-value cutoff: " + args[3]);
+		}
+		double significanceQValueCutoff = significanceQValueCutoffs[0];
+		int numThreads = conf.getInt(NUM_THREADS, Runtime.getRuntime().availableProcessors());
+
+		File coefficientsDir = new File(args[1], FDRPipelineDriver.COEFFICIENTS_DIR);
+		File significantDir = new File(args[1], FDRPipelineDriver.SIGNIFICANT_FINDINGS_DIR);
+		if (new File(args[1]).exists()) {
+			throw new IOException("Output directory " + args[1] + " already exists");
+		}
+		if (!coefficientsDir.mkdirs() || !significantDir.mkdirs()) {
+			throw new IOException("Could not create output directory " + args[1]);
+		}
+
+		List<InputChunk> chunks = splitInput(new File(args[0]), binary, conf.getLong(CHUNK_SIZE, DEFAULT_CHUNK_SIZE), numThreads);
+		final AtomicLong malformedRows = new AtomicLong();
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			// the fit pass, one task per chunk as one mapper per split
+			Pi0AlphaBetaCountTuple coefficients = new Pi0AlphaBetaCountTuple();
+			if (MapReduceCDFFalseDiscoveryRate.SKETCH_FIT_MODE.equals(conf.get(MapReduceCDFFalseDiscoveryRate.FIT_MODE, MapReduceCDFFalseDiscoveryRate.BLOCK_FIT_MODE))) {
+				final int numBins = conf.getInt(PValueHistogram.NUM_BINS, PValueHistogram.DEFAULT_NUM_BINS);
+				List<Callable<PValueHistogram>> tasks = new ArrayList<Callable<PValueHistogram>>();
+				for (final InputChunk chunk : chunks) {
+					tasks.add(new Callable<PValueHistogram>() {
+						public PValueHistogram call() throws IOException {
+							return sketchChunk(chunk, numBins, malformedRows);
+						}
+					});
+				}
+				PValueHistogram merged = new PValueHistogram(numBins);
+				for (PValueHistogram histogram : invokeAll(pool, tasks)) {
+					merged.merge(histogram);
+				}
+				BumFitter fitter = BumFitters.create(conf, BumFitters.LEVENBERG_MARQUARDT_OPTIMIZER);
+				EmpiricalCdf ecdf = merged.toEmpiricalCdf();
+				double[] coeffs = fitter.fit(ecdf, fitter.startingCoefficients(ecdf)).getCoeffs();
+				BumFitters.close(fitter);
+				coefficients.setPi0(coeffs[0]);
+				coefficients.setAlpha(coeffs[1]);
+				coefficients.setBeta(coeffs[2]);
+				coefficients.setCount(merged.getTotal());
+			} else {
+				List<Callable<List<Pi0AlphaBetaCountTuple>>> tasks = new ArrayList<Callable<List<Pi0AlphaBetaCountTuple>>>();
+				for (final InputChunk chunk : chunks) {
+					tasks.add(new Callable<List<Pi0AlphaBetaCountTuple>>() {
+						public List<Pi0AlphaBetaCountTuple> call() throws IOException {
+							BumFitter fitter = BumFitters.create(conf, BumFitters.SGD_OPTIMIZER);
+							try {
+								return fitChunk(chunk, numSamplesForFit, conf.getInt(EmpiricalCdf.QUANTILE_KNOTS, 0),
+										conf.getInt(MapReduceCDFFalseDiscoveryRate.MIN_LEFTOVER_FIT,
+												MapReduceCDFFalseDiscoveryRate.DEFAULT_MIN_LEFTOVER_FIT),
+										fitter, malformedRows);
+							} finally {
+								BumFitters.close(fitter);
+							}
+						}
+					});
+				}
+				List<Pi0AlphaBetaCountTuple> blockFits = new ArrayList<Pi0AlphaBetaCountTuple>();
+				for (List<Pi0AlphaBetaCountTuple> chunkFits : invokeAll(pool, tasks)) {
+					blockFits.addAll(chunkFits);
+				}
+				if (blockFits.isEmpty()) {
+					throw new IOException("No block of " + numSamplesForFit + " p-values to fit in " + args[0]);
+				}
+				MapReduceCDFFalseDiscoveryRate.FDRModelAveragingReducer.average(blockFits, coefficients);
+			}
+			writeText(new File(coefficientsDir, "part-r-00000"), "BUM coefficients\t" + coefficients + "\n");
+			System.out.println("BUM coefficients\t" + coefficients);
+
+			// the filter pass, with the cutoff and any q-value table computed once for every task
+			final double significancePValueCutoff = MapReduceSignificantFindings.CheckSignificanceMapper.computeSignificancePValueCutoff(
+					coefficients.getPi0(), coefficients.getAlpha(), coefficients.getBeta(), significanceQValueCutoff);
+			System.out.println("Significance p-value cutoff: " + significancePValueCutoff);
+			final QValueTable table = conf.getBoolean(MapReduceSignificantFindings.ANNOTATE_Q_VALUES, false)
+					? QValueTable.tabulate(coefficients.getPi0(), coefficients.getAlpha(), coefficients.getBeta(), QValueTable.DEFAULT_NUM_POINTS)
+					: null;
+			List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+			for (int i = 0; i < chunks.size(); i++) {
+				final InputChunk chunk = chunks.get(i);
+				final File partFile = new File(significantDir, String.format("part-m-%05d", i));
+				tasks.add(new Callable<Long>() {
+					public Long call() throws IOException {
+						return filterChunk(chunk, significancePValueCutoff, table, partFile);
+					}
+				});
+			}
+			long significant = 0;
+			for (Long count : invokeAll(pool, tasks)) {
+				significant += count;
+			}
+			System.out.println("Significant findings: " + significant);
+			System.out.println("Malformed rows: " + malformedRows.get());
+		} finally {
+			pool.shutdown();
+		}
+		return 0;
+	}
+
+	/**
+	 * Cuts the input file, or every file in the input directory, into chunks of at most maxChunkSize bytes,
+	 * smaller if that gives every thread several chunks.
+	 */
+	static List<InputChunk> splitInput(File input, boolean binary, long maxChunkSize, int numThreads) throws IOException {
+
+		File[] files;
+		if (input.isDirectory()) {
+			// skip the _SUCCESS markers and hidden checksum files of a job's output, as FileInputFormat does
+			List<File> visible = new ArrayList<File>();
+			for (File file : input.listFiles()) {
+				if (file.isFile() && !file.getName().startsWith("_") && !file.getName().startsWith(".")) visible.add(file);
+			}
+			files = visible.toArray(new File[visible.size()]);
+			Arrays.sort(files);
+		} else if (input.isFile()) {
+			files = new File[] {input};
+		} else {
+			throw new IOException("Input path " + input + " does not exist");
+		}
+
+		long totalSize = 0;
+		for (File file : files) {
+			totalSize += file.length();
+		}
+		long chunkSize = Math.min(maxChunkSize, Math.max(MIN_CHUNK_SIZE, totalSize / ((long) numThreads * CHUNKS_PER_THREAD)));
+
+		List<InputChunk> chunks = new ArrayList<InputChunk>();
+		for (File file : files) {
+			long length = file.length();
+			if (binary) {
+				// chunks hold whole records, after the header
+				long numRecords = PValueRecordInputFormat.numRecords(length);
+				long recordsPerChunk = Math.max(1, chunkSize / PValueRecord.RECORD_SIZE);
+				for (long first = 0; first < numRecords; first += recordsPerChunk) {
+					long end = Math.min(numRecords, first + recordsPerChunk);
+					chunks.add(new InputChunk(file, PValueRecordInputFormat.HEADER_SIZE + first * PValueRecord.RECORD_SIZE,
+							PValueRecordInputFormat.HEADER_SIZE + end * PValueRecord.RECORD_SIZE, true));
+				}
+			} else {
+				for (long start = 0; start < length; start += chunkSize) {
+					chunks.add(new InputChunk(file, start, Math.min(length, start + chunkSize), false));
+				}
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Rejects the settings of the mapreduce jobs this runner does not implement, rather than quietly running without them.
+	 */
+	public static void checkOptions(Configuration conf) {
+
+		String fitMode = conf.get(MapReduceCDFFalseDiscoveryRate.FIT_MODE, MapReduceCDFFalseDiscoveryRate.BLOCK_FIT_MODE);
+		if (!MapReduceCDFFalseDiscoveryRate.BLOCK_FIT_MODE.equals(fitMode) && !MapReduceCDFFalseDiscoveryRate.SKETCH_FIT_MODE.equals(fitMode)) {
+			throw new IllegalArgumentException("the local runner only fits in " + MapReduceCDFFalseDiscoveryRate.FIT_MODE + "="
+					+ MapReduceCDFFalseDiscoveryRate.BLOCK_FIT_MODE + " or " + MapReduceCDFFalseDiscoveryRate.SKETCH_FIT_MODE + ", not " + fitMode);
+		}
+		String[] mapReduceOnly = {GroupedFdr.GROUPED, GroupedFdr.GROUP_COEFFICIENTS, IncrementalFit.PREVIOUS_FIT,
+				BootstrapIntervals.REPLICATES, PValueIndex.BUILD, PValueIndex.INDEX, FitAlignedInputFormat.FIT_ALIGNED};
+		for (String key : mapReduceOnly) {
+			String value = conf.get(key);
+			if (value != null && !value.equals("false") && !value.equals("0")) {
+				throw new IllegalArgumentException(key + " is not supported by the local runner");
+			}
+		}
+		String outputOrder = conf.get(MapReduceSignificantFindings.OUTPUT_ORDER, MapReduceSignificantFindings.UNSORTED_ORDER);
+		if (!MapReduceSignificantFindings.UNSORTED_ORDER.equals(outputOrder)) {
+			throw new IllegalArgumentException(MapReduceSignificantFindings.OUTPUT_ORDER + "=" + outputOrder + " is not supported by the local runner");
+		}
+	}
+
+	/**
+	 * Fits every complete block of numSamplesForFit p-values in the chunk, and the leftover block if it holds at least
+	 * minLeftoverFit, the same way FDRCalculationMapping does.
+	 */
+	static List<Pi0AlphaBetaCountTuple> fitChunk(InputChunk chunk, int numSamplesForFit, int numKnots, int minLeftoverFit,
+			BumFitter fitter, AtomicLong malformedRows) throws IOException {
+
+		List<Pi0AlphaBetaCountTuple> fits = new ArrayList<Pi0AlphaBetaCountTuple>();
+		double[] block = new double[numSamplesForFit];
+		double[] cdfValues = new double[numSamplesForFit];
+		int filled = 0;
+		long malformed = 0;
+		ChunkScanner scanner = new ChunkScanner(chunk);
+		while (scanner.next()) {
+			double pValue = scanner.pValue();
+			if (Double.isNaN(pValue)) {
+				malformed++;
+				continue;
+			}
+			block[filled++] = pValue;
+			if (filled == numSamplesForFit) {
+				fits.add(fitBlock(fitter, block, cdfValues, numKnots));
+				filled = 0;
+			}
+		}
+		if (filled > 0 && filled >= minLeftoverFit) {
+			fits.add(fitBlock(fitter, Arrays.copyOf(block, filled), new double[filled], numKnots));
+		}
+		malformedRows.addAndGet(malformed);
+		return fits;
+	}
+
+	private static Pi0AlphaBetaCountTuple fitBlock(BumFitter fitter, double[] block, double[] cdfValues, int numKnots) {
+
+		double[] coeffs = MapReduceCDFFalseDiscoveryRate.FDRCalculationMapping.fitBlock(fitter, block, cdfValues, numKnots, null).getCoeffs();
+		Pi0AlphaBetaCountTuple fit = new Pi0AlphaBetaCountTuple();
+		fit.setPi0(coeffs[0]);
+		fit.setAlpha(coeffs[1]);
+		fit.setBeta(coeffs[2]);
+		fit.setCount(block.length);
+		return fit;
+	}
+
+	/**
+	 * Adds every p-value in the chunk to a histogram, the same way HistogramMapping does.
+	 */
+	static PValueHistogram sketchChunk(InputChunk chunk, int numBins, AtomicLong malformedRows) throws IOException {
+
+		PValueHistogram histogram = new PValueHistogram(numBins);
+		long malformed = 0;
+		ChunkScanner scanner = new ChunkScanner(chunk);
+		while (scanner.next()) {
+			if (!histogram.add(scanner.pValue())) malformed++;
+		}
+		malformedRows.addAndGet(malformed);
+		return histogram;
+	}
+
+	/**
+	 * Writes the rows of the chunk with p-values up to the cutoff to partFile, as CheckSignificanceMapper does, or as
+	 * AnnotateSignificanceMapper does when there is a q-value table.
+	 *
+	 * @return the number of significant findings written
+	 */
+	static long filterChunk(InputChunk chunk, double significancePValueCutoff, QValueTable table, File partFile) throws IOException {
+
+		long significant = 0;
+		PValueRecord record = new PValueRecord();
+		AnnotatedPValue annotated = new AnnotatedPValue();
+		ChunkScanner scanner = new ChunkScanner(chunk);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(partFile), 1 << 16);
+		try {
+			while (scanner.next()) {
+				double pValue = scanner.pValue();
+				// NaN, for malformed rows, is never significant
+				if (!(pValue <= significancePValueCutoff)) continue;
+
+				if (table != null) {
+					if (!scanner.fillRecord(record)) continue;
+					annotated.set(record.getId(), pValue, table.qValue(pValue), table.localFdr(pValue));
+					out.write(annotated.toString().getBytes(StandardCharsets.UTF_8));
+				} else if (chunk.binary) {
+					out.write(scanner.record.toString().getBytes(StandardCharsets.UTF_8));
+				} else {
+					out.write(scanner.line, 0, scanner.lineLength);
+				}
+				out.write('\n');
+				significant++;
+			}
+		} finally {
+			out.close();
+		}
+		return significant;
+	}
+
+	private static void writeText(File file, String text) throws IOException {
+
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes(StandardCharsets.UTF_8));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Runs the tasks on the pool and returns their results in order, rethrowing the first failure.
+	 */
+	private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) throws IOException {
+
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> future : pool.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the local tasks", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException("A local task failed", e.getCause());
+		}
+		return results;
+	}
+
+	/**
+	 * A byte range of one input file, playing the part of an input split.  Binary chunks start and end on record
+	 * boundaries.  Text chunks hold the lines that start inside them, so a line crossing the end belongs to this chunk
+	 * and not the next.
+	 */
+	static class InputChunk {
+
+		final File file;
+		final long start;
+		final long end;
+		final boolean binary;
+
+		InputChunk(File file, long start, long end, boolean binary) {
+
+			this.file = file;
+			this.start = start;
+			this.end = end;
+			this.binary = binary;
+		}
+	}
+
+	/**
+	 * Steps through the rows of one memory-mapped chunk.  After next, an xml row's bytes are in line and a binary
+	 * row is in record.
+	 */
+	static class ChunkScanner {
+
+		private final boolean binary;
+		private final MappedByteBuffer buffer;
+		// the positions in buffer where this chunk's rows start and stop
+		private int position;
+		private final int end;
+
+		byte[] line = new byte[256];
+		int lineLength = 0;
+		final PValueRecord record = new PValueRecord();
+		private final byte[] recordBytes = new byte[PValueRecord.RECORD_SIZE];
+
+		ChunkScanner(InputChunk chunk) throws IOException {
+
+			this.binary = chunk.binary;
+			RandomAccessFile file = new RandomAccessFile(chunk.file, "r");
+			try {
+				FileChannel channel = file.getChannel();
+				if (binary) {
+					byte[] header = new byte[PValueRecordInputFormat.HEADER_SIZE];
+					MappedByteBuffer headerBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(header.length, channel.size()));
+					if (headerBuffer.remaining() < header.length) {
+						throw new IOException(chunk.file + " is too short to be a binary p-value file");
+					}
+					headerBuffer.get(header);
+					PValueRecordInputFormat.checkHeader(header, chunk.file.toString());
+
+					buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+					position = 0;
+					end = buffer.limit();
+				} else {
+					// map from the byte before the chunk, to see whether the chunk starts a line, to as far as the last
+					// line could run on
+					long mapStart = Math.max(0, chunk.start - 1);
+					long mapLength = Math.min(channel.size() - mapStart, Integer.MAX_VALUE);
+					buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapLength);
+					end = (int) (chunk.end - mapStart);
+					position = 0;
+					if (chunk.start > 0) {
+						// skip the rest of a line that started in the chunk before
+						byte previous = buffer.get(0);
+						position = 1;
+						if (previous != '\n') {
+							while (position < buffer.limit() && buffer.get(position) != '\n') position++;
+							position++;
+						}
+					}
+				}
+			} finally {
+				// the mapping stays valid after the file is closed
+				file.close();
+			}
+		}
+
+		boolean next() {
+
+			if (position >= end) return false;
+			if (binary) {
+				buffer.position(position);
+				buffer.get(recordBytes);
+				record.decode(recordBytes, 0);
+				position += PValueRecord.RECORD_SIZE;
+				return true;
+			}
+
+			int limit = buffer.limit();
+			int length = 0;
+			while (position < limit) {
+				byte b = buffer.get(position++);
+				if (b == '\n') break;
+				if (length == line.length) line = Arrays.copyOf(line, 2 * line.length);
+				line[length++] = b;
+			}
+			// as with LineRecordReader, a carriage return before the newline is not part of the line
+			if (length > 0 && line[length - 1] == '\r') length--;
+			lineLength = length;
+			return true;
+		}
+
+		/**
+		 * @return the p-value of the current row, or NaN if it has none between 0 and 1
+		 */
+		double pValue() {
+
+			if (binary) return PValueParser.parsePValue(record);
+			return PValueParser.parsePValue(line, 0, lineLength);
+		}
+
+		/**
+		 * Fills record with the id, p-value and truth of the current row.
+		 *
+		 * @return false if the current xml row is malformed
+		 */
+		boolean fillRecord(PValueRecord target) {
+
+			if (binary) {
+				target.setId(record.getId());
+				target.setPValue(record.getPValue());
+				target.setTrueFinding(record.isTrueFinding());
+				return true;
+			}
+			return PValueParser.parseRecord(line, 0, lineLength, target);
+		}
+	}
+}
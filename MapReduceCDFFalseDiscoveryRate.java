@@ -1,17 +1,25 @@
-import org.apache.commons.math3.distribution.BetaDistribution;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Random;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.io.IOException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
@@ -19,8 +27,50 @@ import org.apache.hadoop.util.ToolRunner;
 
 public class MapReduceCDFFalseDiscoveryRate extends Configured implements Tool {
 
+	// job configuration key choosing between BLOCK_FIT_MODE (the default) and SKETCH_FIT_MODE
+	public static final String FIT_MODE = "fitMode";
+	// every mapper fits its own blocks of numSamplesForFit p-values and the reducer averages their coefficients
+	public static final String BLOCK_FIT_MODE = "block";
+	// mappers only build p-value histograms that are merged and fit once by a single reducer
+	public static final String SKETCH_FIT_MODE = "sketch";
+	// block mode run over and over in short rounds, each warm started from the average of the one before
+	public static final String ITERATIVE_FIT_MODE = "iterative";
+	// job configuration keys for the most rounds of ITERATIVE_FIT_MODE, the epochs of every fit in a round, and the
+	// largest relative change of any coefficient from one round to the next that counts as converged
+	public static final String MAX_ROUNDS = "iterativeMaxRounds";
+	public static final int DEFAULT_MAX_ROUNDS = 20;
+	public static final String ROUND_EPOCHS = "iterativeRoundEpochs";
+	public static final int DEFAULT_ROUND_EPOCHS = 3;
+	public static final String ROUND_TOLERANCE = "iterativeTolerance";
+	public static final double DEFAULT_ROUND_TOLERANCE = 0.01;
+	// job configuration keys for the global coefficients every block fit of a round starts from
+	public static final String GLOBAL_PI0 = "globalPi0";
+	public static final String GLOBAL_ALPHA = "globalAlpha";
+	public static final String GLOBAL_BETA = "globalBeta";
+	// job configuration key for the fewest p-values a block mode mapper's leftover block, or a group's, may hold and still
+	// be fit when the mapper finishes
+	public static final String MIN_LEFTOVER_FIT = "minLeftoverFit";
+	public static final int DEFAULT_MIN_LEFTOVER_FIT = 100;
+
+	private static final Log LOG = LogFactory.getLog(MapReduceCDFFalseDiscoveryRate.class);
+
+	// the job the last run submitted, none for ITERATIVE_FIT_MODE whose rounds each run their own
+	private Job job;
+
+	/**
+	 * @return the job the last run submitted, e.g. for its counters, or null if it has not submitted one
+	 */
+	public Job getJob() {
+
+		return this.job;
+	}
+
 	public static void main(String[] args) throws Exception {
 
+		// pull out the -D job settings first so that only the positional args are counted
+		Configuration conf = new Configuration();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
 		if (args.length != 3) {
 			System.out.println("\n" + 
 					"This program runs a mapreduce to determine the coefficients for a beta-uniform model of the p-value CDF \n" +  
@@ -28,200 +78,620 @@ public class MapReduceCDFFalseDiscoveryRate extends Configured implements Tool {
 					"hadoop jar [jarFile] MapReduceCDFFalseDiscoveryRate [args0] [args1] [args2] \n\n" + 
 					"args0 - input path of p-values \n" +
 					"args1 - output path of coefficients \n" +
-					"args2 - number of p-values for each map's independent BUM fit \n"
+					"args2 - number of p-values for each map's independent BUM fit \n\n" +
+					"-D pValueFormat=binary reads fixed-width binary p-value records instead of xml rows \n" +
+					"-D fitMode=sketch merges p-value histograms from every mapper and fits one global model (args2 is then ignored) \n" +
+					"-D fitMode=iterative runs block mode in rounds of -D iterativeRoundEpochs=[n] (default 3) epochs, each warm started from the last round's average, \n" +
+					"   until no coefficient changes by more than -D iterativeTolerance=[x] (default 0.01) or after -D iterativeMaxRounds=[n] (default 20) \n" +
+					"-D fitOptimizer=[sgd|minibatch|lm|mle] chooses the fitter: per-p-value SGD (the default for blocks), mini-batch gradient descent, \n" +
+					"   Levenberg-Marquardt least squares on the CDF (the default for sketches) or maximum likelihood of the BUM density \n" +
+					"-D fitQuantileKnots=[n] fits each block on n weighted quantile knots crowded towards p = 0 instead of every p-value (default 0, every p-value) \n" +
+					"-D fitAlignedInput=true packs the input into splits of whole blocks, as many as a task fits in -D fitAlignedTaskSeconds=[s] (default 60) \n" +
+					"   at -D fitAlignedRowsPerSecond=[n] (default 20000) \n" +
+					"-D minLeftoverFit=[n] fewest p-values left at the end of a split that are still fit as a block, in grouped mode too (default 100) \n" +
+					"-D miniBatchSize=[n] p-values per minibatch gradient step (default 1000, 0 is full batch) \n" +
+					"-D buildPValueIndex=true also writes the p-value range of every 1MB stripe of the input (-D pValueIndexStripeSize=[bytes]) next to the coefficients \n" +
+					"-D fitStarts=[n] concurrent starting points of every fit, keeping the best (default 1) \n" +
+					"-D fitThreads=[n] threads the starts of one fit share (default all processors) \n" +
+					"-D fitMaxEpochs=[n] and -D fitTimeLimitMillis=[ms] cap every fit, which then reports as not converged (default no caps) \n" +
+					"-D previousFit=[dir] updates the models of the fitting job whose output is in dir with the new input only, starting from their coefficients \n" +
+					"-D bootstrapReplicates=[n] with fitMode=sketch also writes -D bootstrapConfidence=[x] (default 0.95) percentile intervals of the coefficients \n" +
+					"   and of the p-value cutoff at -D bootstrapQValueCutoff=[q] (default 0.05) from n Poisson bootstrap replicates, to bootstrap-r-00000 \n" +
+					"-D groupedFit=true fits one model per group, the g attribute of each xml row, over all of the job's reducers (-D mapreduce.job.reduces=[n]) \n"
 					);
 			return;
 		}
-		int res = ToolRunner.run(new Configuration(), new MapReduceCDFFalseDiscoveryRate(), args);
+		int res = ToolRunner.run(conf, new MapReduceCDFFalseDiscoveryRate(), args);
 		System.exit(res);
 	}
 
 	public int run(String[] args) throws Exception {
 
 		Configuration conf = this.getConf();
+		if (ITERATIVE_FIT_MODE.equals(conf.get(FIT_MODE))) return runRounds(conf, args);
 		
 		conf.set("numSamplesForFit", args[2]);
 
-		Job job = Job.getInstance(conf, "MapReduceCDFFalseDiscoveryRate");
+		job = Job.getInstance(conf, "MapReduceCDFFalseDiscoveryRate");
 		job.setJarByClass(MapReduceCDFFalseDiscoveryRate.class);
 
 		job.setJobName("calcBUM");
 		
-		job.setMapperClass(FDRCalculationMapping.class);
-		job.setCombinerClass(FDRModelAveragingReducer.class);
-		job.setReducerClass(FDRModelAveragingReducer.class);
-	
-		job.setMapOutputKeyClass(Text.class);
-		job.setMapOutputValueClass(Pi0AlphaBetaCountTuple.class);
+		// grouped fits are keyed by their group, which only xml rows have
+		boolean grouped = GroupedFdr.isGrouped(conf);
+		if (grouped && PValueRecord.isBinaryFormat(conf)) {
+			throw new IllegalArgumentException(GroupedFdr.GROUPED + " needs the g attribute of xml rows, which binary records do not have");
+		}
+
+		boolean sketch = SKETCH_FIT_MODE.equals(conf.get(FIT_MODE, BLOCK_FIT_MODE));
+		if (sketch) {
+			job.setMapperClass(grouped ? GroupedHistogramMapping.class : HistogramMapping.class);
+			job.setCombinerClass(HistogramMergingCombiner.class);
+			job.setReducerClass(HistogramFittingReducer.class);
+			// the whole point is one fit on the merged global histogram, unless every group has its own
+			if (!grouped) job.setNumReduceTasks(1);
+
+			job.setMapOutputKeyClass(Text.class);
+			job.setMapOutputValueClass(PValueHistogram.class);
+			// the merged histograms, for the next run to update
+			IncrementalFit.addFitStateOutput(job);
+			if (BootstrapIntervals.numReplicates(conf) > 0) {
+				// the replicates have to meet the point estimate in the one reducer, and the earlier state has none
+				if (grouped || conf.get(IncrementalFit.PREVIOUS_FIT) != null) {
+					throw new IllegalArgumentException(BootstrapIntervals.REPLICATES + " needs a single global sketch, without " +
+							GroupedFdr.GROUPED + " or " + IncrementalFit.PREVIOUS_FIT);
+				}
+				BootstrapIntervals.addBootstrapOutput(job);
+			}
+		} else {
+			if (BootstrapIntervals.numReplicates(conf) > 0) {
+				throw new IllegalArgumentException(BootstrapIntervals.REPLICATES + " needs " + FIT_MODE + "=" + SKETCH_FIT_MODE +
+						", whose weighted histograms make each replicate one cheap fit");
+			}
+			job.setMapperClass(grouped ? GroupedFDRCalculationMapping.class : FDRCalculationMapping.class);
+			job.setCombinerClass(FDRModelAveragingReducer.class);
+			job.setReducerClass(FDRModelAveragingReducer.class);
+
+			job.setMapOutputKeyClass(Text.class);
+			job.setMapOutputValueClass(Pi0AlphaBetaCountTuple.class);
+		}
 
 		job.setOutputKeyClass(Text.class);
 		job.setOutputValueClass(Pi0AlphaBetaCountTuple.class);
+		// one line of metrics per fit, next to the coefficients
+		FitTelemetry.addFitMetricsOutput(job);
+		if (conf.getBoolean(PValueIndex.BUILD, false)) {
+			PValueIndex.addIndexOutput(job);
+		}
 
-		FileInputFormat.addInputPath(job, new Path(args[0]));
+		// xml text lines by default, or fixed-width binary records
+		Class<? extends InputFormat<?, ?>> inputFormat = PValueRecord.isBinaryFormat(conf) ? PValueRecordInputFormat.class : TextInputFormat.class;
+		if (FitAlignedInputFormat.isFitAligned(conf)) {
+			// the index is kept per file split, and the combined splits have none
+			if (conf.getBoolean(PValueIndex.BUILD, false)) {
+				throw new IllegalArgumentException(PValueIndex.BUILD + " can not be combined with " + FitAlignedInputFormat.FIT_ALIGNED);
+			}
+			inputFormat = FitAlignedInputFormat.class;
+		}
+		if (conf.get(IncrementalFit.PREVIOUS_FIT) != null) {
+			// the index needs the file splits of the input itself, which the multiple inputs wrap
+			if (conf.getBoolean(PValueIndex.BUILD, false)) {
+				throw new IllegalArgumentException(PValueIndex.BUILD + " can not be combined with " + IncrementalFit.PREVIOUS_FIT);
+			}
+			IncrementalFit.addInputs(job, new Path(args[0]), inputFormat, job.getMapperClass(), sketch);
+		} else {
+			job.setInputFormatClass(inputFormat);
+			FileInputFormat.addInputPath(job, new Path(args[0]));
+		}
 		FileOutputFormat.setOutputPath(job, new Path(args[1]));
 
 		return job.waitForCompletion(true) ? 0 : 1;
 	}
 
-	public static class FDRCalculationMapping extends Mapper<Object, Text, Text, Pi0AlphaBetaCountTuple> {
+	/**
+	 * Runs block mode jobs in rounds, every fit of a round starting from the global coefficients of the round before
+	 * and running only ROUND_EPOCHS epochs, until the coefficients settle.  Each round writes to a _round-n directory
+	 * of the output, which goes once the next round is read, and the last round's files are moved up into the output.
+	 */
+	private int runRounds(Configuration conf, String[] args) throws Exception {
+
+		if (GroupedFdr.isGrouped(conf) || conf.get(IncrementalFit.PREVIOUS_FIT) != null) {
+			throw new IllegalArgumentException(FIT_MODE + "=" + ITERATIVE_FIT_MODE + " fits one global model from scratch, without " +
+					GroupedFdr.GROUPED + " or " + IncrementalFit.PREVIOUS_FIT);
+		}
+		Path output = new Path(args[1]);
+		int maxRounds = conf.getInt(MAX_ROUNDS, DEFAULT_MAX_ROUNDS);
+		double tolerance = conf.getDouble(ROUND_TOLERANCE, DEFAULT_ROUND_TOLERANCE);
+
+		FileSystem fs = output.getFileSystem(conf);
+		Pi0AlphaBetaCountTuple global = null;
+		Path roundOutput = null;
+		for (int round = 1; round <= maxRounds; round++) {
+			Configuration roundConf = new Configuration(conf);
+			roundConf.set(FIT_MODE, BLOCK_FIT_MODE);
+			if (roundConf.get(FitBudget.MAX_EPOCHS) == null) {
+				roundConf.setInt(FitBudget.MAX_EPOCHS, conf.getInt(ROUND_EPOCHS, DEFAULT_ROUND_EPOCHS));
+			}
+			// the three coefficients are all a round needs, so they go in the configuration as the significance job's do
+			if (global != null) {
+				roundConf.set(GLOBAL_PI0, Double.toString(global.getPi0()));
+				roundConf.set(GLOBAL_ALPHA, Double.toString(global.getAlpha()));
+				roundConf.set(GLOBAL_BETA, Double.toString(global.getBeta()));
+			}
+			// the index only needs building once
+			if (round > 1) roundConf.setBoolean(PValueIndex.BUILD, false);
+
+			roundOutput = new Path(output, "_round-" + round);
+			String[] roundArgs = {args[0], roundOutput.toString(), args[2]};
+			if (ToolRunner.run(roundConf, new MapReduceCDFFalseDiscoveryRate(), roundArgs) != 0) return 1;
+
+			Pi0AlphaBetaCountTuple previous = global;
+			global = FDRPipelineDriver.readCoefficients(conf, roundOutput);
+			if (round > 1) fs.delete(new Path(output, "_round-" + (round - 1)), true);
+			double change = (previous == null) ? Double.POSITIVE_INFINITY : Math.max(relativeChange(previous.getPi0(), global.getPi0()),
+					Math.max(relativeChange(previous.getAlpha(), global.getAlpha()), relativeChange(previous.getBeta(), global.getBeta())));
+			LOG.info("Round " + round + "\t" + global + "\t change: " + change);
+			if (change <= tolerance) break;
+		}
+
+		// the last round's coefficients, metrics and index end up where a single job would have put them
+		for (FileStatus status : fs.listStatus(roundOutput)) {
+			fs.rename(status.getPath(), new Path(output, status.getPath().getName()));
+		}
+		fs.delete(roundOutput, true);
+		return 0;
+	}
+
+	private static double relativeChange(double previous, double current) {
+
+		return Math.abs(current - previous) / Math.max(Math.abs(previous), 1e-12);
+	}
+
+	public static class FDRCalculationMapping extends Mapper<Object, Writable, Text, Pi0AlphaBetaCountTuple> {
 
 		// allContribute is only one text entry because everything will be averaged together in the reducer 
 		private Text allContribute = new Text("BUM coefficients");
 		// stores the coefficients for the beta-uniform mixture in a tuple
 		private Pi0AlphaBetaCountTuple coeffAns = new Pi0AlphaBetaCountTuple();
-		// adds on p-value a p-value with each mapped xml line read until complete for BUM fit 
-		private ArrayList<Double> tmpPValues = new ArrayList<Double>();
+		// adds on p-value a p-value with each mapped xml line or binary record read until complete for BUM fit;
+		// the block's two primitive columns are allocated once and reused by every fit
+		private double[] pValues;
+		private double[] cdfValues;
+		private int numPValues = 0;
+		// the number of p-values to collect before doing the BUM fitting
+		private int numSamplesForFit;
+		// the configured fitting method, stochastic gradient descent unless the job asks otherwise
+		private BumFitter fitter;
+		// the quantile knots each block is compressed to, or 0 to fit every p-value
+		private int numKnots;
+		// the fewest p-values left over at the end of the split that are still fit as a block of their own
+		private int minLeftoverFit;
+		// counts the fits and writes their metrics
+		private FitTelemetry telemetry;
+		// the model's coefficients from the previous run, or null for the fitter's own starting point
+		private Pi0AlphaBetaCountTuple previous;
+		// the p-value range of each stripe of the split, or null unless the job builds the index
+		private PValueIndex.Builder index;
+		private Counter recordsParsed;
+		private Counter malformedRows;
+
+		public void setup(Context context) throws IOException, InterruptedException {
+
+			numSamplesForFit = Integer.parseInt(context.getConfiguration().get("numSamplesForFit"));
+			pValues = new double[numSamplesForFit];
+			cdfValues = new double[numSamplesForFit];
+			fitter = BumFitters.create(context.getConfiguration(), BumFitters.SGD_OPTIMIZER);
+			numKnots = context.getConfiguration().getInt(EmpiricalCdf.QUANTILE_KNOTS, 0);
+			minLeftoverFit = context.getConfiguration().getInt(MIN_LEFTOVER_FIT, DEFAULT_MIN_LEFTOVER_FIT);
+			telemetry = new FitTelemetry(context);
+			previous = IncrementalFit.readPreviousCoefficients(context.getConfiguration()).get(allContribute.toString());
+			// a round of ITERATIVE_FIT_MODE after the first starts from the last round's average instead
+			if (context.getConfiguration().get(GLOBAL_PI0) != null) {
+				previous = new Pi0AlphaBetaCountTuple();
+				previous.setPi0(context.getConfiguration().getDouble(GLOBAL_PI0, 0));
+				previous.setAlpha(context.getConfiguration().getDouble(GLOBAL_ALPHA, 0));
+				previous.setBeta(context.getConfiguration().getDouble(GLOBAL_BETA, 0));
+			}
+			index = PValueIndex.Builder.create(context);
+			recordsParsed = context.getCounter(FDRCounters.RECORDS_PARSED);
+			malformedRows = context.getCounter(FDRCounters.MALFORMED_ROWS);
+		}
 
-		public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+		public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
 
-			tmpPValues.add(transformXmlToPValues(value.toString()));
+			double pValue = PValueParser.parsePValue(value);
+			if (Double.isNaN(pValue)) {
+				malformedRows.increment(1);
+				return;
+			}
+			recordsParsed.increment(1);
+			if (index != null) index.add(key, pValue);
+			pValues[numPValues++] = pValue;
+
+			if (numPValues == numSamplesForFit) {
+				fitAndWrite(pValues, cdfValues, context);
+				// the fit is done with the buffers, so the next round of map reads can overwrite them
+				numPValues = 0;
+			}
+		}
 
-			// the number of p-values to collect before doing the BUM fitting
-			int numSamplesForFit = Integer.parseInt(context.getConfiguration().get("numSamplesForFit"));
-			if (tmpPValues.size() == numSamplesForFit) {
+		public void cleanup(Context context) throws IOException, InterruptedException {
 
-				double[][] pValues = calculateEmpiricalCDF(tmpPValues.toArray(new Double[numSamplesForFit]));
-				// now that the p-values have been used to compute their empirical CDF, re-initialize it for the next round of map reads
-				tmpPValues = new ArrayList<Double>();
+			// the split's last p-values make a block of their own if there are enough of them, and are counted otherwise
+			if (numPValues > 0 && numPValues >= minLeftoverFit) {
+				fitAndWrite(Arrays.copyOf(pValues, numPValues), new double[numPValues], context);
+			} else if (numPValues > 0) {
+				context.getCounter(FDRCounters.ROWS_NOT_FIT).increment(numPValues);
+			}
+			numPValues = 0;
 
-				// calculate the optimal coefficients using stochastic gradient descent
-				double[] coeffs = getOptCoeffs(pValues);
+			telemetry.close();
+			if (index != null) index.close();
+			BumFitters.close(fitter);
+		}
 
-				// fill out the BUM coefficients tuple
-				coeffAns.setPi0(coeffs[0]);
-				coeffAns.setAlpha(coeffs[1]);
-				coeffAns.setBeta(coeffs[2]);
-				coeffAns.setCount(1);
+		private void fitAndWrite(double[] block, double[] blockCdfValues, Context context) throws IOException, InterruptedException {
 
-				context.write(allContribute, coeffAns);
-			}
+			// calculate the optimal coefficients with the configured fitter, sorting the block in place
+			long start = System.nanoTime();
+			BumFit fit = fitBlock(fitter, block, blockCdfValues, numKnots, previous);
+			telemetry.record(fit, System.nanoTime() - start);
+			double[] coeffs = fit.getCoeffs();
+
+			// fill out the BUM coefficients tuple, weighted by the p-values behind it so a leftover block counts for less
+			coeffAns.setPi0(coeffs[0]);
+			coeffAns.setAlpha(coeffs[1]);
+			coeffAns.setBeta(coeffs[2]);
+			coeffAns.setCount(block.length);
+
+			context.write(allContribute, coeffAns);
 		}
 
-		public static Double transformXmlToPValues(String xml) {
+		/**
+		 * Fits the BUM coefficients to the empirical CDF of one block of p-values, which are sorted in place.
+		 */
+		public static BumFit fitBlock(BumFitter fitter, double[] pValues) {
 
-			String startDelim = "p=\"";
-			String stopDelim = "\" t=";
-			int startIndex = 0; 
-			int stopIndex = 0;
+			return fitBlock(fitter, pValues, null);
+		}
 
-			startIndex = xml.indexOf(startDelim,stopIndex);
-			startIndex += startDelim.length();
-			stopIndex = xml.indexOf(stopDelim,startIndex);
+		/**
+		 * Fits one block as above, starting from the previous coefficients of its model when there are any.
+		 */
+		public static BumFit fitBlock(BumFitter fitter, double[] pValues, Pi0AlphaBetaCountTuple previous) {
 
-			// parses the xml line into the single p-value that is returned
-			return Double.parseDouble(xml.substring(startIndex,stopIndex));
+			return fitBlock(fitter, pValues, new double[pValues.length], 0, previous);
 		}
 
-		private double[][] calculateEmpiricalCDF(Double[] tmpPValues) {
+		/**
+		 * Fits one block as above, with its CDF values written into cdfValues, a buffer of the same length as pValues, and
+		 * the fit made on numKnots quantile knots of the block when that is more than 0.
+		 */
+		public static BumFit fitBlock(BumFitter fitter, double[] pValues, double[] cdfValues, int numKnots,
+				Pi0AlphaBetaCountTuple previous) {
 
-			// set up the empirical CDF for the p-values
-			double[][] pValues = new double[tmpPValues.length][2];
-			// the first column will have a p-value in each row
-			for (int i = 0; i < tmpPValues.length; i++) {
-				pValues[i][0] = tmpPValues[i].doubleValue();
+			EmpiricalCdf ecdf = EmpiricalCdf.fromPValues(pValues, cdfValues).toQuantileKnots(numKnots);
+			double[] coeffs = (previous != null) ? IncrementalFit.startingCoefficients(previous) : fitter.startingCoefficients(ecdf);
+			return fitter.fit(ecdf, coeffs);
+		}
+	}
+
+	/**
+	 * Fits blocks of numSamplesForFit p-values of each group separately, keying every fit by its group.  A group's
+	 * leftover p-values are fit too when the mapper finishes, if there are at least MIN_LEFTOVER_FIT of them, since
+	 * a group may well be smaller than a block.
+	 */
+	public static class GroupedFDRCalculationMapping extends Mapper<Object, Writable, Text, Pi0AlphaBetaCountTuple> {
+
+		private Map<Text, GroupBlock> blocks = new HashMap<Text, GroupBlock>();
+		private Text group = new Text();
+		private Pi0AlphaBetaCountTuple coeffAns = new Pi0AlphaBetaCountTuple();
+		// every group's coefficients from the previous run, if any
+		private Map<String, Pi0AlphaBetaCountTuple> previous;
+		private int numSamplesForFit;
+		// the CDF column of a full block, which the groups take turns to use
+		private double[] cdfValues;
+		private int minLeftoverFit;
+		private BumFitter fitter;
+		private int numKnots;
+		private FitTelemetry telemetry;
+		private PValueIndex.Builder index;
+		private Counter recordsParsed;
+		private Counter malformedRows;
+		private Counter rowsWithoutGroup;
+
+		public void setup(Context context) throws IOException, InterruptedException {
+
+			numSamplesForFit = Integer.parseInt(context.getConfiguration().get("numSamplesForFit"));
+			cdfValues = new double[numSamplesForFit];
+			minLeftoverFit = context.getConfiguration().getInt(MIN_LEFTOVER_FIT, DEFAULT_MIN_LEFTOVER_FIT);
+			previous = IncrementalFit.readPreviousCoefficients(context.getConfiguration());
+			fitter = BumFitters.create(context.getConfiguration(), BumFitters.SGD_OPTIMIZER);
+			numKnots = context.getConfiguration().getInt(EmpiricalCdf.QUANTILE_KNOTS, 0);
+			telemetry = new FitTelemetry(context);
+			index = PValueIndex.Builder.create(context);
+			recordsParsed = context.getCounter(FDRCounters.RECORDS_PARSED);
+			malformedRows = context.getCounter(FDRCounters.MALFORMED_ROWS);
+			rowsWithoutGroup = context.getCounter(FDRCounters.ROWS_WITHOUT_GROUP_MODEL);
+		}
+
+		public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+
+			double pValue = PValueParser.parsePValue(value);
+			if (Double.isNaN(pValue)) {
+				malformedRows.increment(1);
+				return;
+			}
+			if (!PValueParser.parseGroup((Text) value, group)) {
+				rowsWithoutGroup.increment(1);
+				return;
 			}
+			recordsParsed.increment(1);
+			if (index != null) index.add(key, pValue);
 
-			// sort on p-values so that second column can be filled with empirical CDF values
-			Arrays.sort(pValues, new Comparator<double[]>() {
-				@Override
-				public int compare(double[] entry1, double[] entry2) {
-					return Double.compare(entry1[0],entry2[0]);
-				}
-			});
+			GroupBlock block = blocks.get(group);
+			if (block == null) {
+				block = new GroupBlock(numSamplesForFit, previous.get(group.toString()));
+				blocks.put(new Text(group), block);
+			}
+			block.add(pValue);
+			if (block.size == numSamplesForFit) {
+				fitAndWrite(group, block, context);
+			}
+		}
+
+		public void cleanup(Context context) throws IOException, InterruptedException {
 
-			// calculate emprical CDF values
-			for (int i = 1; i <= pValues.length; i++) {
-				pValues[i-1][1] = i / (double) pValues.length;
+			for (Map.Entry<Text, GroupBlock> entry : blocks.entrySet()) {
+				GroupBlock block = entry.getValue();
+				if (block.size > 0 && block.size >= minLeftoverFit) {
+					fitAndWrite(entry.getKey(), block, context);
+				} else if (block.size > 0) {
+					context.getCounter(FDRCounters.ROWS_NOT_FIT).increment(block.size);
+				}
 			}
+			telemetry.close();
+			if (index != null) index.close();
+			BumFitters.close(fitter);
+		}
 
-			return pValues;
+		private void fitAndWrite(Text group, GroupBlock block, Context context) throws IOException, InterruptedException {
+
+			// only a leftover block at the end of the task needs columns of its own length
+			boolean full = block.size == block.numSamplesForFit;
+			double[] pValues = full ? block.pValues : Arrays.copyOf(block.pValues, block.size);
+			long start = System.nanoTime();
+			BumFit fit = FDRCalculationMapping.fitBlock(fitter, pValues, full ? cdfValues : new double[block.size], numKnots,
+					block.previous);
+			telemetry.record(fit, System.nanoTime() - start);
+			double[] coeffs = fit.getCoeffs();
+			// the block's buffer is free again now that the fit is done with it
+			block.size = 0;
+
+			coeffAns.setPi0(coeffs[0]);
+			coeffAns.setAlpha(coeffs[1]);
+			coeffAns.setBeta(coeffs[2]);
+			coeffAns.setCount(pValues.length);
+			context.write(group, coeffAns);
 		}
 
-		private double[] getOptCoeffs(double[][] pValues) {	
+		/**
+		 * The p-values of one group read since its last fit.  The buffer starts at INITIAL_CAPACITY and doubles up to a
+		 * full block, so a mapper seeing many small groups does not hold a whole block for each.
+		 */
+		private static class GroupBlock {
 
-			Random rndm = new Random();
+			static final int INITIAL_CAPACITY = 1024;
 
-			// pi0 is 1 because should always conservatively start by overestimating the proportion of negatives	
-			double[] coeffs = {1.0, rndm.nextDouble(), 1+rndm.nextInt(9)+rndm.nextDouble()};
-			// start off with high learning steps and rates
-			double avDelta = 1;
-			double oldDelta = avDelta;
-			double learningRate = 2;
+			double[] pValues;
+			final Pi0AlphaBetaCountTuple previous;
+			final int numSamplesForFit;
+			int size = 0;
+
+			GroupBlock(int numSamplesForFit, Pi0AlphaBetaCountTuple previous) {
+
+				this.pValues = new double[Math.min(numSamplesForFit, INITIAL_CAPACITY)];
+				this.previous = previous;
+				this.numSamplesForFit = numSamplesForFit;
+			}
 
-			int sigDigits = 4; // number of significant digits in the model parameters;
-			double tolerance = 1.0 / Math.pow(10,sigDigits); // the decimal place to which the significance corresponds
-			do {
-				oldDelta = avDelta;
-				// coeffs is implicitly returned because it is modified at the reference position
-				avDelta = stochasticGradientDescent(pValues, coeffs, tolerance, learningRate);
-				if (oldDelta < avDelta) learningRate *= 0.9;  // anneal the learning rate every time a local minimum is passed
-			} while (avDelta >= tolerance);  // once the tolerance is met, exit to return the coefficients
+			void add(double pValue) {
 
-			return coeffs;	
+				if (size == pValues.length) {
+					pValues = Arrays.copyOf(pValues, (int) Math.min(numSamplesForFit, 2L * pValues.length));
+				}
+				pValues[size++] = pValue;
+			}
 		}
+	}
 
-		private double stochasticGradientDescent(double[][] pValues, double[] coeffs, double gradientStepSize, double learningRate) {
+	public static class HistogramMapping extends Mapper<Object, Writable, Text, PValueHistogram> {
 
-			// shuffling is necessary for the stochastic presentation of p-values for the gradient descent (no batching)
-			pValues = shuffleEmpiricalCDF(pValues);
+		// everything is merged into one histogram in the reducer
+		private Text allContribute = new Text("BUM coefficients");
+		// accumulates every p-value this mapper reads
+		private PValueHistogram histogram;
+		// the p-value range of each stripe of the split, or null unless the job builds the index
+		private PValueIndex.Builder index;
+		// the Poisson weighted bootstrap replicates of the histogram, or null unless the job wants intervals
+		private BootstrapIntervals.Resampler resampler;
+		private Counter recordsParsed;
+		private Counter malformedRows;
+
+		public void setup(Context context) throws IOException, InterruptedException {
+
+			histogram = new PValueHistogram(context.getConfiguration().getInt(PValueHistogram.NUM_BINS, PValueHistogram.DEFAULT_NUM_BINS));
+			index = PValueIndex.Builder.create(context);
+			resampler = BootstrapIntervals.Resampler.create(context);
+			recordsParsed = context.getCounter(FDRCounters.RECORDS_PARSED);
+			malformedRows = context.getCounter(FDRCounters.MALFORMED_ROWS);
+		}
 
-			// initial overall average parameter movement
-			double avDelta = 0;
-			// this momentum is always used (average of previous and current delta change for next step)
-			double momentum = 0.5;
-			// initial amounts of parameter movement
-			double deltaPi0 = 0;
-			double deltaAlpha = 0;
-			double deltaBeta = 0;
-			// takes a gradient descent step for each p-value
-			for (double[] data : pValues) {
+		public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+
+			double pValue = PValueParser.parsePValue(value);
+			int bin = histogram.binOf(pValue);
+			if (bin >= 0) {
+				histogram.addCount(bin, 1);
+				if (resampler != null) resampler.add(bin);
+				recordsParsed.increment(1);
+				if (index != null) index.add(key, pValue);
+			} else {
+				malformedRows.increment(1);
+			}
+		}
+
+		public void cleanup(Context context) throws IOException, InterruptedException {
+
+			if (index != null) index.close();
 
-				// moves along the coefficient gradient for a single p-value measurement
-				deltaPi0 = momentum * deltaPi0 + (1-momentum) * learningRate *
-					(Math.pow(data[1] - calcModelCDFValue(data[0], coeffs[0] + (gradientStepSize/2),coeffs[1],coeffs[2]),2) - 
-					 Math.pow(data[1] - calcModelCDFValue(data[0], coeffs[0] - (gradientStepSize/2),coeffs[1],coeffs[2]),2)) / gradientStepSize;
-				deltaAlpha = momentum * deltaAlpha + (1-momentum) * learningRate *
-					(Math.pow(data[1] - calcModelCDFValue(data[0], coeffs[0],coeffs[1] + (gradientStepSize/2),coeffs[2]),2) -
-					 Math.pow(data[1] - calcModelCDFValue(data[0], coeffs[0],coeffs[1] - (gradientStepSize/2),coeffs[2]),2)) / gradientStepSize;
-				deltaBeta = momentum * deltaBeta + (1-momentum) * learningRate *
-					(Math.pow(data[1] - calcModelCDFValue(data[0], coeffs[0],coeffs[1],coeffs[2] + (gradientStepSize/2)),2) -
-					 Math.pow(data[1] - calcModelCDFValue(data[0], coeffs[0],coeffs[1],coeffs[2] - (gradientStepSize/2)),2)) / gradientStepSize;
-				avDelta = (avDelta + Math.sqrt(Math.pow(deltaPi0,2) + Math.pow(deltaAlpha,2) + Math.pow(deltaBeta,2)))/2;
+			// one histogram per map task, no matter how many p-values it read
+			if (histogram.getTotal() > 0) {
+				context.write(allContribute, histogram);
+				if (resampler != null) resampler.write(context);
+			}
+		}
+	}
 
-				// updates the user on what the current average error is
-				System.out.println("Current average error: " + avDelta);
+	/**
+	 * Builds one histogram per group, written keyed by the group when the mapper finishes.
+	 */
+	public static class GroupedHistogramMapping extends Mapper<Object, Writable, Text, PValueHistogram> {
+
+		private Map<Text, PValueHistogram> histograms = new HashMap<Text, PValueHistogram>();
+		private Text group = new Text();
+		private int numBins;
+		private PValueIndex.Builder index;
+		private Counter recordsParsed;
+		private Counter malformedRows;
+		private Counter rowsWithoutGroup;
+
+		public void setup(Context context) throws IOException, InterruptedException {
+
+			numBins = context.getConfiguration().getInt(PValueHistogram.NUM_BINS, PValueHistogram.DEFAULT_NUM_BINS);
+			index = PValueIndex.Builder.create(context);
+			recordsParsed = context.getCounter(FDRCounters.RECORDS_PARSED);
+			malformedRows = context.getCounter(FDRCounters.MALFORMED_ROWS);
+			rowsWithoutGroup = context.getCounter(FDRCounters.ROWS_WITHOUT_GROUP_MODEL);
+		}
 
-				// rectifies to coeffcients to ensure that pi0 and alpha are always between 0 and 1 and beta is always greater than 1 
-				coeffs[0] = Math.min(1.0, Math.max(0.0, coeffs[0] - deltaPi0));
-				coeffs[1] = Math.min(1.0-gradientStepSize, Math.max(gradientStepSize, coeffs[1] - deltaAlpha));
-				coeffs[2] = Math.max(1.0+gradientStepSize, coeffs[2] - deltaBeta);
+		public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
 
+			double pValue = PValueParser.parsePValue(value);
+			if (Double.isNaN(pValue)) {
+				malformedRows.increment(1);
+				return;
+			}
+			if (!PValueParser.parseGroup((Text) value, group)) {
+				rowsWithoutGroup.increment(1);
+				return;
+			}
+			PValueHistogram histogram = histograms.get(group);
+			if (histogram == null) {
+				histogram = new PValueHistogram(numBins);
+				histograms.put(new Text(group), histogram);
 			}
-			return avDelta;	
+			histogram.add(pValue);
+			recordsParsed.increment(1);
+			if (index != null) index.add(key, pValue);
 		}
 
-		public double[][] shuffleEmpiricalCDF(double[][] pValues) {
+		public void cleanup(Context context) throws IOException, InterruptedException {
 
-			Random rndm = new Random();
+			if (index != null) index.close();
+			for (Map.Entry<Text, PValueHistogram> entry : histograms.entrySet()) {
+				context.write(entry.getKey(), entry.getValue());
+			}
+		}
+	}
 
-			// this is just a Fisher-Yates shuffle of the empirical CDF rows
-			int ranSpot;
-			double[] tmp;
-			for (int i = 0; i < pValues.length; i++) {
-				ranSpot = rndm.nextInt(pValues.length-i) + i;
-				tmp = pValues[i].clone();
-				pValues[i] = pValues[ranSpot].clone();
-				pValues[ranSpot] = tmp.clone();
+	public static class HistogramMergingCombiner extends Reducer<Text, PValueHistogram, Text, PValueHistogram> {
+
+		private PValueHistogram merged;
+
+		public void reduce(Text key, Iterable<PValueHistogram> values, Context context) throws IOException, InterruptedException {
+
+			// the values are reused by the framework, so their counts are added into a histogram of our own
+			for (PValueHistogram val : values) {
+				if (merged == null || merged.getNumBins() != val.getNumBins()) {
+					merged = new PValueHistogram(val.getNumBins());
+				}
+				merged.merge(val);
+			}
+			context.write(key, merged);
+			merged.clear();
+		}
+	}
+
+	public static class HistogramFittingReducer extends Reducer<Text, PValueHistogram, Text, Pi0AlphaBetaCountTuple> {
+
+		private Pi0AlphaBetaCountTuple result = new Pi0AlphaBetaCountTuple();
+		private PValueHistogram merged;
+		// counts the fit and writes its metrics
+		private FitTelemetry telemetry;
+		// writes the merged histograms, the state the next run updates
+		private MultipleOutputs<Text, Pi0AlphaBetaCountTuple> fitState;
+		// every model's coefficients from the previous run, if any
+		private Map<String, Pi0AlphaBetaCountTuple> previous;
+		// fits the bootstrap replicates, or null unless the job wants intervals
+		private BootstrapIntervals.Fitter bootstrap;
+		// fits every key's merged histogram in turn
+		private BumFitter fitter;
+
+		public void setup(Context context) throws IOException, InterruptedException {
+
+			fitter = BumFitters.create(context.getConfiguration(), BumFitters.LEVENBERG_MARQUARDT_OPTIMIZER);
+			telemetry = new FitTelemetry(context);
+			fitState = new MultipleOutputs<Text, Pi0AlphaBetaCountTuple>(context);
+			previous = IncrementalFit.readPreviousCoefficients(context.getConfiguration());
+			if (BootstrapIntervals.numReplicates(context.getConfiguration()) > 0) {
+				bootstrap = new BootstrapIntervals.Fitter(context);
 			}
-			return pValues;
 		}
 
-		public double calcModelCDFValue(double p, double pi0, double alpha, double beta) {
+		public void cleanup(Context context) throws IOException, InterruptedException {
 
-			// what should the CDF value be for the p-value if the current coefficients are correct
-			return pi0*p + (1-pi0)*new BetaDistribution(alpha, beta).cumulativeProbability(p);
+			// the replicates' fits are recorded before the telemetry closes
+			if (bootstrap != null) bootstrap.close(telemetry);
+			telemetry.close();
+			fitState.close();
+			BumFitters.close(fitter);
 		}
 
+		public void reduce(Text key, Iterable<PValueHistogram> values, Context context) throws IOException, InterruptedException {
+
+			for (PValueHistogram val : values) {
+				if (merged == null || merged.getNumBins() != val.getNumBins()) {
+					merged = new PValueHistogram(val.getNumBins());
+				}
+				merged.merge(val);
+			}
+			if (bootstrap != null && BootstrapIntervals.Fitter.isReplicate(key)) {
+				bootstrap.submit(merged);
+				merged.clear();
+				return;
+			}
+
+			// a single fit on the global empirical CDF, one weighted row per non-empty bin
+			EmpiricalCdf ecdf = merged.toEmpiricalCdf();
+			Pi0AlphaBetaCountTuple previousCoeffs = previous.get(key.toString());
+			double[] startingCoeffs = (previousCoeffs != null) ? IncrementalFit.startingCoefficients(previousCoeffs) : fitter.startingCoefficients(ecdf);
+			long start = System.nanoTime();
+			BumFit fit = fitter.fit(ecdf, startingCoeffs);
+			telemetry.record(fit, System.nanoTime() - start);
+			double[] coeffs = fit.getCoeffs();
+
+			// the count is the number of p-values behind the fit rather than a number of averaged fits
+			result.setPi0(coeffs[0]);
+			result.setAlpha(coeffs[1]);
+			result.setBeta(coeffs[2]);
+			result.setCount(merged.getTotal());
+
+			context.write(key, result);
+			fitState.write(IncrementalFit.FIT_STATE_OUTPUT, key, merged);
+			if (bootstrap != null) bootstrap.setPointEstimate(coeffs);
+			merged.clear();
+		}
 	}
 
 	public static class FDRModelAveragingReducer extends Reducer<Text, Pi0AlphaBetaCountTuple, Text, Pi0AlphaBetaCountTuple> {
@@ -231,6 +701,16 @@ public class MapReduceCDFFalseDiscoveryRate extends Configured implements Tool {
 
 		public void reduce(Text key, Iterable<Pi0AlphaBetaCountTuple> values, Context context) throws IOException, InterruptedException {
 
+			average(values, result);
+			context.write(key, result);
+		}
+
+		/**
+		 * Sets result to the count-weighted average of the coefficients in values, with their total count.  Block fits
+		 * count the p-values they were fit on, so a leftover block weighs in proportion to its size.
+		 */
+		public static void average(Iterable<Pi0AlphaBetaCountTuple> values, Pi0AlphaBetaCountTuple result) {
+
 			double pi0 = 0;
 			double alpha = 0;
 			double beta = 0;
@@ -248,8 +728,6 @@ public class MapReduceCDFFalseDiscoveryRate extends Configured implements Tool {
 			result.setPi0(pi0 / count);
 			result.setAlpha(alpha / count);
 			result.setBeta(beta / count);
-
-			context.write(key, result);
 		}
 	}
 }
@@ -3,28 +3,89 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Random;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URI;
 
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.ToolRunner;
 
 public class MapReduceSignificantFindings extends Configured implements Tool {
 
+	// job configuration key for a p-value cutoff already computed by the client, which the mappers then use as is
+	public static final String SIGNIFICANCE_P_VALUE_CUTOFF = "significancePValueCutoff";
+	// job configuration key which, when true, writes each significant finding as id, p, q, lfdr instead of its row
+	public static final String ANNOTATE_Q_VALUES = "annotateQValues";
+	// the link name of the q-value table in the distributed cache
+	public static final String Q_VALUE_TABLE_LINK = "qValueTable";
+	// job configuration key choosing the order of the significant findings, UNSORTED_ORDER (the default), SORTED_ORDER or TOP_K_ORDER
+	public static final String OUTPUT_ORDER = "significanceOutputOrder";
+	// in whatever order the mappers find them
+	public static final String UNSORTED_ORDER = "unsorted";
+	// ascending by p-value across all of the part files in turn, range partitioned over the job's reducers
+	public static final String SORTED_ORDER = "sorted";
+	// only the TOP_K smallest p-values, ascending, from one reducer
+	public static final String TOP_K_ORDER = "topK";
+	// job configuration key for the number of findings TOP_K_ORDER keeps
+	public static final String TOP_K = "significanceTopK";
+	public static final int DEFAULT_TOP_K = 10000;
+	// the input splits, and the rows of each, sampled for the reducers' ranges in SORTED_ORDER
+	static final int SAMPLE_SPLITS = 10;
+	static final int SAMPLE_ROWS_PER_SPLIT = 100000;
+
+	// the job the last run submitted
+	private Job job;
+
+	/**
+	 * @return the job the last run submitted, e.g. for its counters, or null if it has not submitted one
+	 */
+	public Job getJob() {
+
+		return this.job;
+	}
+
 	public static void main(String[] args) throws Exception {
 
+		// pull out the -D job settings first so that only the positional args are counted
+		Configuration conf = new Configuration();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
 		if (args.length != 6) {
 			System.out.println("\n" + 
 					"This program runs a mapreduce to determine the p-value entries that are significant at the FDR cutoff \n" +  
@@ -35,14 +96,33 @@ public class MapReduceSignificantFindings extends Configured implements Tool {
 					"args2 - pi0 proportion of null hypotheses \n" +
 					"args3 - alpha for the beta distribution for the true hypotheses \n" +
 					"args4 - beta for the beta distribution for the true hypotheses \n" +
-					"args5 - false discovery rate cutoff for significance \n"
+					"args5 - false discovery rate cutoff for significance, or a comma separated list of them (e.g. 0.01,0.05,0.1) to write each finding under the tightest it passes \n\n" +
+					"-D pValueFormat=binary reads fixed-width binary p-value records instead of xml rows; significant records are still written as xml rows \n" +
+					"-D annotateQValues=true writes each significant finding as its id, p-value, q-value and local FDR instead of its row \n" +
+					"-D significanceOutputOrder=sorted sorts the findings by p-value across all reducers (-D mapreduce.job.reduces=[n]) \n" +
+					"-D significanceOutputOrder=topK writes only the significanceTopK (default 10000) smallest p-values, sorted \n" +
+					"-D groupCoefficients=[dir] applies the cutoff of each group's own model, from a -D groupedFit=true fitting job's output in dir, to the rows of the group (args2-4 are then ignored; xml rows and a single cutoff only, not sorted or annotated) \n" +
+					"-D pValueIndex=[dir] skips the input stripes whose smallest p-value in the index the fitting job wrote to dir is above the cutoff \n"
 					);
 			return;
 		}
-		int res = ToolRunner.run(new Configuration(), new MapReduceSignificantFindings(), args);
+		int res = ToolRunner.run(conf, new MapReduceSignificantFindings(), args);
 		System.exit(res);
 	}
 
+	/**
+	 * Rejects the settings a run on per group models can not honour.  The q-value table and the sorted output's
+	 * partitions are computed from the one model of args2-4, which a grouped run does not have.
+	 */
+	public static void checkGroupedOptions(Configuration conf, double[] qValueCutoffs) {
+
+		if (PValueRecord.isBinaryFormat(conf) || conf.getBoolean(ANNOTATE_Q_VALUES, false) || qValueCutoffs.length > 1
+				|| SORTED_ORDER.equals(conf.get(OUTPUT_ORDER, UNSORTED_ORDER))) {
+			throw new IllegalArgumentException("per group models work on xml rows with a single q-value cutoff, no "
+					+ ANNOTATE_Q_VALUES + " and no " + OUTPUT_ORDER + "=" + SORTED_ORDER);
+		}
+	}
+
 	public int run(String[] args) throws Exception {
 
 		Configuration conf = this.getConf();
@@ -54,46 +134,336 @@ public class MapReduceSignificantFindings extends Configured implements Tool {
 		conf.set("alpha", args[3]);
 		conf.set("beta", args[4]);
 
-		Job job = Job.getInstance(conf, "");
+		job = Job.getInstance(conf, "");
 		job.setJarByClass(MapReduceCDFFalseDiscoveryRate.class);
 
 		job.setJobName("calcBUM");
 		
 		job.setMapperClass(CheckSignificanceMapper.class);
 	
+		// significant rows are passed through as read, xml text lines by default or fixed-width binary records
+		Class<? extends Writable> rowClass = Text.class;
+		if (PValueRecord.isBinaryFormat(conf)) {
+			job.setInputFormatClass(PValueRecordInputFormat.class);
+			rowClass = PValueRecord.class;
+		}
+
+		// with several q-value cutoffs, SIGNIFICANCE_P_VALUE_CUTOFF is that of the loosest, which every finding passes
+		double[] qValueCutoffs = SignificanceThresholds.parseQValueCutoffs(args[5]);
+		double loosestQValueCutoff = qValueCutoffs[qValueCutoffs.length - 1];
+
+		// with an index, the stripes holding nothing below the cutoff are never read, and sorted output samples the
+		// p-values below it for its ranges, so either needs the cutoff up front
+		String outputOrder = conf.get(OUTPUT_ORDER, UNSORTED_ORDER);
+		if (conf.get(PValueIndex.INDEX) != null || SORTED_ORDER.equals(outputOrder)) {
+			if (conf.get(SIGNIFICANCE_P_VALUE_CUTOFF) == null && conf.get(GroupedFdr.GROUP_COEFFICIENTS) == null) {
+				double cutoff = CheckSignificanceMapper.computeSignificancePValueCutoff(Double.parseDouble(args[2]),
+						Double.parseDouble(args[3]), Double.parseDouble(args[4]), loosestQValueCutoff);
+				job.getConfiguration().set(SIGNIFICANCE_P_VALUE_CUTOFF, Double.toString(cutoff));
+			}
+		}
+		// every group's cutoff is computed once here and shared with every mapper through the distributed cache, and the
+		// loosest of them stands in for the job's cutoff, so no row above it is looked at any further
+		Path groupCutoffsPath = null;
+		if (conf.get(GroupedFdr.GROUP_COEFFICIENTS) != null) {
+			checkGroupedOptions(conf, qValueCutoffs);
+			Map<String, Pi0AlphaBetaCountTuple> coefficients = GroupedFdr.readCoefficients(conf, new Path(conf.get(GroupedFdr.GROUP_COEFFICIENTS)));
+			groupCutoffsPath = new Path(conf.get("hadoop.tmp.dir"), "groupCutoffs-" + UUID.randomUUID());
+			double loosestCutoff = GroupedFdr.writeCutoffs(conf, groupCutoffsPath, coefficients, loosestQValueCutoff);
+			job.getConfiguration().set(SIGNIFICANCE_P_VALUE_CUTOFF, Double.toString(loosestCutoff));
+			FileSystem fs = groupCutoffsPath.getFileSystem(conf);
+			job.addCacheFile(new URI(fs.makeQualified(groupCutoffsPath).toUri() + "#" + GroupedFdr.GROUP_CUTOFFS_LINK));
+		}
+
+		if (conf.get(PValueIndex.INDEX) != null) {
+			job.setInputFormatClass(PValueRecord.isBinaryFormat(conf) ? PValueIndex.IndexedPValueRecordInputFormat.class : PValueIndex.IndexedTextInputFormat.class);
+		}
+
+		// tabulate the q-value curve once here, and share it with every mapper through the distributed cache
+		Path qValueTablePath = null;
+		if (conf.getBoolean(ANNOTATE_Q_VALUES, false)) {
+			QValueTable table = QValueTable.tabulate(Double.parseDouble(args[2]), Double.parseDouble(args[3]),
+					Double.parseDouble(args[4]), QValueTable.DEFAULT_NUM_POINTS);
+			qValueTablePath = new Path(conf.get("hadoop.tmp.dir"), "qValueTable-" + UUID.randomUUID());
+			FileSystem fs = qValueTablePath.getFileSystem(conf);
+			FSDataOutputStream out = fs.create(qValueTablePath, false);
+			try {
+				table.write(out);
+			} finally {
+				out.close();
+			}
+			job.addCacheFile(new URI(fs.makeQualified(qValueTablePath).toUri() + "#" + Q_VALUE_TABLE_LINK));
+
+			job.setMapperClass(AnnotateSignificanceMapper.class);
+			rowClass = AnnotatedPValue.class;
+		}
+
 		job.setMapOutputKeyClass(NullWritable.class);
-		job.setMapOutputValueClass(Text.class);
+		job.setMapOutputValueClass(rowClass);
 
 		job.setOutputKeyClass(NullWritable.class);
-		job.setOutputValueClass(Text.class);
+		job.setOutputValueClass(rowClass);
 
 		FileInputFormat.addInputPath(job, new Path(args[0]));
 		FileOutputFormat.setOutputPath(job, new Path(args[1]));
 
-		return job.waitForCompletion(true) ? 0 : 1;
+		// each threshold's findings are written straight from the mappers to its own output
+		if (qValueCutoffs.length > 1) {
+			if (!UNSORTED_ORDER.equals(outputOrder)) {
+				throw new IllegalArgumentException(OUTPUT_ORDER + "=" + outputOrder + " needs a single q-value cutoff");
+			}
+			SignificanceThresholds.addThresholdOutputs(job, qValueCutoffs.length, rowClass);
+			LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+			job.setNumReduceTasks(0);
+		}
+
+		// ordered findings are shuffled keyed by their p-value, and the reducers drop the key again
+		Path partitionPath = null;
+		if (SORTED_ORDER.equals(outputOrder) || TOP_K_ORDER.equals(outputOrder)) {
+			job.setMapOutputKeyClass(DoubleWritable.class);
+			job.setReducerClass(OrderedFindingsReducer.class);
+			if (TOP_K_ORDER.equals(outputOrder)) {
+				job.setNumReduceTasks(1);
+			} else if (job.getNumReduceTasks() > 1) {
+				partitionPath = new Path(conf.get("hadoop.tmp.dir"), "significancePartitions-" + UUID.randomUUID());
+				writePartitionFile(job, partitionPath, Double.parseDouble(args[2]), Double.parseDouble(args[3]),
+						Double.parseDouble(args[4]), Double.parseDouble(job.getConfiguration().get(SIGNIFICANCE_P_VALUE_CUTOFF)));
+				TotalOrderPartitioner.setPartitionFile(job.getConfiguration(), partitionPath);
+				job.setPartitionerClass(TotalOrderPartitioner.class);
+			}
+		}
+
+		boolean succeeded = job.waitForCompletion(true);
+		if (qValueTablePath != null) {
+			qValueTablePath.getFileSystem(conf).delete(qValueTablePath, false);
+		}
+		if (partitionPath != null) {
+			partitionPath.getFileSystem(conf).delete(partitionPath, false);
+		}
+		if (groupCutoffsPath != null) {
+			groupCutoffsPath.getFileSystem(conf).delete(groupCutoffsPath, false);
+		}
+		return succeeded ? 0 : 1;
+	}
+
+	/**
+	 * Writes the boundaries that split the significant p-values into one range of about the same size per reducer, for
+	 * TotalOrderPartitioner.  They are the quantiles of the significant p-values of a sample of the input splits, or of
+	 * the fitted BUM model below the cutoff when the sample has too few distinct ones to go around.
+	 */
+	static void writePartitionFile(Job job, Path path, double pi0, double alpha, double beta, double cutoff)
+			throws IOException, InterruptedException, ClassNotFoundException {
+
+		int numBoundaries = job.getNumReduceTasks() - 1;
+		double[] boundaries = sampleQuantiles(sampleSignificantPValues(job, cutoff), numBoundaries);
+		if (boundaries == null) {
+			boundaries = modelQuantiles(numBoundaries, pi0, alpha, beta, cutoff);
+		}
+
+		SequenceFile.Writer writer = SequenceFile.createWriter(job.getConfiguration(), SequenceFile.Writer.file(path),
+				SequenceFile.Writer.keyClass(DoubleWritable.class), SequenceFile.Writer.valueClass(NullWritable.class));
+		try {
+			DoubleWritable boundary = new DoubleWritable();
+			for (double b : boundaries) {
+				boundary.set(b);
+				writer.append(boundary, NullWritable.get());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Reads up to SAMPLE_ROWS_PER_SPLIT rows from each of SAMPLE_SPLITS splits spread evenly over the input, the way
+	 * InputSampler.SplitSampler does, keeping the p-values at or below the cutoff.
+	 *
+	 * @return the sampled significant p-values, ascending
+	 */
+	static double[] sampleSignificantPValues(Job job, double cutoff)
+			throws IOException, InterruptedException, ClassNotFoundException {
+
+		InputFormat<?, ?> inputFormat = ReflectionUtils.newInstance(job.getInputFormatClass(), job.getConfiguration());
+		List<InputSplit> splits = inputFormat.getSplits(job);
+		int numSampled = Math.min(SAMPLE_SPLITS, splits.size());
+		PValueRecord record = new PValueRecord();
+		double[] sample = new double[16];
+		int size = 0;
+		for (int i = 0; i < numSampled; i++) {
+			InputSplit split = splits.get((int) ((long) splits.size() * i / numSampled));
+			TaskAttemptContext context = new TaskAttemptContextImpl(job.getConfiguration(), new TaskAttemptID());
+			RecordReader<?, ?> reader = inputFormat.createRecordReader(split, context);
+			try {
+				reader.initialize(split, context);
+				for (int rows = 0; rows < SAMPLE_ROWS_PER_SPLIT && reader.nextKeyValue(); rows++) {
+					Object value = reader.getCurrentValue();
+					double pValue;
+					if (value instanceof PValueRecord) {
+						pValue = ((PValueRecord) value).getPValue();
+					} else if (PValueParser.parseRecord((Text) value, record)) {
+						pValue = record.getPValue();
+					} else {
+						continue;
+					}
+					if (!(pValue >= 0 && pValue <= cutoff)) continue;
+					if (size == sample.length) sample = Arrays.copyOf(sample, 2 * size);
+					sample[size++] = pValue;
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		sample = Arrays.copyOf(sample, size);
+		Arrays.sort(sample);
+		return sample;
+	}
+
+	/**
+	 * @return numBoundaries strictly ascending values that split the sorted sample into ranges of about the same size,
+	 * or null if it has too few distinct values
+	 */
+	static double[] sampleQuantiles(double[] sorted, int numBoundaries) {
+
+		double[] boundaries = new double[numBoundaries];
+		int rank = -1;
+		for (int i = 0; i < numBoundaries; i++) {
+			// step past any repeats of the previous boundary
+			int next = Math.max(rank + 1, (int) ((long) sorted.length * (i + 1) / (numBoundaries + 1)));
+			while (next < sorted.length && rank >= 0 && sorted[next] == sorted[rank]) next++;
+			if (next >= sorted.length) return null;
+			boundaries[i] = sorted[next];
+			rank = next;
+		}
+		return boundaries;
+	}
+
+	/**
+	 * @return numBoundaries strictly ascending quantiles of the fitted BUM model restricted to [0, cutoff]
+	 */
+	static double[] modelQuantiles(int numBoundaries, double pi0, double alpha, double beta, double cutoff) {
+
+		BumModel bumModel = new BumModel();
+		double cdfAtCutoff = bumModel.cdf(cutoff, pi0, alpha, beta);
+		double[] boundaries = new double[numBoundaries];
+		double previous = 0;
+		for (int i = 0; i < numBoundaries; i++) {
+			double target = cdfAtCutoff * (i + 1) / (numBoundaries + 1);
+			// bisect in log p, since the significant p-values can span many orders of magnitude
+			double lower = Math.log(Double.MIN_NORMAL);
+			double upper = Math.log(cutoff);
+			for (int step = 0; step < 100; step++) {
+				double middle = (lower + upper) / 2;
+				if (bumModel.cdf(Math.exp(middle), pi0, alpha, beta) < target) {
+					lower = middle;
+				} else {
+					upper = middle;
+				}
+			}
+			previous = Math.max(Math.exp(upper), Math.nextUp(previous));
+			boundaries[i] = previous;
+		}
+		return boundaries;
+	}
+
+	/**
+	 * Writes the findings of each p-value in the order the shuffle sorted them, up to TOP_K of them in TOP_K_ORDER.
+	 */
+	public static class OrderedFindingsReducer extends Reducer<DoubleWritable, Writable, NullWritable, Writable> {
+
+		private long remaining = Long.MAX_VALUE;
+
+		public void setup(Context context) throws IOException, InterruptedException {
+
+			if (TOP_K_ORDER.equals(context.getConfiguration().get(OUTPUT_ORDER))) {
+				remaining = context.getConfiguration().getInt(TOP_K, DEFAULT_TOP_K);
+			}
+		}
+
+		public void reduce(DoubleWritable key, Iterable<Writable> values, Context context) throws IOException, InterruptedException {
+
+			for (Writable value : values) {
+				if (remaining <= 0) return;
+				context.write(NullWritable.get(), value);
+				remaining--;
+			}
+		}
 	}
 
-	public static class CheckSignificanceMapper extends Mapper<Object, Text, NullWritable, Text> {
+	public static class CheckSignificanceMapper extends Mapper<Object, Writable, Writable, Writable> {
 
 		// set to 0 so that nothing is returned as significant, by default 
 		private double significancePValueCutoff = 0;
+		// the p-value each finding is shuffled by in SORTED_ORDER
+		private DoubleWritable pValueKey = null;
+		// the findings with the smallest p-values of this task in TOP_K_ORDER
+		private BoundedPValueHeap topFindings = null;
+		// the outputs of each q-value cutoff, when there is more than one
+		private SignificanceThresholds thresholds = null;
+		// the p-value cutoff of each group, or null unless the job has GROUP_COEFFICIENTS
+		private Map<Text, Double> groupCutoffs = null;
+		private Text group = new Text();
+		private Counter rowsWithoutGroupModel;
+
+		protected Counter recordsParsed;
+		protected Counter malformedRows;
+		protected Counter rowsBelowCutoff;
+		protected Counter rowsAboveCutoff;
 
 		public void setup(Context context) throws IOException, InterruptedException {
 
+			recordsParsed = context.getCounter(FDRCounters.RECORDS_PARSED);
+			malformedRows = context.getCounter(FDRCounters.MALFORMED_ROWS);
+			rowsBelowCutoff = context.getCounter(FDRCounters.ROWS_BELOW_CUTOFF);
+			rowsAboveCutoff = context.getCounter(FDRCounters.ROWS_ABOVE_CUTOFF);
+
+			if (context.getConfiguration().get(GroupedFdr.GROUP_COEFFICIENTS) != null) {
+				groupCutoffs = GroupedFdr.readCutoffs(openCacheFile(context, GroupedFdr.GROUP_CUTOFFS_LINK));
+				rowsWithoutGroupModel = context.getCounter(FDRCounters.ROWS_WITHOUT_GROUP_MODEL);
+			}
+
+			String outputOrder = context.getConfiguration().get(OUTPUT_ORDER, UNSORTED_ORDER);
+			if (SORTED_ORDER.equals(outputOrder)) {
+				pValueKey = new DoubleWritable();
+			} else if (TOP_K_ORDER.equals(outputOrder)) {
+				topFindings = new BoundedPValueHeap(context.getConfiguration().getInt(TOP_K, DEFAULT_TOP_K));
+			}
+
 			// gets the BUM coefficients for the p-value CDF
 			double pi0 = Double.parseDouble(context.getConfiguration().get("pi0"));
 			double alpha = Double.parseDouble(context.getConfiguration().get("alpha"));
 			double beta = Double.parseDouble(context.getConfiguration().get("beta"));
+			double[] qValueCutoffs = SignificanceThresholds.parseQValueCutoffs(context.getConfiguration().get("significanceQValueCutOff"));
 
-			findSignficancePValueCutoff(pi0,alpha,beta,Double.parseDouble(context.getConfiguration().get("significanceQValueCutOff")));
+			// the pipeline driver computes the (loosest) cutoff once on the client, so there is nothing left to search for
+			String precomputedCutoff = context.getConfiguration().get(SIGNIFICANCE_P_VALUE_CUTOFF);
+			if (precomputedCutoff != null) {
+				significancePValueCutoff = Double.parseDouble(precomputedCutoff);
+			} else {
+				findSignficancePValueCutoff(pi0,alpha,beta,qValueCutoffs[qValueCutoffs.length - 1]);
+			}
+
+			if (qValueCutoffs.length > 1) {
+				double[] pValueCutoffs = new double[qValueCutoffs.length];
+				for (int i = 0; i < qValueCutoffs.length - 1; i++) {
+					pValueCutoffs[i] = computeSignificancePValueCutoff(pi0, alpha, beta, qValueCutoffs[i]);
+				}
+				pValueCutoffs[qValueCutoffs.length - 1] = significancePValueCutoff;
+				thresholds = new SignificanceThresholds(context, qValueCutoffs, pValueCutoffs);
+			}
 		}
 
 		public void findSignficancePValueCutoff(double pi0, double alpha, double beta, double significanceQValueCutoff) {
 
+			significancePValueCutoff = computeSignificancePValueCutoff(pi0, alpha, beta, significanceQValueCutoff);
+		}
+
+		/**
+		 * @return the largest p-value whose BUM q-value is within the significance q-value cutoff
+		 */
+		public static double computeSignificancePValueCutoff(double pi0, double alpha, double beta, double significanceQValueCutoff) {
+
 			// if there are so few true negatives that everything is significant to this FDR, then just return eveything as significant by setting the significance cutoff to 1
 			if ((1-pi0) <= significanceQValueCutoff) {
-				significancePValueCutoff = 1;
-				return;
+				return 1;
 			}
 
 			// true discoveries are those modeled by the beta distribution in the BUM model
@@ -120,10 +490,10 @@ public class MapReduceSignificantFindings extends Configured implements Tool {
 			} while (fractionDifferenceInBounds > boundTolerance);
 
 			// the guess is now the answer
-			significancePValueCutoff = significantPValueCutoffGuess;
+			return significantPValueCutoffGuess;
 		}
 
-		public double determineQValue(double pi0, BetaDistribution trueDiscoveries, double significantPValueCutoffGuess) {
+		public static double determineQValue(double pi0, BetaDistribution trueDiscoveries, double significantPValueCutoffGuess) {
 
 			// calculate the portion of true discoveries at this p-value cutoff using the uniform distribution CDF
 			double portionFalseDiscoveries = pi0 * significantPValueCutoffGuess;
@@ -134,29 +504,135 @@ public class MapReduceSignificantFindings extends Configured implements Tool {
 			return portionFalseDiscoveries / (portionFalseDiscoveries + portionTrueDiscoveries);
 		}
 
-		public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+		public double getSignificancePValueCutoff() {
 
-			double pValue = transformXmlToPValues(value.toString()).doubleValue();
+			return significancePValueCutoff;
+		}
+
+		public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+
+			double pValue = PValueParser.parsePValue(value);
+			if (Double.isNaN(pValue)) {
+				malformedRows.increment(1);
+				return;
+			}
+			recordsParsed.increment(1);
 
 			// since the setup determined what the significance cutoff is, use the map to only query out the significant p-values
-			if (pValue <= significancePValueCutoff) {
-				context.write(NullWritable.get(), value);
+			if (pValue > significancePValueCutoff) {
+				rowsAboveCutoff.increment(1);
+				return;
+			}
+			// only a row below the loosest cutoff has its group looked up
+			if (groupCutoffs != null) {
+				Double groupCutoff = PValueParser.parseGroup((Text) value, group) ? groupCutoffs.get(group) : null;
+				if (groupCutoff == null) {
+					rowsWithoutGroupModel.increment(1);
+					return;
+				}
+				if (pValue > groupCutoff.doubleValue()) {
+					rowsAboveCutoff.increment(1);
+					return;
+				}
+			}
+			rowsBelowCutoff.increment(1);
+			emit(pValue, value, context);
+		}
+
+		/**
+		 * @return the localized link in the task directory when there is one, otherwise the cache file itself
+		 */
+		protected static InputStream openCacheFile(Context context, String link) throws IOException {
+
+			File localFile = new File(link);
+			if (localFile.exists()) {
+				return new BufferedInputStream(new FileInputStream(localFile));
+			}
+			for (URI cacheUri : context.getCacheFiles()) {
+				if (link.equals(cacheUri.getFragment())) {
+					return FileSystem.get(cacheUri, context.getConfiguration()).open(new Path(cacheUri.getPath()));
+				}
+			}
+			throw new IOException("no " + link + " in the distributed cache");
+		}
+
+		/**
+		 * Writes out a significant finding, or keeps it for the cleanup in TOP_K_ORDER.
+		 */
+		protected void emit(double pValue, Writable finding, Context context) throws IOException, InterruptedException {
+
+			if (thresholds != null) {
+				thresholds.route(pValue, finding);
+			} else if (topFindings != null) {
+				topFindings.offer(pValue, finding);
+			} else if (pValueKey != null) {
+				pValueKey.set(pValue);
+				context.write(pValueKey, finding);
+			} else {
+				context.write(NullWritable.get(), finding);
+			}
+		}
+
+		public void cleanup(Context context) throws IOException, InterruptedException {
+
+			if (thresholds != null) thresholds.close();
+			if (topFindings == null) return;
+			// at most TOP_K findings leave each mapper, already in order
+			DoubleWritable key = new DoubleWritable();
+			Writable finding = ReflectionUtils.newInstance(context.getMapOutputValueClass().asSubclass(Writable.class), context.getConfiguration());
+			double[] pValues = topFindings.drainSorted();
+			for (int i = 0; i < pValues.length; i++) {
+				key.set(pValues[i]);
+				topFindings.readRow(i, finding);
+				context.write(key, finding);
 			}
 		}
+	}
+
+	/**
+	 * Writes the significant findings as id, p, q, lfdr records, with the q-value and local FDR interpolated from the
+	 * table the driver put in the distributed cache.
+	 */
+	public static class AnnotateSignificanceMapper extends CheckSignificanceMapper {
 
-		public static Double transformXmlToPValues(String xml) {
+		private QValueTable table = new QValueTable();
+		private PValueRecord record = new PValueRecord();
+		private AnnotatedPValue annotated = new AnnotatedPValue();
 
-			String startDelim = "p=\"";
-			String stopDelim = "\" t=";
-			int startIndex = 0; 
-			int stopIndex = 0;
+		public void setup(Context context) throws IOException, InterruptedException {
+
+			super.setup(context);
 
-			startIndex = xml.indexOf(startDelim,stopIndex);
-			startIndex += startDelim.length();
-			stopIndex = xml.indexOf(stopDelim,startIndex);
+			DataInputStream in = new DataInputStream(openCacheFile(context, Q_VALUE_TABLE_LINK));
+			try {
+				table.readFields(in);
+			} finally {
+				in.close();
+			}
+		}
 
-			// parse the xml line for the p-value
-			return Double.parseDouble(xml.substring(startIndex,stopIndex));
+		public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+
+			if (value instanceof PValueRecord) {
+				record = (PValueRecord) value;
+			} else if (!PValueParser.parseRecord((Text) value, record)) {
+				malformedRows.increment(1);
+				return;
+			}
+			double pValue = record.getPValue();
+			if (!(pValue >= 0 && pValue <= 1)) {
+				malformedRows.increment(1);
+				return;
+			}
+			recordsParsed.increment(1);
+
+			if (pValue <= getSignificancePValueCutoff()) {
+				rowsBelowCutoff.increment(1);
+				annotated.set(record.getId(), pValue, table.qValue(pValue), table.localFdr(pValue));
+				emit(pValue, annotated, context);
+			} else {
+				rowsAboveCutoff.increment(1);
+			}
 		}
 	}
 }
@@ -0,0 +1,99 @@
+import org.apache.commons.math3.special.Beta;
+import org.apache.commons.math3.special.Gamma;
+
+/**
+ * Fits the BUM coefficients by maximizing the (weighted) likelihood of the p-values under the BUM density
+ * f(p) = pi0 + (1 - pi0) p^(alpha-1) (1-p)^(beta-1) / B(alpha, beta).
+ *
+ * Steps use the exact Hessian of the negative log-likelihood wherever it is positive definite, for quadratic
+ * convergence near the optimum, and otherwise fall back to the outer product of the per-p-value scores (BHHH), which
+ * always is.  Either way the steps are damped Levenberg-Marquardt style.
+ * For empirical CDFs built from histograms the p-value of each row is its bin's upper edge.
+ *
+ * @author Will Findley
+ */
+public class MaximumLikelihoodBumFitter extends DampedNewtonBumFitter {
+
+	// keeps log(p) and log(1 - p) finite at the ends of the unit interval
+	private static final double P_MIN = Double.MIN_NORMAL;
+	private static final double P_MAX = 1 - 1e-16;
+
+	protected double evaluate(EmpiricalCdf ecdf, double[] coeffs, double[] descent, double[] hessian) {
+
+		double[] pValues = ecdf.getPValues();
+		double[] weights = ecdf.getWeights();
+		boolean withDerivatives = descent != null;
+
+		double pi0 = coeffs[0];
+		double alpha = coeffs[1];
+		double beta = coeffs[2];
+		double logBeta = Beta.logBeta(alpha, beta);
+		double digammaAlphaBeta = Gamma.digamma(alpha + beta);
+		double digammaAlpha = Gamma.digamma(alpha);
+		double digammaBeta = Gamma.digamma(beta);
+		double trigammaAlphaBeta = Gamma.trigamma(alpha + beta);
+		double trigammaAlpha = Gamma.trigamma(alpha);
+		double trigammaBeta = Gamma.trigamma(beta);
+
+		double negativeLogLikelihood = 0;
+		// the summed scores, their summed outer products and the summed second derivatives of the density over the density
+		double g0 = 0, g1 = 0, g2 = 0;
+		double h00 = 0, h01 = 0, h02 = 0, h11 = 0, h12 = 0, h22 = 0;
+		double c01 = 0, c02 = 0, c11 = 0, c12 = 0, c22 = 0;
+		for (int i = 0; i < pValues.length; i++) {
+			double w = (weights == null) ? 1 : weights[i];
+			if (w == 0) continue;
+
+			double p = Math.min(P_MAX, Math.max(P_MIN, pValues[i]));
+			double logP = Math.log(p);
+			double log1mP = Math.log1p(-p);
+			double betaDensity = Math.exp((alpha - 1) * logP + (beta - 1) * log1mP - logBeta);
+			double density = pi0 + (1 - pi0) * betaDensity;
+			negativeLogLikelihood -= w * Math.log(density);
+
+			if (withDerivatives) {
+				// d log(beta density) / d alpha and / d beta
+				double logDensityAlpha = logP - digammaAlpha + digammaAlphaBeta;
+				double logDensityBeta = log1mP - digammaBeta + digammaAlphaBeta;
+				double mixed = (1 - pi0) * betaDensity / density;
+
+				double s0 = (1 - betaDensity) / density;
+				double s1 = mixed * logDensityAlpha;
+				double s2 = mixed * logDensityBeta;
+				g0 += w * s0;
+				g1 += w * s1;
+				g2 += w * s2;
+				h00 += w * s0 * s0;
+				h01 += w * s0 * s1;
+				h02 += w * s0 * s2;
+				h11 += w * s1 * s1;
+				h12 += w * s1 * s2;
+				h22 += w * s2 * s2;
+
+				c01 -= w * betaDensity * logDensityAlpha / density;
+				c02 -= w * betaDensity * logDensityBeta / density;
+				c11 += w * mixed * (logDensityAlpha * logDensityAlpha - trigammaAlpha + trigammaAlphaBeta);
+				c12 += w * mixed * (logDensityAlpha * logDensityBeta + trigammaAlphaBeta);
+				c22 += w * mixed * (logDensityBeta * logDensityBeta - trigammaBeta + trigammaAlphaBeta);
+			}
+		}
+
+		if (withDerivatives) {
+			descent[0] = g0;
+			descent[1] = g1;
+			descent[2] = g2;
+
+			// the exact Hessian of the negative log-likelihood is the score outer product minus the density curvature
+			double e00 = h00, e01 = h01 - c01, e02 = h02 - c02, e11 = h11 - c11, e12 = h12 - c12, e22 = h22 - c22;
+			double minor2 = e00 * e11 - e01 * e01;
+			double determinant = e00 * (e11 * e22 - e12 * e12) - e01 * (e01 * e22 - e12 * e02) + e02 * (e01 * e12 - e11 * e02);
+			if (e00 > 0 && minor2 > 0 && determinant > 0) {
+				h01 = e01; h02 = e02; h11 = e11; h12 = e12; h22 = e22;
+			}
+			hessian[0] = h00; hessian[1] = h01; hessian[2] = h02;
+			hessian[3] = h01; hessian[4] = h11; hessian[5] = h12;
+			hessian[6] = h02; hessian[7] = h12; hessian[8] = h22;
+		}
+		return negativeLogLikelihood;
+	}
+}
@@ -0,0 +1,185 @@
+import java.util.Random;
+
+/**
+ * Fits the BUM coefficients to an empirical CDF by mini-batch gradient descent over the flat p-value and CDF columns.
+ *
+ * Each batch is evaluated in two passes: one that fills primitive scratch columns with the residuals and the model
+ * gradient, and one that reduces those columns into the batch loss and mean gradient.  The reduction pass is a plain
+ * loop over doubles that the JIT can vectorize.  Steps are scaled per coefficient (Adam), since the CDF is far less
+ * sensitive to beta than to pi0, and the learning rate is annealed whenever an epoch ends with a higher loss than the last
+ * or barely improves on it.
+ *
+ * A batch size of zero or less, or one at least as large as the data, gives full-batch gradient descent.
+ * Weighted empirical CDFs are fit on the weighted squared error, with each batch gradient normalized by the batch weight.
+ *
+ * @author Will Findley
+ */
+public class MiniBatchBumFitter implements BumFitter {
+
+	// job configuration key for the number of p-values in each gradient step
+	public static final String BATCH_SIZE = "miniBatchSize";
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private static final double FIRST_MOMENT_DECAY = 0.9;
+	private static final double SECOND_MOMENT_DECAY = 0.999;
+	private static final double STEP_EPSILON = 1e-12;
+	private static final int MAX_EPOCHS = 20000;
+
+	private final int batchSize;
+	private final Random rndm = new Random();
+	private final BumModel bumModel = new BumModel();
+	private final double[] cdfGradient = new double[3];
+	private final double[] gradient = new double[3];
+
+	// scratch columns for one batch
+	private double[] residuals = new double[0];
+	private double[] gradientPi0 = new double[0];
+	private double[] gradientAlpha = new double[0];
+	private double[] gradientBeta = new double[0];
+
+	public MiniBatchBumFitter(int batchSize) {
+
+		this.batchSize = batchSize;
+	}
+
+	public double[] startingCoefficients(EmpiricalCdf ecdf) {
+
+		// same conservative pi0 and random beta distribution starting point as the stochastic gradient descent
+		return BumFitters.randomStartingCoefficients(rndm);
+	}
+
+	/**
+	 * Descends from the given coefficients until the average step of an epoch falls below the tolerance.
+	 * The reported error is the weighted squared CDF error of the last epoch.
+	 */
+	public BumFit fit(EmpiricalCdf ecdf, double[] coeffs) {
+
+		return fit(ecdf, coeffs, FitBudget.unlimited());
+	}
+
+	public BumFit fit(EmpiricalCdf ecdf, double[] coeffs, FitBudget budget) {
+
+		double tolerance = BumFitters.TOLERANCE;
+
+		double[] pValues = ecdf.getPValues();
+		double[] cdfValues = ecdf.getCdfValues();
+		double[] weights = ecdf.getWeights();
+		int n = ecdf.size();
+		int stepSize = (batchSize <= 0 || batchSize > n) ? n : batchSize;
+		ensureScratchCapacity(stepSize);
+
+		double learningRate = 0.05;
+		double[] firstMoment = new double[3];
+		double[] secondMoment = new double[3];
+		long steps = 0;
+
+		double oldLoss = Double.MAX_VALUE;
+		double loss;
+		double avDelta;
+		int epoch = 0;
+		do {
+			// batches need a fresh random presentation each epoch, a full batch does not
+			if (stepSize < n) ecdf.shuffle(rndm);
+
+			loss = 0;
+			avDelta = 0;
+			int numBatches = 0;
+			for (int from = 0; from < n; from += stepSize) {
+
+				int to = Math.min(n, from + stepSize);
+				loss += accumulateBatch(pValues, cdfValues, weights, from, to, coeffs, gradient);
+
+				steps++;
+				double firstCorrection = 1 - Math.pow(FIRST_MOMENT_DECAY, steps);
+				double secondCorrection = 1 - Math.pow(SECOND_MOMENT_DECAY, steps);
+				double squaredStep = 0;
+				for (int j = 0; j < 3; j++) {
+					firstMoment[j] = FIRST_MOMENT_DECAY * firstMoment[j] + (1 - FIRST_MOMENT_DECAY) * gradient[j];
+					secondMoment[j] = SECOND_MOMENT_DECAY * secondMoment[j] + (1 - SECOND_MOMENT_DECAY) * gradient[j] * gradient[j];
+					double step = learningRate * (firstMoment[j] / firstCorrection) / (Math.sqrt(secondMoment[j] / secondCorrection) + STEP_EPSILON);
+					coeffs[j] -= step;
+					squaredStep += step * step;
+				}
+				avDelta += Math.sqrt(squaredStep);
+				numBatches++;
+
+				// same feasible region as the stochastic gradient descent
+				BumFitters.clampCoefficients(coeffs, tolerance);
+			}
+			avDelta /= numBatches;
+
+			// anneal the learning rate every time a local minimum is passed, and more gently once the loss has plateaued
+			if (oldLoss < loss) {
+				learningRate *= 0.5;
+			} else if (oldLoss - loss < 1e-3 * loss) {
+				learningRate *= 0.9;
+			}
+			oldLoss = loss;
+			epoch++;
+		} while (avDelta >= tolerance && epoch < MAX_EPOCHS && budget.allows(epoch, coeffs));
+
+		return new BumFit(coeffs, epoch, loss, avDelta < tolerance, budget.isTimedOut());
+	}
+
+	/**
+	 * Computes the squared error over rows [from, to) and writes the mean gradient of the squared error into gradient.
+	 * When weights is not null the error and gradient are weighted per row.
+	 *
+	 * @return the summed squared error of the batch
+	 */
+	private double accumulateBatch(double[] pValues, double[] cdfValues, double[] weights, int from, int to, double[] coeffs, double[] gradient) {
+
+		int len = to - from;
+		// the model evaluation pass
+		for (int i = 0; i < len; i++) {
+			residuals[i] = cdfValues[from + i] - bumModel.cdfWithGradient(pValues[from + i], coeffs, cdfGradient);
+			gradientPi0[i] = cdfGradient[0];
+			gradientAlpha[i] = cdfGradient[1];
+			gradientBeta[i] = cdfGradient[2];
+		}
+
+		// the reduction pass
+		double loss = 0;
+		double sumPi0 = 0;
+		double sumAlpha = 0;
+		double sumBeta = 0;
+		double batchWeight = len;
+		if (weights == null) {
+			for (int i = 0; i < len; i++) {
+				double r = residuals[i];
+				loss += r * r;
+				sumPi0 += r * gradientPi0[i];
+				sumAlpha += r * gradientAlpha[i];
+				sumBeta += r * gradientBeta[i];
+			}
+		} else {
+			batchWeight = 0;
+			for (int i = 0; i < len; i++) {
+				double w = weights[from + i];
+				double r = residuals[i];
+				batchWeight += w;
+				loss += w * r * r;
+				sumPi0 += w * r * gradientPi0[i];
+				sumAlpha += w * r * gradientAlpha[i];
+				sumBeta += w * r * gradientBeta[i];
+			}
+		}
+
+		// d(data - F)^2 = -2 (data - F) dF, and a batch with no weight contributes no step
+		if (batchWeight <= 0) batchWeight = Double.POSITIVE_INFINITY;
+		gradient[0] = -2 * sumPi0 / batchWeight;
+		gradient[1] = -2 * sumAlpha / batchWeight;
+		gradient[2] = -2 * sumBeta / batchWeight;
+		return loss;
+	}
+
+	private void ensureScratchCapacity(int size) {
+
+		if (residuals.length < size) {
+			residuals = new double[size];
+			gradientPi0 = new double[size];
+			gradientAlpha = new double[size];
+			gradientBeta = new double[size];
+		}
+	}
+}
@@ -0,0 +1,267 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+
+/**
+ * Fits the same data from several starting points at once and keeps the best fit, so a block is not stuck with
+ * whatever local minimum its one random start leads to.
+ *
+ * Each start runs its own fitter on its own copy of the empirical CDF, on the task container's vcores.  Every
+ * CHECK_INTERVAL epochs a start scores its coefficients by the squared CDF error, and one scoring more than
+ * ELIMINATION_MARGIN worse than the best score any start has reached so far is stopped there.  The winner is the start
+ * with the lowest final score.  All of the starts share the budget's epoch cap and deadline, so a fit hitting either
+ * still ends on time, with the best coefficients found and reported as not converged.
+ *
+ * With a single start this is just the one fitter run under a budget.  The first start always begins where the
+ * wrapped fitter would on its own, the others from BumFitters.randomStartingCoefficients.
+ *
+ * @author Will Findley
+ */
+public class MultiStartBumFitter implements BumFitter {
+
+	// job configuration key for the number of starting points of every fit, 1 (the default) for a single start
+	public static final String NUM_STARTS = "fitStarts";
+	// job configuration key for the threads the starts of one fit share, by default the task's cores (see taskCores)
+	// but no more than there are starts
+	public static final String NUM_THREADS = "fitThreads";
+
+	// epochs between the scorings that decide which starts are losing
+	static final int CHECK_INTERVAL = 10;
+	// how much worse than the best score a start may be before it is stopped
+	static final double ELIMINATION_MARGIN = 0.25;
+
+	private final BumFitter[] fitters;		// one per start, since fitters are not thread safe
+	private final int numThreads;
+	private final int maxEpochs;
+	private final long timeLimitMillis;
+	private final Random rndm = new Random();
+	// only made once a fit outside of any fork join pool needs more than one thread
+	private ForkJoinPool pool = null;
+
+	/**
+	 * @param fitters the fitter of each start
+	 * @param numThreads the most starts to run at once
+	 * @param maxEpochs the most epochs each start may run, 0 or less for no cap
+	 * @param timeLimitMillis the most milliseconds each fit may run, 0 or less for no cap
+	 */
+	public MultiStartBumFitter(BumFitter[] fitters, int numThreads, int maxEpochs, long timeLimitMillis) {
+
+		if (fitters.length == 0) {
+			throw new IllegalArgumentException("a multi-start fit needs at least one fitter");
+		}
+		this.fitters = fitters;
+		this.numThreads = Math.max(1, numThreads);
+		this.maxEpochs = maxEpochs;
+		this.timeLimitMillis = timeLimitMillis;
+	}
+
+	/**
+	 * @return the vcores of the map or reduce container the configuration belongs to, or every processor of the
+	 * machine outside of a mapreduce task, so that concurrent tasks on a node do not each take all of its cores
+	 */
+	public static int taskCores(Configuration conf) {
+
+		String isMap = conf.get(MRJobConfig.TASK_ISMAP);
+		if (isMap == null) return Runtime.getRuntime().availableProcessors();
+		return Boolean.parseBoolean(isMap) ? conf.getInt(MRJobConfig.MAP_CPU_VCORES, MRJobConfig.DEFAULT_MAP_CPU_VCORES)
+				: conf.getInt(MRJobConfig.REDUCE_CPU_VCORES, MRJobConfig.DEFAULT_REDUCE_CPU_VCORES);
+	}
+
+	public double[] startingCoefficients(EmpiricalCdf ecdf) {
+
+		return fitters[0].startingCoefficients(ecdf);
+	}
+
+	public BumFit fit(EmpiricalCdf ecdf, double[] coeffs) {
+
+		return fit(ecdf, coeffs, new FitBudget(maxEpochs, timeLimitMillis));
+	}
+
+	public BumFit fit(EmpiricalCdf ecdf, double[] coeffs, FitBudget budget) {
+
+		if (fitters.length == 1) return fitters[0].fit(ecdf, coeffs, budget);
+
+		final Race race = new Race(fitters.length);
+		List<Callable<BumFit>> tasks = new ArrayList<Callable<BumFit>>(fitters.length);
+		final Start[] starts = new Start[fitters.length];
+		for (int i = 0; i < fitters.length; i++) {
+			// the first start may have the caller's rows and coefficients, the others need their own
+			final EmpiricalCdf startEcdf = (i == 0) ? ecdf : ecdf.copy();
+			final double[] startCoeffs = (i == 0) ? coeffs : BumFitters.randomStartingCoefficients(rndm);
+			final BumFitter fitter = fitters[i];
+			final Start start = new Start(budget, race, i, startEcdf);
+			starts[i] = start;
+			tasks.add(new Callable<BumFit>() {
+				public BumFit call() {
+					BumFit fit = fitter.fit(startEcdf, startCoeffs, start);
+					start.finish(fit.getCoeffs());
+					return fit;
+				}
+			});
+		}
+		List<BumFit> fits = runAll(tasks);
+
+		// the best scoring start that was not stopped for losing
+		int best = -1;
+		int iterations = 0;
+		for (int i = 0; i < fits.size(); i++) {
+			iterations += fits.get(i).getIterations();
+			if (starts[i].isEliminated()) continue;
+			if (best < 0 || starts[i].getScore() < starts[best].getScore()) best = i;
+		}
+		BumFit winner = fits.get(best);
+		System.arraycopy(winner.getCoeffs(), 0, coeffs, 0, 3);
+		// the iterations of every start, since they all took their share of the task's time
+		return new BumFit(coeffs, iterations, winner.getError(), winner.isConverged(), winner.isTimedOut());
+	}
+
+	/**
+	 * Shuts down the pool of the starts, if a fit made one.  A fit after this makes a new pool.
+	 */
+	public void close() {
+
+		if (pool != null) pool.shutdown();
+		pool = null;
+	}
+
+	/**
+	 * Runs the starts on the fork join pool the caller is already in, e.g. LocalFDRRunner's, or on a pool of our own.
+	 */
+	private List<BumFit> runAll(List<Callable<BumFit>> tasks) {
+
+		List<ForkJoinTask<BumFit>> forkJoinTasks = new ArrayList<ForkJoinTask<BumFit>>(tasks.size());
+		for (Callable<BumFit> task : tasks) {
+			forkJoinTasks.add(ForkJoinTask.adapt(task));
+		}
+		if (ForkJoinTask.inForkJoinPool()) {
+			ForkJoinTask.invokeAll(forkJoinTasks);
+		} else if (numThreads == 1) {
+			for (ForkJoinTask<BumFit> task : forkJoinTasks) {
+				task.invoke();
+			}
+		} else {
+			if (pool == null) pool = new ForkJoinPool(Math.min(numThreads, fitters.length));
+			final List<ForkJoinTask<BumFit>> all = forkJoinTasks;
+			pool.invoke(ForkJoinTask.adapt(new Runnable() {
+				public void run() {
+					ForkJoinTask.invokeAll(all);
+				}
+			}));
+		}
+
+		List<BumFit> fits = new ArrayList<BumFit>(tasks.size());
+		for (ForkJoinTask<BumFit> task : forkJoinTasks) {
+			fits.add(task.join());
+		}
+		return fits;
+	}
+
+	/**
+	 * The latest score of every start, shared between the threads.
+	 */
+	private static class Race {
+
+		private final double[] scores;
+
+		Race(int numStarts) {
+
+			scores = new double[numStarts];
+			for (int i = 0; i < numStarts; i++) {
+				scores[i] = Double.POSITIVE_INFINITY;
+			}
+		}
+
+		/**
+		 * Records the start's latest score.
+		 *
+		 * @return the best score of any start so far
+		 */
+		synchronized double report(int start, double score) {
+
+			scores[start] = score;
+			double best = score;
+			for (double s : scores) {
+				if (s < best) best = s;
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * The budget of one start, which also scores the start every CHECK_INTERVAL epochs and stops it if it is losing.
+	 */
+	private static class Start extends FitBudget {
+
+		private final FitBudget shared;
+		private final Race race;
+		private final int index;
+		private final EmpiricalCdf ecdf;
+		private final BumModel bumModel = new BumModel();
+		private double score = Double.POSITIVE_INFINITY;
+		private boolean eliminated = false;
+
+		Start(FitBudget shared, Race race, int index, EmpiricalCdf ecdf) {
+
+			super(shared);
+			this.shared = shared;
+			this.race = race;
+			this.index = index;
+			this.ecdf = ecdf;
+		}
+
+		public boolean allows(int epochs, double[] coeffs) {
+
+			if (shared.isCancelled() || !super.allows(epochs, coeffs)) return false;
+			if (epochs == 0 || epochs % CHECK_INTERVAL != 0) return true;
+
+			score = score(coeffs);
+			if (score > race.report(index, score) * (1 + ELIMINATION_MARGIN)) {
+				eliminated = true;
+				// a stopped start's score must not knock out the rest, so at least one start always finishes
+				race.report(index, Double.POSITIVE_INFINITY);
+				cancel();
+				return false;
+			}
+			return true;
+		}
+
+		void finish(double[] coeffs) {
+
+			score = score(coeffs);
+			race.report(index, score);
+		}
+
+		double getScore() {
+
+			return score;
+		}
+
+		boolean isEliminated() {
+
+			return eliminated;
+		}
+
+		/**
+		 * @return the (weighted) squared error between the empirical and model CDFs, comparable across all starts
+		 */
+		private double score(double[] coeffs) {
+
+			double[] pValues = ecdf.getPValues();
+			double[] cdfValues = ecdf.getCdfValues();
+			double[] weights = ecdf.getWeights();
+			double sumOfSquares = 0;
+			for (int i = 0; i < pValues.length; i++) {
+				double residual = cdfValues[i] - bumModel.cdf(pValues[i], coeffs[0], coeffs[1], coeffs[2]);
+				sumOfSquares += (weights == null) ? residual * residual : weights[i] * residual * residual;
+			}
+			// NaN coefficients never win
+			return Double.isNaN(sumOfSquares) ? Double.POSITIVE_INFINITY : sumOfSquares;
+		}
+	}
+}
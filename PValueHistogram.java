@@ -0,0 +1,188 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A fixed-size, mergeable histogram sketch of p-values.
+ *
+ * Bins are uniform in the transformed scale g(p) = log(1 + p/e) / log(1 + 1/e) with e = 1e-6, which is linear for
+ * p well below e and logarithmic above it.  With the default 16384 bins a bin near p = 1 is about 8e-4 wide while a bin
+ * near p = 1e-3 is about 1e-6 wide, so the resolution is highest near zero where the FDR cutoff lives.
+ * Two histograms with the same number of bins merge by adding counts, so mappers and combiners can build them
+ * independently and a single reducer can fit one global model on the merged result.
+ *
+ * @author Will Findley
+ */
+public class PValueHistogram implements Writable {
+
+	// job configuration key for the number of histogram bins
+	public static final String NUM_BINS = "histogramBins";
+	public static final int DEFAULT_NUM_BINS = 16384;
+
+	private static final double LINEAR_SCALE = 1e-6;
+	private static final double LOG_RANGE = Math.log1p(1 / LINEAR_SCALE);
+
+	private long[] counts;		// number of p-values falling in each bin
+	private long total = 0;		// number of p-values in all bins
+
+	public PValueHistogram() {
+
+		this(DEFAULT_NUM_BINS);
+	}
+
+	public PValueHistogram(int numBins) {
+
+		this.counts = new long[numBins];
+	}
+
+	public int getNumBins() {
+
+		return this.counts.length;
+	}
+
+	public long getTotal() {
+
+		return this.total;
+	}
+
+	public long getCount(int bin) {
+
+		return this.counts[bin];
+	}
+
+	/**
+	 * @return the bin that p falls in, or -1 if p is not a probability
+	 */
+	public int binOf(double p) {
+
+		if (!(p >= 0 && p <= 1)) return -1;
+		int bin = (int) (counts.length * Math.log1p(p / LINEAR_SCALE) / LOG_RANGE);
+		return Math.min(counts.length - 1, bin);
+	}
+
+	/**
+	 * @return the largest p-value belonging to the bin
+	 */
+	public double upperEdge(int bin) {
+
+		if (bin >= counts.length - 1) return 1.0;
+		return LINEAR_SCALE * Math.expm1((bin + 1) * LOG_RANGE / counts.length);
+	}
+
+	/**
+	 * Adds one p-value to the histogram.
+	 *
+	 * @return false if p is not a probability and was not counted
+	 */
+	public boolean add(double p) {
+
+		int bin = binOf(p);
+		if (bin < 0) return false;
+		counts[bin]++;
+		total++;
+		return true;
+	}
+
+	/**
+	 * Adds count p-values to the bin at once.
+	 */
+	public void addCount(int bin, long count) {
+
+		counts[bin] += count;
+		total += count;
+	}
+
+	/**
+	 * Adds the counts of another histogram with the same number of bins into this one.
+	 */
+	public void merge(PValueHistogram other) {
+
+		if (other.counts.length != counts.length) {
+			throw new IllegalArgumentException("cannot merge histograms with " + other.counts.length + " and " + counts.length + " bins");
+		}
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		total += other.total;
+	}
+
+	public void clear() {
+
+		Arrays.fill(counts, 0);
+		total = 0;
+	}
+
+	/**
+	 * The empirical CDF evaluated at the upper edge of every non-empty bin, weighted by the share of p-values in the bin,
+	 * so a weighted fit on it approximates a fit on every p-value that went into the histogram.
+	 */
+	public EmpiricalCdf toEmpiricalCdf() {
+
+		int nonEmpty = 0;
+		for (long count : counts) {
+			if (count > 0) nonEmpty++;
+		}
+
+		double[] pValues = new double[nonEmpty];
+		double[] cdfValues = new double[nonEmpty];
+		double[] weights = new double[nonEmpty];
+		long cumulative = 0;
+		int row = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0) continue;
+			cumulative += counts[i];
+			pValues[row] = upperEdge(i);
+			cdfValues[row] = cumulative / (double) total;
+			weights[row] = counts[i] / (double) total;
+			row++;
+		}
+		return new EmpiricalCdf(pValues, cdfValues, weights);
+	}
+
+	public void readFields(DataInput in) throws IOException {
+
+		int numBins = WritableUtils.readVInt(in);
+		if (counts.length != numBins) {
+			counts = new long[numBins];
+		} else {
+			Arrays.fill(counts, 0);
+		}
+		this.total = WritableUtils.readVLong(in);
+
+		// only the non-empty bins are stored, as gaps from the previous non-empty bin
+		int nonEmpty = WritableUtils.readVInt(in);
+		int bin = -1;
+		for (int i = 0; i < nonEmpty; i++) {
+			bin += WritableUtils.readVInt(in);
+			counts[bin] = WritableUtils.readVLong(in);
+		}
+	}
+
+	public void write(DataOutput out) throws IOException {
+
+		WritableUtils.writeVInt(out, counts.length);
+		WritableUtils.writeVLong(out, total);
+
+		int nonEmpty = 0;
+		for (long count : counts) {
+			if (count > 0) nonEmpty++;
+		}
+		WritableUtils.writeVInt(out, nonEmpty);
+		int previous = -1;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0) continue;
+			WritableUtils.writeVInt(out, i - previous);
+			WritableUtils.writeVLong(out, counts[i]);
+			previous = i;
+		}
+	}
+
+	public String toString() {
+
+		return "bins: " + counts.length + "\t total: " + total;
+	}
+}
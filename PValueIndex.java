@@ -0,0 +1,382 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReaderWrapper;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+/**
+ * The smallest and largest p-value of every stripe of the input files, so that the significance job can skip the
+ * stripes whose smallest p-value is above the cutoff without reading them at all.
+ *
+ * The fitting job builds the index as a side output when BUILD is set: its mappers see every row anyway, so each
+ * keeps the range of the stripe its rows are in and writes one line per stripe to pValueIndex-m-* files next to the
+ * coefficients.  Each line is the file, then the tab separated file length, stripe start and end offsets, smallest and
+ * largest p-value and number of rows.  A stripe holds the rows that start in its STRIPE_SIZE bytes of the file, and a
+ * stripe cut by a split boundary gets one line from each side.
+ *
+ * The significance job, given the index directory as INDEX, reads its splits through IndexedTextInputFormat or
+ * IndexedPValueRecordInputFormat, which drop the skippable stripes from every split.  Anything the index can not vouch
+ * for is read as usual: files it does not list or that have changed length since, compressed files, and stripes it
+ * has no line for.
+ *
+ * @author Will Findley
+ */
+public class PValueIndex {
+
+	// job configuration key which, when true, makes the fitting job write the index
+	public static final String BUILD = "buildPValueIndex";
+	// job configuration key for the index directory the significance job skips stripes by
+	public static final String INDEX = "pValueIndex";
+	// job configuration key for the bytes of each stripe
+	public static final String STRIPE_SIZE = "pValueIndexStripeSize";
+	public static final long DEFAULT_STRIPE_SIZE = 1 << 20;
+	// the name of the side output, and so the prefix of its files
+	public static final String INDEX_OUTPUT = "pValueIndex";
+
+	private static final Log LOG = LogFactory.getLog(PValueIndex.class);
+
+	// the stripes of each indexed file, by its qualified path
+	private final Map<String, FileStripes> files = new HashMap<String, FileStripes>();
+
+	public static void addIndexOutput(Job job) {
+
+		MultipleOutputs.addNamedOutput(job, INDEX_OUTPUT, TextOutputFormat.class, Text.class, Text.class);
+	}
+
+	/**
+	 * Reads every pValueIndex-* file in dir.
+	 */
+	public static PValueIndex read(Configuration conf, Path dir) throws IOException {
+
+		PValueIndex index = new PValueIndex();
+		FileSystem fs = dir.getFileSystem(conf);
+		for (FileStatus status : fs.listStatus(dir)) {
+			if (!status.getPath().getName().startsWith(INDEX_OUTPUT + "-")) continue;
+			BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t");
+					if (fields.length != 7) throw new IOException("malformed p-value index line in " + status.getPath() + ": " + line);
+					index.add(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+							Double.parseDouble(fields[4]), Double.parseDouble(fields[5]));
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return index;
+	}
+
+	void add(String file, long fileLength, long stripeStart, long stripeEnd, double minP, double maxP) {
+
+		FileStripes stripes = files.get(file);
+		if (stripes == null) {
+			stripes = new FileStripes(fileLength);
+			files.put(file, stripes);
+		} else if (stripes.fileLength != fileLength) {
+			// indexed at two different lengths, so trust neither
+			stripes.stale = true;
+		}
+		Stripe stripe = stripes.byStart.get(stripeStart);
+		if (stripe == null) {
+			stripes.byStart.put(stripeStart, new Stripe(stripeEnd, minP, maxP));
+		} else {
+			// the other side of a stripe cut by a split boundary
+			stripe.end = Math.max(stripe.end, stripeEnd);
+			stripe.minP = Math.min(stripe.minP, minP);
+			stripe.maxP = Math.max(stripe.maxP, maxP);
+		}
+	}
+
+	/**
+	 * Narrows the splits down to the parts of them the significance mappers have to read: whole splits as they are,
+	 * splits with some skippable stripes as CombineFileSplits of the ranges left, and splits with nothing left not at all.
+	 *
+	 * @param binary true for fixed-width binary records, which are read exactly by range, false for text lines, which
+	 * are read by the range their first byte is in
+	 */
+	public List<InputSplit> filter(List<InputSplit> splits, double cutoff, boolean binary, Configuration conf) throws IOException {
+
+		CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+		Map<Path, Long> fileLengths = new HashMap<Path, Long>();
+		List<InputSplit> filtered = new ArrayList<InputSplit>(splits.size());
+		long totalBytes = 0;
+		long keptBytes = 0;
+		for (InputSplit genericSplit : splits) {
+			if (!(genericSplit instanceof FileSplit)) {
+				filtered.add(genericSplit);
+				continue;
+			}
+			FileSplit split = (FileSplit) genericSplit;
+			Path file = split.getPath();
+			totalBytes += split.getLength();
+
+			Long fileLength = fileLengths.get(file);
+			if (fileLength == null) {
+				fileLength = file.getFileSystem(conf).getFileStatus(file).getLen();
+				fileLengths.put(file, fileLength);
+			}
+			FileStripes stripes = files.get(file.toString());
+			if (stripes == null || stripes.stale || stripes.fileLength != fileLength || codecs.getCodec(file) != null) {
+				filtered.add(split);
+				keptBytes += split.getLength();
+				continue;
+			}
+
+			// a text split also reads the line starting right at its end, so its stripe counts too
+			long start = split.getStart();
+			long end = start + split.getLength();
+			List<long[]> ranges = stripes.rangesToRead(start, binary ? end : Math.min(end + 1, fileLength), cutoff);
+			if (ranges.isEmpty()) continue;
+			if (ranges.size() == 1 && ranges.get(0)[0] == start && ranges.get(0)[1] >= end) {
+				filtered.add(split);
+				keptBytes += split.getLength();
+				continue;
+			}
+
+			Path[] paths = new Path[ranges.size()];
+			long[] starts = new long[ranges.size()];
+			long[] lengths = new long[ranges.size()];
+			for (int i = 0; i < ranges.size(); i++) {
+				long rangeStart = ranges.get(i)[0];
+				// a text split skips the line its first byte is in, so begin a byte early to keep the line starting the range
+				if (!binary && rangeStart > start) rangeStart--;
+				paths[i] = file;
+				starts[i] = rangeStart;
+				lengths[i] = Math.min(ranges.get(i)[1], end) - rangeStart;
+				keptBytes += lengths[i];
+			}
+			filtered.add(new CombineFileSplit(paths, starts, lengths, split.getLocations()));
+		}
+		LOG.info("P-value index: reading " + keptBytes + " of " + totalBytes + " bytes in " + filtered.size() + " of " + splits.size() + " splits");
+		return filtered;
+	}
+
+	private static List<InputSplit> filter(JobContext job, List<InputSplit> splits, boolean binary) throws IOException {
+
+		Configuration conf = job.getConfiguration();
+		String cutoff = conf.get(MapReduceSignificantFindings.SIGNIFICANCE_P_VALUE_CUTOFF);
+		if (cutoff == null) {
+			throw new IOException(INDEX + " needs the " + MapReduceSignificantFindings.SIGNIFICANCE_P_VALUE_CUTOFF + " computed up front");
+		}
+		return read(conf, new Path(conf.get(INDEX))).filter(splits, Double.parseDouble(cutoff), binary, conf);
+	}
+
+	private static class FileStripes {
+
+		final long fileLength;
+		boolean stale = false;
+		final TreeMap<Long, Stripe> byStart = new TreeMap<Long, Stripe>();
+
+		FileStripes(long fileLength) {
+
+			this.fileLength = fileLength;
+		}
+
+		/**
+		 * @return the {start, end} byte ranges of [start, end) left after cutting out every stripe with all of its
+		 * p-values above the cutoff, merged where they touch
+		 */
+		List<long[]> rangesToRead(long start, long end, double cutoff) {
+
+			List<long[]> ranges = new ArrayList<long[]>();
+			long position = start;
+			// the stripe starting at or before start may reach into the split, so begin the search with it
+			Long first = byStart.floorKey(start);
+			for (Map.Entry<Long, Stripe> entry : byStart.tailMap(first == null ? start : first).entrySet()) {
+				long stripeStart = entry.getKey();
+				if (stripeStart >= end) break;
+				Stripe stripe = entry.getValue();
+				if (stripe.end <= position || stripe.minP <= cutoff) continue;
+				if (stripeStart > position) ranges.add(new long[] {position, stripeStart});
+				position = Math.min(end, stripe.end);
+			}
+			if (position < end) ranges.add(new long[] {position, end});
+			return ranges;
+		}
+	}
+
+	private static class Stripe {
+
+		long end;
+		double minP;
+		double maxP;
+
+		Stripe(long end, double minP, double maxP) {
+
+			this.end = end;
+			this.minP = minP;
+			this.maxP = maxP;
+		}
+	}
+
+	/**
+	 * Keeps the p-value range of the stripe a mapper is reading and writes it out each time the rows move on to the next.
+	 * Rows must be added in file order, as a split's record reader returns them.
+	 */
+	public static class Builder {
+
+		private final MultipleOutputs<?, ?> outputs;
+		private final Text file;
+		private final long fileLength;
+		private final long stripeSize;
+		private final boolean binary;
+		private final Text stripeLine = new Text();
+		private long stripe = -1;
+		private double minP;
+		private double maxP;
+		private long count;
+
+		/**
+		 * @return a builder for the task's split, or null if it reads something the index can not describe
+		 */
+		public static Builder create(MapContext<?, ?, ?, ?> context) throws IOException, InterruptedException {
+
+			Configuration conf = context.getConfiguration();
+			if (!conf.getBoolean(BUILD, false) || !(context.getInputSplit() instanceof FileSplit)) return null;
+			Path path = ((FileSplit) context.getInputSplit()).getPath();
+			if (new CompressionCodecFactory(conf).getCodec(path) != null) return null;
+			return new Builder(context, path);
+		}
+
+		private <KEYOUT, VALUEOUT> Builder(MapContext<?, ?, KEYOUT, VALUEOUT> context, Path path) throws IOException {
+
+			Configuration conf = context.getConfiguration();
+			this.outputs = new MultipleOutputs<KEYOUT, VALUEOUT>(context);
+			this.file = new Text(path.toString());
+			this.fileLength = path.getFileSystem(conf).getFileStatus(path).getLen();
+			this.stripeSize = conf.getLong(STRIPE_SIZE, DEFAULT_STRIPE_SIZE);
+			this.binary = PValueRecord.isBinaryFormat(conf);
+		}
+
+		/**
+		 * Adds the row with the given input key, the line offset of a text row or the record index of a binary one.
+		 */
+		public void add(Object key, double pValue) throws IOException, InterruptedException {
+
+			long offset = ((LongWritable) key).get();
+			if (binary) offset = PValueRecordInputFormat.HEADER_SIZE + offset * PValueRecord.RECORD_SIZE;
+			long rowStripe = offset / stripeSize;
+			if (rowStripe != stripe) {
+				flush();
+				stripe = rowStripe;
+				minP = pValue;
+				maxP = pValue;
+				count = 0;
+			}
+			minP = Math.min(minP, pValue);
+			maxP = Math.max(maxP, pValue);
+			count++;
+		}
+
+		private void flush() throws IOException, InterruptedException {
+
+			if (stripe < 0) return;
+			stripeLine.set(fileLength + "\t" + (stripe * stripeSize) + "\t" + Math.min(fileLength, (stripe + 1) * stripeSize) +
+					"\t" + minP + "\t" + maxP + "\t" + count);
+			outputs.write(INDEX_OUTPUT, file, stripeLine);
+		}
+
+		public void close() throws IOException, InterruptedException {
+
+			flush();
+			outputs.close();
+		}
+	}
+
+	/**
+	 * Text rows as TextInputFormat reads them, skipping the stripes the INDEX rules out.
+	 */
+	public static class IndexedTextInputFormat extends FileInputFormat<LongWritable, Text> {
+
+		private final TextInputFormat textInputFormat = new TextInputFormat();
+
+		public List<InputSplit> getSplits(JobContext job) throws IOException {
+
+			return filter(job, super.getSplits(job), false);
+		}
+
+		protected boolean isSplitable(JobContext context, Path file) {
+
+			CompressionCodec codec = new CompressionCodecFactory(context.getConfiguration()).getCodec(file);
+			return codec == null || codec instanceof SplittableCompressionCodec;
+		}
+
+		public RecordReader<LongWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+
+			if (split instanceof CombineFileSplit) {
+				return new CombineFileRecordReader<LongWritable, Text>((CombineFileSplit) split, context, TextRangeReader.class);
+			}
+			return textInputFormat.createRecordReader(split, context);
+		}
+	}
+
+	/**
+	 * Binary records, skipping the stripes the INDEX rules out.
+	 */
+	public static class IndexedPValueRecordInputFormat extends PValueRecordInputFormat {
+
+		public List<InputSplit> getSplits(JobContext job) throws IOException {
+
+			return filter(job, super.getSplits(job), true);
+		}
+
+		public RecordReader<LongWritable, PValueRecord> createRecordReader(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+
+			if (split instanceof CombineFileSplit) {
+				return new CombineFileRecordReader<LongWritable, PValueRecord>((CombineFileSplit) split, context, RecordRangeReader.class);
+			}
+			return super.createRecordReader(split, context);
+		}
+	}
+
+	// the readers of the single ranges of a CombineFileSplit
+	public static class TextRangeReader extends CombineFileRecordReaderWrapper<LongWritable, Text> {
+
+		public TextRangeReader(CombineFileSplit split, TaskAttemptContext context, Integer index) throws IOException, InterruptedException {
+
+			super(new TextInputFormat(), split, context, index);
+		}
+	}
+
+	public static class RecordRangeReader extends CombineFileRecordReaderWrapper<LongWritable, PValueRecord> {
+
+		public RecordRangeReader(CombineFileSplit split, TaskAttemptContext context, Integer index) throws IOException, InterruptedException {
+
+			super(new PValueRecordInputFormat(), split, context, index);
+		}
+	}
+}
@@ -0,0 +1,287 @@
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Reads the p="..." attribute of a p-value xml row straight from the bytes of its Text, returning a primitive double
+ * without building any Strings along the way.  Binary PValueRecords are passed straight through.
+ *
+ * Decimal numbers are converted with correct rounding, giving exactly what Double.parseDouble would.  Numbers with up to
+ * 15 significant digits and a small decimal exponent are converted with a single exact multiplication or division.
+ * Numbers with up to 18 significant digits, which covers everything Double.toString writes, are divided in double-double
+ * precision and only fall back to Double.parseDouble in the vanishingly rare case that the result lies too close to
+ * a rounding midpoint to be sure of.  Anything else also falls back to Double.parseDouble.
+ *
+ * @author Will Findley
+ */
+public final class PValueParser {
+
+	private static final byte[] P_ATTRIBUTE = {'p', '=', '"'};
+	private static final byte[] ID_ATTRIBUTE = {'I', 'd', '=', '"'};
+	private static final byte[] TRUTH_ATTRIBUTE = {'t', '=', '"'};
+	private static final byte[] GROUP_ATTRIBUTE = {'g', '=', '"'};
+
+	// the powers of ten that are exactly representable as doubles
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	private static final int MAX_FAST_DIGITS = 18;
+	// Dekker's splitting constant, 2^27 + 1
+	private static final double SPLITTER = 134217729.0;
+	// how close to a rounding midpoint, in units of the last place, the double-double quotient can not decide
+	private static final double MIDPOINT_GUARD = 0x1p-40;
+
+	private PValueParser() {
+	}
+
+	/**
+	 * @return the p-value of an xml row Text or a binary PValueRecord, or NaN if there is no p-value between 0 and 1
+	 */
+	public static double parsePValue(Writable value) {
+
+		if (value instanceof PValueRecord) {
+			double p = ((PValueRecord) value).getPValue();
+			return (p >= 0 && p <= 1) ? p : Double.NaN;
+		}
+		return parsePValue((Text) value);
+	}
+
+	/**
+	 * @return the p-value of the xml row, or NaN if the row has no p attribute or its value is not a probability
+	 */
+	public static double parsePValue(Text row) {
+
+		return parsePValue(row.getBytes(), 0, row.getLength());
+	}
+
+	/**
+	 * @return the p-value of the xml row held in bytes [start, end), or NaN if it has no p attribute or its value is not a probability
+	 */
+	public static double parsePValue(byte[] bytes, int start, int end) {
+
+		int valueStart = findAttribute(bytes, start, end, P_ATTRIBUTE);
+		if (valueStart < 0) return Double.NaN;
+		int valueEnd = indexOf(bytes, valueStart, end, (byte) '"');
+		if (valueEnd < 0) return Double.NaN;
+
+		double p = parseDouble(bytes, valueStart, valueEnd);
+		return (p >= 0 && p <= 1) ? p : Double.NaN;
+	}
+
+	/**
+	 * Fills record from the Id, p and t attributes of an xml row.
+	 *
+	 * @return false if the row has no numeric Id or no p-value between 0 and 1
+	 */
+	public static boolean parseRecord(Text row, PValueRecord record) {
+
+		return parseRecord(row.getBytes(), 0, row.getLength(), record);
+	}
+
+	/**
+	 * Fills record from the Id, p and t attributes of the xml row held in bytes [start, end).
+	 *
+	 * @return false if the row has no numeric Id or no p-value between 0 and 1
+	 */
+	public static boolean parseRecord(byte[] bytes, int start, int end, PValueRecord record) {
+
+		double p = parsePValue(bytes, start, end);
+		if (Double.isNaN(p)) return false;
+
+		int idStart = findAttribute(bytes, start, end, ID_ATTRIBUTE);
+		if (idStart < 0) return false;
+		int idEnd = indexOf(bytes, idStart, end, (byte) '"');
+		if (idEnd <= idStart || idEnd - idStart > 18) return false;
+		int i = idStart;
+		boolean negative = bytes[i] == '-';
+		if (negative) i++;
+		if (i == idEnd) return false;
+		long id = 0;
+		for (; i < idEnd; i++) {
+			if (bytes[i] < '0' || bytes[i] > '9') return false;
+			id = 10 * id + (bytes[i] - '0');
+		}
+
+		// rows without a truth flag are taken as null hypotheses
+		int truthStart = findAttribute(bytes, start, end, TRUTH_ATTRIBUTE);
+		boolean trueFinding = truthStart >= 0 && truthStart < end && bytes[truthStart] == '1';
+
+		record.setId(negative ? -id : id);
+		record.setPValue(p);
+		record.setTrueFinding(trueFinding);
+		return true;
+	}
+
+	/**
+	 * Sets group to the g attribute of an xml row, the group of grouped FDR.
+	 *
+	 * @return false if the row has no g attribute
+	 */
+	public static boolean parseGroup(Text row, Text group) {
+
+		byte[] bytes = row.getBytes();
+		int end = row.getLength();
+		int groupStart = findAttribute(bytes, 0, end, GROUP_ATTRIBUTE);
+		if (groupStart < 0) return false;
+		int groupEnd = indexOf(bytes, groupStart, end, (byte) '"');
+		if (groupEnd < 0) return false;
+		group.set(bytes, groupStart, groupEnd - groupStart);
+		return true;
+	}
+
+	/**
+	 * @return the position just after the opening quote of the attribute (given as name=") in bytes [start, end), or -1 if it is not there
+	 */
+	static int findAttribute(byte[] bytes, int start, int end, byte[] attribute) {
+
+		int last = end - attribute.length;
+		for (int i = start; i <= last; i++) {
+			// the attribute name has to start a word, so that e.g. Id="..." does not match d="
+			if (i > start && bytes[i-1] != ' ' && bytes[i-1] != '\t') continue;
+			int k = 0;
+			while (k < attribute.length && bytes[i+k] == attribute[k]) k++;
+			if (k == attribute.length) return i + k;
+		}
+		return -1;
+	}
+
+	static int indexOf(byte[] bytes, int start, int end, byte b) {
+
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == b) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses the decimal number in bytes [start, end), in the same syntax Double.toString writes.
+	 *
+	 * @return the correctly rounded double, or NaN if the bytes are not a decimal number
+	 */
+	public static double parseDouble(byte[] bytes, int start, int end) {
+
+		int i = start;
+		boolean negative = false;
+		if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+			negative = bytes[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int significantDigits = 0;
+		int decimalExponent = 0;
+		int digits = 0;
+		boolean pastPoint = false;
+		for (; i < end; i++) {
+			byte b = bytes[i];
+			if (b >= '0' && b <= '9') {
+				digits++;
+				if (mantissa == 0 && b == '0') {
+					// leading zeros are not significant
+					if (pastPoint) decimalExponent--;
+				} else if (significantDigits < MAX_FAST_DIGITS) {
+					mantissa = 10 * mantissa + (b - '0');
+					significantDigits++;
+					if (pastPoint) decimalExponent--;
+				} else {
+					// too many digits to hold exactly, let the slow path have it
+					significantDigits++;
+				}
+			} else if (b == '.' && !pastPoint) {
+				pastPoint = true;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0) return Double.NaN;
+
+		if (i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+				negativeExponent = bytes[i] == '-';
+				i++;
+			}
+			int exponent = 0;
+			int exponentDigits = 0;
+			for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+				if (exponent < 100000) exponent = 10 * exponent + (bytes[i] - '0');
+				exponentDigits++;
+			}
+			if (exponentDigits == 0) return Double.NaN;
+			decimalExponent += negativeExponent ? -exponent : exponent;
+		}
+		if (i != end) return Double.NaN;
+
+		double value;
+		if (mantissa == 0) {
+			value = 0;
+		} else if (significantDigits > MAX_FAST_DIGITS) {
+			return slowParse(bytes, start, end);
+		} else if (mantissa <= MAX_EXACT_MANTISSA && decimalExponent >= -22 && decimalExponent <= 22) {
+			// both the mantissa and the power of ten are exact, so one correctly rounded operation is enough
+			value = decimalExponent < 0 ? mantissa / POWERS_OF_TEN[-decimalExponent] : mantissa * POWERS_OF_TEN[decimalExponent];
+		} else if (decimalExponent < 0 && decimalExponent >= -22) {
+			value = divideCorrectlyRounded(mantissa, POWERS_OF_TEN[-decimalExponent]);
+			if (Double.isNaN(value)) return slowParse(bytes, start, end);
+		} else {
+			return slowParse(bytes, start, end);
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Divides a mantissa of up to 18 digits by an exact power of ten in double-double precision.
+	 *
+	 * @return the correctly rounded quotient, or NaN if it is too close to a rounding midpoint to tell
+	 */
+	private static double divideCorrectlyRounded(long mantissa, double powerOfTen) {
+
+		// the mantissa as an exact double-double
+		double hi = (double) mantissa;
+		double lo = (double) (mantissa - (long) hi);
+
+		// first quotient, then the remainder computed exactly through Dekker's product
+		double q1 = hi / powerOfTen;
+		double product = q1 * powerOfTen;
+		double productError = twoProductError(q1, powerOfTen, product);
+		double remainder = ((hi - product) - productError) + lo;
+		double q2 = remainder / powerOfTen;
+
+		double sum = q1 + q2;
+		double sumError = q2 - (sum - q1);
+
+		// sum is the correct rounding unless the exact quotient sits right next to a midpoint, or sum is a power of two
+		// where the spacing of doubles changes
+		double halfUlp = Math.ulp(sum) / 2;
+		if (Math.abs(Math.abs(sumError) - halfUlp) <= MIDPOINT_GUARD * halfUlp) return Double.NaN;
+		if ((Double.doubleToRawLongBits(sum) & 0x000fffffffffffffL) == 0) return Double.NaN;
+		return sum;
+	}
+
+	/**
+	 * @return the rounding error of the double product a * b, so that a * b = product + error exactly
+	 */
+	static double twoProductError(double a, double b, double product) {
+
+		double t = SPLITTER * a;
+		double aHi = t - (t - a);
+		double aLo = a - aHi;
+		t = SPLITTER * b;
+		double bHi = t - (t - b);
+		double bLo = b - bHi;
+		return ((aHi * bHi - product) + aHi * bLo + aLo * bHi) + aLo * bLo;
+	}
+
+	private static double slowParse(byte[] bytes, int start, int end) {
+
+		try {
+			return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,280 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * One p-value record of the compact binary format: the hypothesis id, its p-value and whether it is a true finding.
+ *
+ * Every record takes exactly RECORD_SIZE bytes (a long, a double and a byte, big-endian), so a file of records can be
+ * split anywhere and read back without any text parsing.  See PValueRecordInputFormat and PValueRecordOutputFormat.
+ * toString gives the xml row of the text format, so binary records written with TextOutputFormat come out as xml rows.
+ * toXml writes the same row without building Strings, its p-value to 17 significant digits rather than toString's
+ * shortest form, which reads back as the very same double.
+ *
+ * @author Will Findley
+ */
+public class PValueRecord implements Writable {
+
+	// job configuration key choosing how p-values are stored, XML_FORMAT (the default) or BINARY_FORMAT
+	public static final String FORMAT = "pValueFormat";
+	// one <row Id="..." p="..." t="..." /> text line per p-value
+	public static final String XML_FORMAT = "xml";
+	// fixed-width PValueRecords
+	public static final String BINARY_FORMAT = "binary";
+
+	public static final int RECORD_SIZE = 8 + 8 + 1;
+	// room enough for any xml row toXml writes
+	public static final int MAX_XML_LENGTH = 96;
+
+	private static final byte[] XML_START = {'<', 'r', 'o', 'w', ' ', 'I', 'd', '=', '"'};
+	private static final byte[] XML_P = {'"', ' ', 'p', '=', '"'};
+	private static final byte[] XML_T = {'"', ' ', 't', '=', '"'};
+	private static final byte[] XML_END = {'"', ' ', '/', '>'};
+	private static final byte[] ZERO = {'0', '.', '0'};
+	// the significant digits toXml writes of a p-value, enough for every double to read back as itself
+	private static final int XML_DIGITS = 17;
+	private static final long MIN_XML_MANTISSA = 10000000000000000L;
+	private static final long MAX_XML_MANTISSA = 10 * MIN_XML_MANTISSA;
+	// p-values from here up are scaled by the double-double powers of ten, the few smaller ones through BigDecimal
+	private static final double MIN_FAST_P_VALUE = 1e-280;
+	// how close to a rounding midpoint, in units of the last digit, the double-double product can not decide
+	private static final double MIDPOINT_GUARD = 1e-9;
+	// 10^0 to 10^299 as unevaluated sums hi + lo of two doubles, good to about 106 bits
+	private static final double[] POWERS_OF_TEN_HI = new double[300];
+	private static final double[] POWERS_OF_TEN_LO = new double[300];
+	static {
+		for (int i = 0; i < POWERS_OF_TEN_HI.length; i++) {
+			BigDecimal power = BigDecimal.TEN.pow(i);
+			POWERS_OF_TEN_HI[i] = power.doubleValue();
+			POWERS_OF_TEN_LO[i] = power.subtract(new BigDecimal(POWERS_OF_TEN_HI[i])).doubleValue();
+		}
+	}
+
+	private long id = 0;		// the hypothesis label
+	private double pValue = 0;	// the p-value of the hypothesis
+	private boolean trueFinding = false;	// true for a real difference, false for a null hypothesis
+
+	public long getId() {
+
+		return this.id;
+	}
+
+	public void setId(long id) {
+
+		this.id = id;
+	}
+
+	public double getPValue() {
+
+		return this.pValue;
+	}
+
+	public void setPValue(double pValue) {
+
+		this.pValue = pValue;
+	}
+
+	public boolean isTrueFinding() {
+
+		return this.trueFinding;
+	}
+
+	public void setTrueFinding(boolean trueFinding) {
+
+		this.trueFinding = trueFinding;
+	}
+
+	public static boolean isBinaryFormat(Configuration conf) {
+
+		return BINARY_FORMAT.equals(conf.get(FORMAT, XML_FORMAT));
+	}
+
+	/**
+	 * Fills this record from the RECORD_SIZE bytes at offset in buffer.
+	 */
+	public void decode(byte[] buffer, int offset) {
+
+		long idBits = 0;
+		long pBits = 0;
+		for (int i = 0; i < 8; i++) {
+			idBits = (idBits << 8) | (buffer[offset + i] & 0xff);
+			pBits = (pBits << 8) | (buffer[offset + 8 + i] & 0xff);
+		}
+		this.id = idBits;
+		this.pValue = Double.longBitsToDouble(pBits);
+		this.trueFinding = buffer[offset + 16] != 0;
+	}
+
+	/**
+	 * Writes this record into the RECORD_SIZE bytes at offset in buffer.
+	 */
+	public void encode(byte[] buffer, int offset) {
+
+		long pBits = Double.doubleToRawLongBits(this.pValue);
+		for (int i = 7; i >= 0; i--) {
+			buffer[offset + i] = (byte) (id >>> (8 * (7 - i)));
+			buffer[offset + 8 + i] = (byte) (pBits >>> (8 * (7 - i)));
+		}
+		buffer[offset + 16] = (byte) (trueFinding ? 1 : 0);
+	}
+
+	public void readFields(DataInput in) throws IOException {
+
+		this.id = in.readLong();
+		this.pValue = in.readDouble();
+		this.trueFinding = in.readBoolean();
+	}
+
+	public void write(DataOutput out) throws IOException {
+
+		out.writeLong(this.id);
+		out.writeDouble(this.pValue);
+		out.writeBoolean(this.trueFinding);
+	}
+
+	public String toString() {
+
+		return "<row Id=\"" + this.id + "\" p=\"" + this.pValue + "\" t=\"" + (this.trueFinding ? 1 : 0) + "\" />";
+	}
+
+	/**
+	 * Writes the xml row into buffer, which must hold MAX_XML_LENGTH bytes, without building any Strings.  The p-value
+	 * is written to 17 significant digits, in plain notation from 0.001 up and in E notation below, as Double.toString
+	 * would but not always as briefly.
+	 *
+	 * @return the length of the row
+	 */
+	public int toXml(byte[] buffer) {
+
+		int position = put(XML_START, buffer, 0);
+		position = putLong(this.id, buffer, position);
+		position = put(XML_P, buffer, position);
+		position = putProbability(this.pValue, buffer, position);
+		position = put(XML_T, buffer, position);
+		buffer[position++] = (byte) (this.trueFinding ? '1' : '0');
+		return put(XML_END, buffer, position);
+	}
+
+	private static int put(byte[] bytes, byte[] buffer, int position) {
+
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		return position + bytes.length;
+	}
+
+	private static int putLong(long value, byte[] buffer, int position) {
+
+		if (value < 0) {
+			if (value == Long.MIN_VALUE) return put(Long.toString(value).getBytes(StandardCharsets.US_ASCII), buffer, position);
+			buffer[position++] = '-';
+			value = -value;
+		}
+		int numDigits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			numDigits++;
+		}
+		return putDigits(value, numDigits, buffer, position);
+	}
+
+	/**
+	 * Writes exactly numDigits decimal digits of value, with leading zeros.
+	 */
+	private static int putDigits(long value, int numDigits, byte[] buffer, int position) {
+
+		for (int i = position + numDigits - 1; i >= position; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return position + numDigits;
+	}
+
+	private static int putProbability(double p, byte[] buffer, int position) {
+
+		// everything outside [0, 1] takes the slow road, as no generated p-value ever does
+		if (!(p >= 0 && p <= 1)) return put(Double.toString(p).getBytes(StandardCharsets.US_ASCII), buffer, position);
+		if (p == 0) return put(ZERO, buffer, position);
+
+		// the significant digits as one long, p ~ mantissa * 10^(exponent - XML_DIGITS + 1)
+		int exponent = 0;
+		long mantissa = -1;
+		if (p >= MIN_FAST_P_VALUE) {
+			exponent = (int) Math.floor(Math.log10(p));
+			mantissa = scaleToMantissa(p, XML_DIGITS - 1 - exponent);
+			// log10 can be one off right next to a power of ten
+			if (mantissa >= MAX_XML_MANTISSA) {
+				exponent++;
+				mantissa = scaleToMantissa(p, XML_DIGITS - 1 - exponent);
+			} else if (mantissa >= 0 && mantissa <= MIN_XML_MANTISSA) {
+				// a p-value just below a power of ten may have rounded up to it at one digit too few
+				long lower = scaleToMantissa(p, XML_DIGITS - exponent);
+				if (lower < MAX_XML_MANTISSA) {
+					exponent--;
+					mantissa = lower;
+				}
+			}
+		}
+		if (mantissa < 0) {
+			// exactly, for the tiniest p-values and the one in billions too close to a midpoint
+			BigDecimal rounded = new BigDecimal(p).round(new MathContext(XML_DIGITS, RoundingMode.HALF_EVEN));
+			exponent = rounded.precision() - rounded.scale() - 1;
+			mantissa = rounded.unscaledValue().longValue();
+			for (int i = rounded.precision(); i < XML_DIGITS; i++) {
+				mantissa *= 10;
+			}
+		}
+		if (mantissa >= MAX_XML_MANTISSA) {
+			// rounded up to the next power of ten
+			exponent++;
+			mantissa /= 10;
+		}
+
+		int numDigits = XML_DIGITS;
+		while (numDigits > 1 && mantissa % 10 == 0) {
+			mantissa /= 10;
+			numDigits--;
+		}
+
+		if (exponent >= -3 && exponent < 0) {
+			// plain notation, 0.00ddd
+			buffer[position++] = '0';
+			buffer[position++] = '.';
+			for (int i = -1; i > exponent; i--) {
+				buffer[position++] = '0';
+			}
+			return putDigits(mantissa, numDigits, buffer, position);
+		}
+
+		// d.ddd, followed by E-x in E notation
+		long divisor = 1;
+		for (int i = 1; i < numDigits; i++) {
+			divisor *= 10;
+		}
+		buffer[position++] = (byte) ('0' + mantissa / divisor);
+		buffer[position++] = '.';
+		position = (numDigits == 1) ? putDigits(0, 1, buffer, position) : putDigits(mantissa % divisor, numDigits - 1, buffer, position);
+		if (exponent == 0) return position;
+		buffer[position++] = 'E';
+		return putLong(exponent, buffer, position);
+	}
+
+	/**
+	 * @return p * 10^power correctly rounded to a long, computed in double-double precision, or -1 if it lies too close
+	 * to a rounding midpoint to tell
+	 */
+	private static long scaleToMantissa(double p, int power) {
+
+		double product = p * POWERS_OF_TEN_HI[power];
+		double error = PValueParser.twoProductError(p, POWERS_OF_TEN_HI[power], product) + p * POWERS_OF_TEN_LO[power];
+		double whole = Math.floor(product);
+		double fraction = (product - whole) + error;
+		double rounded = Math.floor(fraction + 0.5);
+		if (Math.abs(fraction - rounded) >= 0.5 - MIDPOINT_GUARD) return -1;
+		return (long) whole + (long) rounded;
+	}
+}
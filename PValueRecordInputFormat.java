@@ -0,0 +1,141 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Reads files of fixed-width PValueRecords, keyed by the record's index in its file.
+ *
+ * Files start with a HEADER_SIZE byte header, the magic bytes "PVR1" followed by the record size as an int,
+ * and then hold nothing but records.  Splits can start and end anywhere: each split reads exactly the records
+ * that start inside it.
+ *
+ * @author Will Findley
+ */
+public class PValueRecordInputFormat extends FileInputFormat<LongWritable, PValueRecord> {
+
+	public static final byte[] MAGIC = {'P', 'V', 'R', '1'};
+	public static final int HEADER_SIZE = MAGIC.length + 4;
+
+	// records are read from the file this many at a time
+	private static final int RECORDS_PER_READ = 4096;
+
+	public RecordReader<LongWritable, PValueRecord> createRecordReader(InputSplit split, TaskAttemptContext context)
+		throws IOException, InterruptedException {
+
+		return new PValueRecordReader();
+	}
+
+	/**
+	 * @return the number of records in a binary p-value file of the given length
+	 */
+	public static long numRecords(long fileLength) {
+
+		return Math.max(0, fileLength - HEADER_SIZE) / PValueRecord.RECORD_SIZE;
+	}
+
+	/**
+	 * Checks the header of a binary p-value file, failing with an IOException if it is not one.
+	 */
+	public static void checkHeader(FSDataInputStream in, Path file) throws IOException {
+
+		byte[] header = new byte[HEADER_SIZE];
+		try {
+			in.readFully(0, header);
+		} catch (EOFException e) {
+			throw new IOException(file + " is too short to be a binary p-value file");
+		}
+		checkHeader(header, file.toString());
+	}
+
+	/**
+	 * Checks the HEADER_SIZE bytes at the start of the named file, failing with an IOException if it is not a binary p-value file.
+	 */
+	public static void checkHeader(byte[] header, String file) throws IOException {
+
+		int recordSize = ((header[4] & 0xff) << 24) | ((header[5] & 0xff) << 16) | ((header[6] & 0xff) << 8) | (header[7] & 0xff);
+		if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC) || recordSize != PValueRecord.RECORD_SIZE) {
+			throw new IOException(file + " is not a binary p-value file of " + PValueRecord.RECORD_SIZE + " byte records");
+		}
+	}
+
+	public static class PValueRecordReader extends RecordReader<LongWritable, PValueRecord> {
+
+		private FSDataInputStream in;
+		private long firstRecord = 0;
+		private long endRecord = 0;
+		private long nextRecord = 0;
+		private LongWritable key = new LongWritable();
+		private PValueRecord value = new PValueRecord();
+
+		private byte[] buffer = new byte[RECORDS_PER_READ * PValueRecord.RECORD_SIZE];
+		private int bufferedRecords = 0;
+		private int bufferPosition = 0;
+
+		public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException, InterruptedException {
+
+			FileSplit split = (FileSplit) genericSplit;
+			Configuration conf = context.getConfiguration();
+			Path file = split.getPath();
+			FileSystem fs = file.getFileSystem(conf);
+			long fileLength = fs.getFileStatus(file).getLen();
+
+			in = fs.open(file);
+			checkHeader(in, file);
+
+			// the records starting in [start, end) belong to this split
+			int recordSize = PValueRecord.RECORD_SIZE;
+			long start = Math.max(split.getStart(), HEADER_SIZE) - HEADER_SIZE;
+			long end = Math.max(split.getStart() + split.getLength(), HEADER_SIZE) - HEADER_SIZE;
+			firstRecord = (start + recordSize - 1) / recordSize;
+			endRecord = Math.min(numRecords(fileLength), (end + recordSize - 1) / recordSize);
+			nextRecord = firstRecord;
+
+			in.seek(HEADER_SIZE + firstRecord * recordSize);
+		}
+
+		public boolean nextKeyValue() throws IOException, InterruptedException {
+
+			if (nextRecord >= endRecord) return false;
+
+			if (bufferPosition == bufferedRecords) {
+				bufferedRecords = (int) Math.min(RECORDS_PER_READ, endRecord - nextRecord);
+				in.readFully(buffer, 0, bufferedRecords * PValueRecord.RECORD_SIZE);
+				bufferPosition = 0;
+			}
+
+			value.decode(buffer, bufferPosition * PValueRecord.RECORD_SIZE);
+			key.set(nextRecord);
+			bufferPosition++;
+			nextRecord++;
+			return true;
+		}
+
+		public LongWritable getCurrentKey() throws IOException, InterruptedException {
+			return key;
+		}
+
+		public PValueRecord getCurrentValue() throws IOException, InterruptedException {
+			return value;
+		}
+
+		public float getProgress() throws IOException, InterruptedException {
+			if (endRecord == firstRecord) return 1.0f;
+			return (float) (nextRecord - firstRecord) / (float) (endRecord - firstRecord);
+		}
+
+		public void close() throws IOException {
+			if (in != null) in.close();
+		}
+	}
+}
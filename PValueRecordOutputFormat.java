@@ -0,0 +1,49 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Writes the PValueRecord keys of a job as binary p-value files readable by PValueRecordInputFormat.
+ *
+ * @author Will Findley
+ */
+public class PValueRecordOutputFormat extends FileOutputFormat<PValueRecord, NullWritable> {
+
+	public RecordWriter<PValueRecord, NullWritable> getRecordWriter(TaskAttemptContext context) throws IOException, InterruptedException {
+
+		Path file = getDefaultWorkFile(context, ".pvr");
+		FileSystem fs = file.getFileSystem(context.getConfiguration());
+		FSDataOutputStream out = fs.create(file, false);
+		return new PValueRecordWriter(out);
+	}
+
+	public static class PValueRecordWriter extends RecordWriter<PValueRecord, NullWritable> {
+
+		private DataOutputStream out;
+
+		public PValueRecordWriter(FSDataOutputStream out) throws IOException {
+
+			this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+			this.out.write(PValueRecordInputFormat.MAGIC);
+			this.out.writeInt(PValueRecord.RECORD_SIZE);
+		}
+
+		public void write(PValueRecord key, NullWritable value) throws IOException, InterruptedException {
+
+			key.write(out);
+		}
+
+		public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+
+			out.close();
+		}
+	}
+}
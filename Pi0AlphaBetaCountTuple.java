@@ -71,5 +71,37 @@ public class Pi0AlphaBetaCountTuple implements Writable {
 
 		return "pi0: " + this.pi0 + "\t alpha: " + this.alpha + "\t beta: " + this.beta + "\t count: " + this.count;
 	}
+
+	/**
+	 * Reads back a tuple written by toString, e.g. the value column of the BUM fitting job's text output.
+	 *
+	 * @throws IllegalArgumentException if text is not in the toString format
+	 */
+	public static Pi0AlphaBetaCountTuple parse(String text) {
+
+		String[] fields = text.trim().split("\t");
+		if (fields.length != 4) {
+			throw new IllegalArgumentException("not a BUM coefficients tuple: " + text);
+		}
+		try {
+			Pi0AlphaBetaCountTuple tuple = new Pi0AlphaBetaCountTuple();
+			tuple.setPi0(Double.parseDouble(fieldValue(fields[0], "pi0:")));
+			tuple.setAlpha(Double.parseDouble(fieldValue(fields[1], "alpha:")));
+			tuple.setBeta(Double.parseDouble(fieldValue(fields[2], "beta:")));
+			tuple.setCount(Long.parseLong(fieldValue(fields[3], "count:")));
+			return tuple;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("not a BUM coefficients tuple: " + text, e);
+		}
+	}
+
+	private static String fieldValue(String field, String label) {
+
+		field = field.trim();
+		if (!field.startsWith(label)) {
+			throw new IllegalArgumentException("expected " + label + " but found " + field);
+		}
+		return field.substring(label.length()).trim();
+	}
 }
 
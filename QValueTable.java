@@ -0,0 +1,96 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.commons.math3.distribution.BetaDistribution;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The q-value and local FDR curves of a fitted BUM model, tabulated once on a dense grid so that mappers can look up
+ * every row in constant time instead of evaluating the beta distribution per record.
+ *
+ * The grid is evenly spaced in log p from MIN_P up to 1, and values in between are interpolated linearly in log p.
+ * Below MIN_P both curves follow their small-p asymptote, which for alpha < 1 goes as p^(1 - alpha).
+ *
+ * @author Will Findley
+ */
+public class QValueTable implements Writable {
+
+	public static final int DEFAULT_NUM_POINTS = 4097;
+	// the smallest tabulated p-value
+	public static final double MIN_P = 1e-12;
+
+	private static final double MIN_LOG_P = Math.log(MIN_P);
+
+	private double alpha = 0.5;
+	private double[] qValues = new double[0];
+	private double[] localFdrs = new double[0];
+	// number of grid steps per unit of log p
+	private double stepsPerLogP = 0;
+
+	/**
+	 * Tabulates the q-values of the BUM model (pi0, alpha, beta) at numPoints p-values.
+	 */
+	public static QValueTable tabulate(double pi0, double alpha, double beta, int numPoints) {
+
+		QValueTable table = new QValueTable();
+		BetaDistribution trueDiscoveries = new BetaDistribution(alpha, beta);
+		table.alpha = alpha;
+		table.qValues = new double[numPoints];
+		table.localFdrs = new double[numPoints];
+		table.stepsPerLogP = (numPoints - 1) / -MIN_LOG_P;
+		for (int i = 0; i < numPoints; i++) {
+			double p = (i == numPoints - 1) ? 1 : Math.exp(MIN_LOG_P + i / table.stepsPerLogP);
+			table.qValues[i] = MapReduceSignificantFindings.CheckSignificanceMapper.determineQValue(pi0, trueDiscoveries, p);
+			// the share of the mixture density at p that comes from the uniform null hypotheses
+			table.localFdrs[i] = pi0 / (pi0 + (1-pi0) * trueDiscoveries.density(p));
+		}
+		return table;
+	}
+
+	public double qValue(double p) {
+
+		return lookUp(qValues, p);
+	}
+
+	public double localFdr(double p) {
+
+		return lookUp(localFdrs, p);
+	}
+
+	private double lookUp(double[] values, double p) {
+
+		if (p >= 1) return values[values.length - 1];
+		if (p <= 0) return 0;
+		if (p < MIN_P) return values[0] * Math.pow(p / MIN_P, 1 - alpha);
+
+		double position = (Math.log(p) - MIN_LOG_P) * stepsPerLogP;
+		int i = Math.min((int) position, values.length - 2);
+		double fraction = position - i;
+		return values[i] + fraction * (values[i+1] - values[i]);
+	}
+
+	public void readFields(DataInput in) throws IOException {
+
+		this.alpha = in.readDouble();
+		this.stepsPerLogP = in.readDouble();
+		int numPoints = in.readInt();
+		this.qValues = new double[numPoints];
+		this.localFdrs = new double[numPoints];
+		for (int i = 0; i < numPoints; i++) {
+			this.qValues[i] = in.readDouble();
+			this.localFdrs[i] = in.readDouble();
+		}
+	}
+
+	public void write(DataOutput out) throws IOException {
+
+		out.writeDouble(this.alpha);
+		out.writeDouble(this.stepsPerLogP);
+		out.writeInt(this.qValues.length);
+		for (int i = 0; i < this.qValues.length; i++) {
+			out.writeDouble(this.qValues[i]);
+			out.writeDouble(this.localFdrs[i]);
+		}
+	}
+}
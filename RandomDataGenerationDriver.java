@@ -1,4 +1,5 @@
 import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.ArrayList;
 import java.util.List;
 import java.io.DataInput;
@@ -18,6 +19,7 @@ import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.hadoop.conf.Configured;
@@ -31,8 +33,23 @@ import org.apache.commons.math3.distribution.BetaDistribution;
  */ 
 public class RandomDataGenerationDriver extends Configured implements Tool {
 
+	// the job the last run submitted
+	private Job job;
+
+	/**
+	 * @return the job the last run submitted, e.g. for its counters, or null if it has not submitted one
+	 */
+	public Job getJob() {
+
+		return this.job;
+	}
+
 	public static void main(String[] args) throws Exception {
 
+		// pull out the -D job settings first so that only the positional args are counted
+		Configuration conf = new Configuration();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
 		if (args.length != 6) {
 			System.out.println("\n" + 
 					"This program generates a mixed uniform beta distribution of p-values " +  
@@ -44,11 +61,14 @@ public class RandomDataGenerationDriver extends Configured implements Tool {
 					"args2 - pi0, the proportion of p-values that are uniformly distributed (false hypotheses) \n" +
 					"args3 - alpha, the alpha for the beta distribution; less than one yields smaller values (strong true hypotheses) \n" +
 					"args4 - beta, the beta for the beta distribution; greater than one yields larger values (weak true hypotheses) \n" +
-					"args5 - slave directory in which to write p-value xml.\n"
+					"args5 - slave directory in which to write p-value xml.\n\n" +
+					"-D pValueFormat=binary writes fixed-width binary p-value records instead of xml rows \n" +
+					"-D random.generator.sampler=gamma draws p-values with the much faster gamma ratio beta sampler \n" +
+					"-D random.generator.seed=[seed] makes the generated p-values repeatable \n"
 					);
 			return;
 		}
-		int res = ToolRunner.run(new Configuration(), new RandomDataGenerationDriver(), args);
+		int res = ToolRunner.run(conf, new RandomDataGenerationDriver(), args);
 		System.exit(res);
 	}
 
@@ -63,7 +83,7 @@ public class RandomDataGenerationDriver extends Configured implements Tool {
 		conf.set("pi0", args[2]);	// proportion of false hypotheses
 		conf.set("alpha", args[3]);	// true hypotheses effect on low p-values
 		conf.set("beta", args[4]);	// true hypotheses effect on high p-values
-		Job job = Job.getInstance(conf, "RandomDataGenerationDriver");
+		job = Job.getInstance(conf, "RandomDataGenerationDriver");
 		job.setJarByClass(RandomDataGenerationDriver.class);
 
 		// Because we're mapping out random data and not analyzing
@@ -71,24 +91,52 @@ public class RandomDataGenerationDriver extends Configured implements Tool {
 
 		job.setInputFormatClass(RandomPValueInputFormat.class);
 
+		// the gamma sampler always runs from a job seed, chosen here unless one was given, so every split can derive its own
+		if (RandomPValueInputFormat.isGammaSampler(job.getConfiguration()) &&
+				job.getConfiguration().get(RandomPValueInputFormat.SEED) == null) {
+			job.getConfiguration().setLong(RandomPValueInputFormat.SEED, new Random().nextLong());
+		}
+
 		RandomPValueInputFormat.setNumMapTasks(job, numMapTasks);
 		RandomPValueInputFormat.setNumRecordPerTask(job, numRecordsPerTask);
 
 		TextOutputFormat.setOutputPath(job, outputDir);
 
-		job.setOutputKeyClass(Text.class);
+		// xml text lines by default, or fixed-width binary records
+		if (PValueRecord.isBinaryFormat(conf)) {
+			job.setOutputFormatClass(PValueRecordOutputFormat.class);
+			job.setOutputKeyClass(PValueRecord.class);
+		} else {
+			job.setOutputKeyClass(Text.class);
+		}
 		job.setOutputValueClass(NullWritable.class);
 
 		return job.waitForCompletion(true) ? 0 : 1;
 	}
 
-	// There's not much in here other than empty overrides because we're not reading in anything, just writing
+	// There's not much in here other than the split's index because we're not reading in anything, just writing
 	public static class FakeInputSplit extends InputSplit implements Writable {
 
-		public void readFields(DataInput arg0) throws IOException {
+		// which of the job's splits this is, so that each one draws different random p-values from a shared seed
+		private int index = 0;
+
+		public FakeInputSplit() {
+		}
+
+		public FakeInputSplit(int index) {
+			this.index = index;
 		}
 
-		public void write(DataOutput arg0) throws IOException {
+		public int getIndex() {
+			return this.index;
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			this.index = in.readInt();
+		}
+
+		public void write(DataOutput out) throws IOException {
+			out.writeInt(this.index);
 		}
 
 		public long getLength() throws IOException, InterruptedException {
@@ -100,10 +148,18 @@ public class RandomDataGenerationDriver extends Configured implements Tool {
 		}
 	}
 
-	public static class RandomPValueInputFormat extends InputFormat<Text,NullWritable> {
+	public static class RandomPValueInputFormat extends InputFormat<Writable,NullWritable> {
 
 		public static final String NUM_MAP_TASKS = "random.generator.map.tasks";
 		public static final String NUM_RECORDS_PER_TASK = "random.generator.num.records.per.map.task";
+		// optional seed for repeatable data, e.g. in benchmarks
+		public static final String SEED = "random.generator.seed";
+		// how true hypotheses' p-values are drawn, INVERSE_SAMPLER (the default) or GAMMA_SAMPLER
+		public static final String SAMPLER = "random.generator.sampler";
+		// inverting the beta CDF of a uniform value, with one root find per p-value
+		public static final String INVERSE_SAMPLER = "inverse";
+		// BetaSampler's gamma ratio, from a SplittableRandom split off the job seed for each split
+		public static final String GAMMA_SAMPLER = "gamma";
 
 		public List<InputSplit> getSplits(JobContext job) throws IOException {
 
@@ -111,13 +167,13 @@ public class RandomDataGenerationDriver extends Configured implements Tool {
 
 			ArrayList<InputSplit> splits = new ArrayList<InputSplit>();
 			for (int i = 0; i < numSplits; i++) {
-				splits.add(new FakeInputSplit());
+				splits.add(new FakeInputSplit(i));
 			}
 
 			return splits;
 		}
 
-		public RecordReader<Text, NullWritable> createRecordReader(InputSplit split, TaskAttemptContext context)
+		public RecordReader<Writable, NullWritable> createRecordReader(InputSplit split, TaskAttemptContext context)
 			throws IOException, InterruptedException {
 
 			RandomPValueRecordReader rr = new RandomPValueRecordReader();
@@ -132,17 +188,29 @@ public class RandomDataGenerationDriver extends Configured implements Tool {
 		public static void setNumRecordPerTask(Job job, int i) {
 			job.getConfiguration().setInt(NUM_RECORDS_PER_TASK, i);
 		}
+
+		public static boolean isGammaSampler(Configuration conf) {
+			return GAMMA_SAMPLER.equals(conf.get(SAMPLER, INVERSE_SAMPLER));
+		}
 	}
 
-	public static class RandomPValueRecordReader extends RecordReader<Text, NullWritable> {
+	public static class RandomPValueRecordReader extends RecordReader<Writable, NullWritable> {
 
 		private int numRecordsToCreate = 0;
 		private int createdRecords = 0;
 		private Text key = new Text();
+		// the record the xml key is written from, or the key itself when writing binary records
+		private PValueRecord record = new PValueRecord();
+		private boolean binary = false;
+		// reused for every xml row
+		private byte[] xmlBuffer = new byte[PValueRecord.MAX_XML_LENGTH];
 		private NullWritable value = NullWritable.get();
 		private Random rndm = new Random();
 		private double pi0 = 1.0; // proportion of false hypotheses
 		private BetaDistribution TrueHypotheses = new BetaDistribution(1.0, 1.0);
+		// only set with the gamma sampler, which draws everything from splitRandom instead of rndm
+		private SplittableRandom splitRandom = null;
+		private BetaSampler betaSampler = null;
 
 		public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
 
@@ -151,14 +219,36 @@ public class RandomDataGenerationDriver extends Configured implements Tool {
 			// proportion of false hypotheses (always uniformly distributed due to definition of p-value)
 			this.pi0 = Double.parseDouble(context.getConfiguration().get("pi0"));
 			// distribution of true hypotheses
-			this.TrueHypotheses = new BetaDistribution(Double.parseDouble(context.getConfiguration().get("alpha")),
-					Double.parseDouble(context.getConfiguration().get("beta")));
+			double alpha = Double.parseDouble(context.getConfiguration().get("alpha"));
+			double beta = Double.parseDouble(context.getConfiguration().get("beta"));
+			this.binary = PValueRecord.isBinaryFormat(context.getConfiguration());
+			int index = ((FakeInputSplit) split).getIndex();
+			String seed = context.getConfiguration().get(RandomPValueInputFormat.SEED);
+
+			if (RandomPValueInputFormat.isGammaSampler(context.getConfiguration())) {
+				// the index + 1'th split of the job seed's generator, the same for this split on every run with the seed
+				SplittableRandom jobRandom = (seed != null) ? new SplittableRandom(Long.parseLong(seed)) : new SplittableRandom();
+				for (int i = 0; i <= index; i++) {
+					this.splitRandom = jobRandom.split();
+				}
+				this.betaSampler = new BetaSampler(this.splitRandom, alpha, beta);
+				return;
+			}
+
+			this.TrueHypotheses = new BetaDistribution(alpha, beta);
+			if (seed != null) {
+				// offset by the index so the splits don't all write the same p-values
+				this.rndm = new Random(Long.parseLong(seed) + index);
+			}
 		}
 
 		// method actually calculates the p-values
 		private double calculateP(int trueFinding) {
 
 			// false hypotheses are uniformly distributed and true findings follow the beta distribution for p-values
+			if (betaSampler != null) {
+				return (trueFinding == 0) ? splitRandom.nextDouble() : betaSampler.sample();
+			}
 			if (trueFinding == 0) {
 				return rndm.nextDouble();
 			} else {
@@ -171,16 +261,21 @@ public class RandomDataGenerationDriver extends Configured implements Tool {
 			// keep writing p-value rows if not enough records yet
 			if (createdRecords < numRecordsToCreate) {
 				// this is a junk label key for the hypothesis
-				int rowId = Math.abs(rndm.nextInt()) % 1000000000;
+				int rowId = (splitRandom != null) ? splitRandom.nextInt(1000000000) : Math.abs(rndm.nextInt()) % 1000000000;
 				
 				// determine stochastically if this is a true or false hypothesis based on the pi0 from the provided BUM model
-				int trueFinding = (rndm.nextDouble() >= this.pi0) ? 1 : 0; 
+				double u = (splitRandom != null) ? splitRandom.nextDouble() : rndm.nextDouble();
+				int trueFinding = (u >= this.pi0) ? 1 : 0; 
 				// calculate a random p-value based on whether it is a true or false hypothesis
 				double p = calculateP(trueFinding);
 
-				// write the label, p-value, and a 1 for true difference or 0 for false difference
-				String randomRecord = "<row Id=\"" + rowId + "\" p=\"" + p + "\" t=\"" + trueFinding + "\" />";
-				key.set(randomRecord);
+				record.setId(rowId);
+				record.setPValue(p);
+				record.setTrueFinding(trueFinding == 1);
+				if (!binary) {
+					// write the label, p-value, and a 1 for true difference or 0 for false difference
+					key.set(xmlBuffer, 0, record.toXml(xmlBuffer));
+				}
 				createdRecords++; 
 				return true;
 			} else {
@@ -188,8 +283,8 @@ public class RandomDataGenerationDriver extends Configured implements Tool {
 			}
 		}
 
-		public Text getCurrentKey() throws IOException, InterruptedException {	
-			return key; 
+		public Writable getCurrentKey() throws IOException, InterruptedException {	
+			return binary ? record : key; 
 		}
 
 		public NullWritable getCurrentValue() throws IOException, InterruptedException {
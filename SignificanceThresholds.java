@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+/**
+ * Sorts the significant findings of several q-value cutoffs at once, so reporting at e.g. q = 0.01, 0.05 and 0.1 reads
+ * the input a single time.
+ *
+ * Each finding goes only to the tightest threshold it passes, in the threshold's own named output under a q[cutoff]
+ * directory of the job output (q0.01/part-m-*, q0.05/part-m-* and so on), and is counted in that threshold's counter
+ * of the THRESHOLD_COUNTERS group.  The findings significant at a looser cutoff are those of its directory and of all
+ * of the tighter ones together.
+ *
+ * @author Will Findley
+ */
+public class SignificanceThresholds {
+
+	// the counter group of the findings routed to each threshold
+	public static final String THRESHOLD_COUNTERS = "Significance thresholds";
+	// the prefix of each threshold's named output, followed by its rank from the tightest
+	public static final String THRESHOLD_OUTPUT = "threshold";
+
+	private final MultipleOutputs<?, ?> outputs;
+	private final double[] pValueCutoffs;	// ascending, one per q-value cutoff
+	private final String[] outputNames;
+	private final String[] outputPaths;
+	private final Counter[] routed;
+
+	/**
+	 * @param qValueCutoffs the comma separated q-value cutoffs, e.g. "0.01,0.05,0.1"
+	 * @return the distinct cutoffs, ascending
+	 */
+	public static double[] parseQValueCutoffs(String qValueCutoffs) {
+
+		String[] parts = qValueCutoffs.split(",");
+		double[] cutoffs = new double[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			cutoffs[i] = Double.parseDouble(parts[i].trim());
+			if (!(cutoffs[i] > 0 && cutoffs[i] <= 1)) {
+				throw new IllegalArgumentException("a q-value cutoff must be in (0, 1]: " + parts[i]);
+			}
+		}
+		Arrays.sort(cutoffs);
+		int numDistinct = 0;
+		for (int i = 0; i < cutoffs.length; i++) {
+			if (i == 0 || cutoffs[i] != cutoffs[i - 1]) cutoffs[numDistinct++] = cutoffs[i];
+		}
+		return Arrays.copyOf(cutoffs, numDistinct);
+	}
+
+	/**
+	 * Adds one named output per q-value cutoff, holding rows of the given class.
+	 */
+	public static void addThresholdOutputs(Job job, int numThresholds, Class<? extends Writable> rowClass) {
+
+		for (int i = 0; i < numThresholds; i++) {
+			MultipleOutputs.addNamedOutput(job, THRESHOLD_OUTPUT + i, TextOutputFormat.class, NullWritable.class, rowClass);
+		}
+	}
+
+	/**
+	 * @param qValueCutoffs the q-value cutoffs, ascending, as parseQValueCutoffs gives them
+	 * @param pValueCutoffs the p-value cutoff of each of them
+	 */
+	public <KEYOUT, VALUEOUT> SignificanceThresholds(TaskInputOutputContext<?, ?, KEYOUT, VALUEOUT> context,
+			double[] qValueCutoffs, double[] pValueCutoffs) {
+
+		this.outputs = new MultipleOutputs<KEYOUT, VALUEOUT>(context);
+		this.pValueCutoffs = pValueCutoffs;
+		this.outputNames = new String[qValueCutoffs.length];
+		this.outputPaths = new String[qValueCutoffs.length];
+		this.routed = new Counter[qValueCutoffs.length];
+		for (int i = 0; i < qValueCutoffs.length; i++) {
+			outputNames[i] = THRESHOLD_OUTPUT + i;
+			outputPaths[i] = "q" + qValueCutoffs[i] + "/part";
+			routed[i] = context.getCounter(THRESHOLD_COUNTERS, "q <= " + qValueCutoffs[i]);
+		}
+	}
+
+	/**
+	 * Writes the finding to the tightest threshold its p-value passes.
+	 *
+	 * @return false if it passes none of them
+	 */
+	public boolean route(double pValue, Writable finding) throws IOException, InterruptedException {
+
+		for (int i = 0; i < pValueCutoffs.length; i++) {
+			if (pValue <= pValueCutoffs[i]) {
+				routed[i].increment(1);
+				outputs.write(outputNames[i], NullWritable.get(), finding, outputPaths[i]);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void close() throws IOException, InterruptedException {
+
+		outputs.close();
+	}
+}
@@ -0,0 +1,105 @@
+import java.util.Random;
+
+/**
+ * Fits the BUM coefficients by stochastic gradient descent on the squared CDF error, taking one momentum step
+ * per p-value and annealing the learning rate every time an epoch moves further than the one before.
+ *
+ * Weighted rows scale their step by their weight relative to the mean row weight.
+ *
+ * @author Will Findley
+ */
+public class StochasticGradientBumFitter implements BumFitter {
+
+	private final Random rndm;
+	// evaluates the BUM CDF and its exact coefficient gradient without allocating per p-value
+	private final BumModel bumModel = new BumModel();
+	private final double[] cdfGradient = new double[3];
+
+	public StochasticGradientBumFitter() {
+
+		this(new Random());
+	}
+
+	/**
+	 * A fitter whose starting points and shuffles all come from rndm, e.g. a seeded Random for repeatable fits.
+	 */
+	public StochasticGradientBumFitter(Random rndm) {
+
+		this.rndm = rndm;
+	}
+
+	public double[] startingCoefficients(EmpiricalCdf ecdf) {
+
+		return BumFitters.randomStartingCoefficients(rndm);
+	}
+
+	public BumFit fit(EmpiricalCdf ecdf, double[] coeffs) {
+
+		return fit(ecdf, coeffs, FitBudget.unlimited());
+	}
+
+	public BumFit fit(EmpiricalCdf ecdf, double[] coeffs, FitBudget budget) {
+
+		// start off with high learning steps and rates
+		double avDelta = 1;
+		double oldDelta = avDelta;
+		double learningRate = 2;
+
+		int epochs = 0;
+		do {
+			oldDelta = avDelta;
+			// coeffs is implicitly returned because it is modified at the reference position
+			avDelta = stochasticGradientDescent(ecdf, coeffs, BumFitters.TOLERANCE, learningRate);
+			if (oldDelta < avDelta) learningRate *= 0.9;  // anneal the learning rate every time a local minimum is passed
+			epochs++;
+		} while (avDelta >= BumFitters.TOLERANCE && budget.allows(epochs, coeffs));  // once the tolerance is met, exit to return the coefficients
+
+		return new BumFit(coeffs, epochs, avDelta, avDelta < BumFitters.TOLERANCE, budget.isTimedOut());
+	}
+
+	// one epoch over the empirical CDF, package-private for the benchmarks
+	double stochasticGradientDescent(EmpiricalCdf ecdf, double[] coeffs, double coeffMargin, double learningRate) {
+
+		// shuffling is necessary for the stochastic presentation of p-values for the gradient descent (no batching)
+		ecdf.shuffle(rndm);
+		double[] pValues = ecdf.getPValues();
+		double[] cdfValues = ecdf.getCdfValues();
+		double[] weights = ecdf.getWeights();
+		double meanWeight = 1;
+		if (weights != null) {
+			meanWeight = 0;
+			for (double weight : weights) {
+				meanWeight += weight;
+			}
+			meanWeight /= weights.length;
+		}
+
+		// initial overall average parameter movement
+		double avDelta = 0;
+		// this momentum is always used (average of previous and current delta change for next step)
+		double momentum = 0.5;
+		// initial amounts of parameter movement
+		double deltaPi0 = 0;
+		double deltaAlpha = 0;
+		double deltaBeta = 0;
+		// takes a gradient descent step for each p-value
+		for (int i = 0; i < pValues.length; i++) {
+
+			double rate = (weights == null) ? learningRate : learningRate * weights[i] / meanWeight;
+
+			// the exact gradient of the squared CDF error for a single p-value measurement, d(data - F)^2 = -2 (data - F) dF
+			double residual = cdfValues[i] - bumModel.cdfWithGradient(pValues[i], coeffs, cdfGradient);
+			deltaPi0 = momentum * deltaPi0 + (1-momentum) * rate * -2 * residual * cdfGradient[0];
+			deltaAlpha = momentum * deltaAlpha + (1-momentum) * rate * -2 * residual * cdfGradient[1];
+			deltaBeta = momentum * deltaBeta + (1-momentum) * rate * -2 * residual * cdfGradient[2];
+			avDelta = (avDelta + Math.sqrt(Math.pow(deltaPi0,2) + Math.pow(deltaAlpha,2) + Math.pow(deltaBeta,2)))/2;
+
+			// rectifies to coeffcients to ensure that pi0 and alpha are always between 0 and 1 and beta is always greater than 1
+			coeffs[0] -= deltaPi0;
+			coeffs[1] -= deltaAlpha;
+			coeffs[2] -= deltaBeta;
+			BumFitters.clampCoefficients(coeffs, coeffMargin);
+		}
+		return avDelta;
+	}
+}
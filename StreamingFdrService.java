@@ -0,0 +1,414 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Keeps a live BUM model and significance cutoff over a continuous stream of p-values, for pipelines that need the
+ * current threshold within seconds rather than after a batch job.  It runs on its own, fed from stdin or a port on the
+ * loopback interface, or embedded, fed through add.
+ *
+ * The p-values go into a sliding window of WINDOW_BUCKETS histograms with the bins of PValueHistogram, covering the
+ * last WINDOW_SECONDS between them, so memory stays the same however long the stream runs.  Adding a p-value is one
+ * atomic increment of a bin of the current bucket, with no locks.  A background thread moves the window on a bucket at
+ * a time, dropping the oldest, and every REFIT_MILLIS refits the model on the merged window, starting from the last
+ * coefficients.  Each fit is published as an immutable Model, holding its p-value cutoff and q-value table, which any
+ * number of threads read without locks.
+ *
+ * Over a socket or stdin, every line is either a p-value, as a bare number or an xml row, or one of the queries
+ * "cutoff", "model" and "q [p-value]", which are answered with one line each.
+ *
+ * @author Will Findley
+ */
+public class StreamingFdrService extends Configured implements Tool {
+
+	// configuration key for the seconds of p-values the window holds
+	public static final String WINDOW_SECONDS = "streamWindowSeconds";
+	public static final int DEFAULT_WINDOW_SECONDS = 600;
+	// configuration key for the number of buckets the window moves on by
+	public static final String WINDOW_BUCKETS = "streamWindowBuckets";
+	public static final int DEFAULT_WINDOW_BUCKETS = 10;
+	// configuration key for the milliseconds between refits
+	public static final String REFIT_MILLIS = "streamRefitMillis";
+	public static final long DEFAULT_REFIT_MILLIS = 1000;
+	// configuration key for the fewest p-values in the window worth fitting
+	public static final String MIN_P_VALUES = "streamMinPValues";
+	public static final int DEFAULT_MIN_P_VALUES = 1000;
+
+	private static final Log LOG = LogFactory.getLog(StreamingFdrService.class);
+
+	// the bin layout of every bucket, never added to itself
+	private PValueHistogram layout;
+	private AtomicLongArray[] buckets;
+	private volatile int current = 0;
+	private double significanceQValueCutoff;
+	private int minPValues;
+	private BumFitter fitter;
+	private volatile Model model = null;
+	private ScheduledExecutorService scheduler;
+	private ServerSocket serverSocket;
+
+	/**
+	 * One fit of the window, never changed once published.
+	 */
+	public static class Model {
+
+		private final double pi0;
+		private final double alpha;
+		private final double beta;
+		private final long count;
+		private final double significancePValueCutoff;
+		private final QValueTable table;
+		private final long fittedAtMillis;
+
+		Model(double[] coeffs, long count, double significanceQValueCutoff) {
+
+			this.pi0 = coeffs[0];
+			this.alpha = coeffs[1];
+			this.beta = coeffs[2];
+			this.count = count;
+			this.significancePValueCutoff = MapReduceSignificantFindings.CheckSignificanceMapper.computeSignificancePValueCutoff(
+					pi0, alpha, beta, significanceQValueCutoff);
+			this.table = QValueTable.tabulate(pi0, alpha, beta, QValueTable.DEFAULT_NUM_POINTS);
+			this.fittedAtMillis = System.currentTimeMillis();
+		}
+
+		public double getPi0() {
+
+			return this.pi0;
+		}
+
+		public double getAlpha() {
+
+			return this.alpha;
+		}
+
+		public double getBeta() {
+
+			return this.beta;
+		}
+
+		public long getCount() {
+
+			return this.count;
+		}
+
+		public double getSignificancePValueCutoff() {
+
+			return this.significancePValueCutoff;
+		}
+
+		public double qValue(double p) {
+
+			return table.qValue(p);
+		}
+
+		public double localFdr(double p) {
+
+			return table.localFdr(p);
+		}
+
+		public long getFittedAtMillis() {
+
+			return this.fittedAtMillis;
+		}
+
+		public String toString() {
+
+			return "pi0: " + pi0 + "\t alpha: " + alpha + "\t beta: " + beta + "\t count: " + count +
+					"\t cutoff: " + significancePValueCutoff;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		// pull out the -D settings first so that only the positional args are counted
+		Configuration conf = new Configuration();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+		if (args.length != 2) {
+			System.out.println("\n" +
+					"This program keeps a live BUM model and significance cutoff over a stream of p-values \n" +
+					"Usage is: \n\n" +
+					"hadoop jar [jarFile] StreamingFdrService [args0] [args1] \n\n" +
+					"args0 - false discovery rate cutoff for significance \n" +
+					"args1 - port on the loopback interface to listen on, or - to read stdin and answer on stdout \n\n" +
+					"Every line is a p-value (a number or an xml row) or one of the queries cutoff, model and q [p-value] \n\n" +
+					"-D streamWindowSeconds=[s] seconds of p-values the sliding window holds (default 600) \n" +
+					"-D streamWindowBuckets=[n] buckets the window moves on by (default 10) \n" +
+					"-D streamRefitMillis=[ms] time between refits (default 1000) \n" +
+					"-D streamMinPValues=[n] fewest p-values in the window worth fitting (default 1000) \n" +
+					"-D histogramBins and -D fitOptimizer (default lm) and the other fit settings apply as well \n"
+					);
+			return;
+		}
+		int res = ToolRunner.run(conf, new StreamingFdrService(), args);
+		System.exit(res);
+	}
+
+	public int run(String[] args) throws Exception {
+
+		initialize(this.getConf(), Double.parseDouble(args[0]));
+		start();
+		if ("-".equals(args[1])) {
+			// answer on stdout until stdin runs out, then give the model of everything read
+			PrintStream out = new PrintStream(new BufferedOutputStream(System.out), true, "UTF-8");
+			handle(System.in, out);
+			out.println(refit());
+			close();
+			return 0;
+		}
+		int port = serve(Integer.parseInt(args[1]));
+		System.out.println("Listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port);
+		// the accepting thread keeps the service up until the process is stopped
+		Thread.currentThread().join();
+		return 0;
+	}
+
+	/**
+	 * Sets the service up from the configuration, for embedding; start it to have it refit on its own.
+	 */
+	public void initialize(Configuration conf, double significanceQValueCutoff) {
+
+		setConf(conf);
+		this.significanceQValueCutoff = significanceQValueCutoff;
+		this.layout = new PValueHistogram(conf.getInt(PValueHistogram.NUM_BINS, PValueHistogram.DEFAULT_NUM_BINS));
+		this.buckets = new AtomicLongArray[Math.max(2, conf.getInt(WINDOW_BUCKETS, DEFAULT_WINDOW_BUCKETS))];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new AtomicLongArray(layout.getNumBins());
+		}
+		this.minPValues = conf.getInt(MIN_P_VALUES, DEFAULT_MIN_P_VALUES);
+		this.fitter = BumFitters.create(conf, BumFitters.LEVENBERG_MARQUARDT_OPTIMIZER);
+	}
+
+	/**
+	 * Starts moving the window and refitting in the background.
+	 */
+	public void start() {
+
+		Configuration conf = getConf();
+		long bucketMillis = Math.max(1, 1000L * conf.getInt(WINDOW_SECONDS, DEFAULT_WINDOW_SECONDS) / buckets.length);
+		long refitMillis = conf.getLong(REFIT_MILLIS, DEFAULT_REFIT_MILLIS);
+		scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("fdr-refit"));
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				advanceWindow();
+			}
+		}, bucketMillis, bucketMillis, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refit();
+				} catch (RuntimeException e) {
+					// a bad fit must not stop the schedule, the last good model stays up
+					LOG.warn("Streaming refit failed", e);
+				} catch (Error e) {
+					// this ends the schedule, so say so rather than leave the last model up unannounced
+					LOG.error("Streaming refit failed, no further refits will run", e);
+					throw e;
+				}
+			}
+		}, refitMillis, refitMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a p-value to the current bucket of the window; safe to call from any number of threads.
+	 *
+	 * @return false if p is not a probability and was not counted
+	 */
+	public boolean add(double p) {
+
+		int bin = layout.binOf(p);
+		if (bin < 0) return false;
+		buckets[current].incrementAndGet(bin);
+		return true;
+	}
+
+	/**
+	 * Drops the oldest bucket of the window and makes it the current one.
+	 */
+	void advanceWindow() {
+
+		int next = (current + 1) % buckets.length;
+		// the oldest bucket was last written buckets.length - 1 moves ago, so clearing it races no add
+		AtomicLongArray oldest = buckets[next];
+		for (int i = 0; i < oldest.length(); i++) {
+			oldest.set(i, 0);
+		}
+		current = next;
+	}
+
+	/**
+	 * Fits the model on the window as it is now, and publishes it if the window holds at least MIN_P_VALUES.
+	 *
+	 * @return the model now being served, or null before the first fit
+	 */
+	public synchronized Model refit() {
+
+		PValueHistogram window = new PValueHistogram(layout.getNumBins());
+		for (AtomicLongArray bucket : buckets) {
+			for (int bin = 0; bin < bucket.length(); bin++) {
+				long count = bucket.get(bin);
+				if (count > 0) window.addCount(bin, count);
+			}
+		}
+		if (window.getTotal() < minPValues) return model;
+
+		EmpiricalCdf ecdf = window.toEmpiricalCdf();
+		Model last = model;
+		double[] coeffs = (last != null) ? new double[] {last.getPi0(), last.getAlpha(), last.getBeta()} : fitter.startingCoefficients(ecdf);
+		BumFit fit = fitter.fit(ecdf, coeffs);
+		model = new Model(fit.getCoeffs(), window.getTotal(), significanceQValueCutoff);
+		return model;
+	}
+
+	/**
+	 * @return the latest model, or null before the first fit
+	 */
+	public Model getModel() {
+
+		return model;
+	}
+
+	/**
+	 * @return the current p-value cutoff, 0 (nothing significant) before the first fit
+	 */
+	public double getSignificancePValueCutoff() {
+
+		Model m = model;
+		return (m == null) ? 0 : m.getSignificancePValueCutoff();
+	}
+
+	/**
+	 * @return the q-value of p under the current model, 1 before the first fit
+	 */
+	public double qValue(double p) {
+
+		Model m = model;
+		return (m == null) ? 1 : m.qValue(p);
+	}
+
+	/**
+	 * Listens on the port (0 for any free one) of the loopback interface, each connection on a thread of its own.
+	 *
+	 * @return the port listened on
+	 */
+	public int serve(int port) throws IOException {
+
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = daemonThreads("fdr-accept").newThread(new Runnable() {
+			public void run() {
+				while (!serverSocket.isClosed()) {
+					final Socket socket;
+					try {
+						socket = serverSocket.accept();
+					} catch (IOException e) {
+						// closed
+						return;
+					}
+					daemonThreads("fdr-connection").newThread(new Runnable() {
+						public void run() {
+							try {
+								handle(socket.getInputStream(), new PrintStream(socket.getOutputStream(), true, "UTF-8"));
+							} catch (IOException e) {
+								// the client went away
+							} finally {
+								try {
+									socket.close();
+								} catch (IOException e) {
+									// nothing left to do
+								}
+							}
+						}
+					}).start();
+				}
+			}
+		});
+		acceptor.start();
+		return serverSocket.getLocalPort();
+	}
+
+	public void close() throws IOException {
+
+		if (scheduler != null) scheduler.shutdownNow();
+		if (serverSocket != null) serverSocket.close();
+		BumFitters.close(fitter);
+	}
+
+	/**
+	 * Reads lines until the end of the stream, adding the p-values and answering the queries on out.
+	 */
+	void handle(InputStream rawIn, PrintStream out) throws IOException {
+
+		InputStream in = new BufferedInputStream(rawIn);
+		byte[] line = new byte[256];
+		while (true) {
+			int length = 0;
+			int b;
+			while ((b = in.read()) >= 0 && b != '\n') {
+				if (length == line.length) line = Arrays.copyOf(line, 2 * length);
+				line[length++] = (byte) b;
+			}
+			if (length > 0 && line[length - 1] == '\r') length--;
+			if (length > 0) answer(line, length, out);
+			if (b < 0) return;
+		}
+	}
+
+	private void answer(byte[] line, int length, PrintStream out) {
+
+		byte first = line[0];
+		if (first == '<') {
+			add(PValueParser.parsePValue(line, 0, length));
+		} else if ((first >= '0' && first <= '9') || first == '.') {
+			add(PValueParser.parseDouble(line, 0, length));
+		} else {
+			String query = new String(line, 0, length, StandardCharsets.UTF_8).trim();
+			Model m = model;
+			if (query.equals("cutoff")) {
+				out.println(getSignificancePValueCutoff());
+			} else if (query.equals("model")) {
+				out.println(m == null ? "no model yet" : m.toString());
+			} else if (query.startsWith("q ")) {
+				try {
+					double p = Double.parseDouble(query.substring(2).trim());
+					out.println(m == null ? "1.0\t1.0" : m.qValue(p) + "\t" + m.localFdr(p));
+				} catch (NumberFormatException e) {
+					out.println("not a p-value: " + query.substring(2).trim());
+				}
+			} else {
+				out.println("unknown query: " + query);
+			}
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+
+		return new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
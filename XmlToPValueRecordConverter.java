@@ -0,0 +1,77 @@
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * A map-only job that rewrites p-value xml rows as fixed-width binary PValueRecords, so that existing data sets can be
+ * read by the analysis jobs with -D pValueFormat=binary.  Rows without a numeric Id or a p-value between 0 and 1 are
+ * dropped and counted as MALFORMED_ROWS.
+ *
+ * @author Will Findley
+ */
+public class XmlToPValueRecordConverter extends Configured implements Tool {
+
+	public static void main(String[] args) throws Exception {
+
+		Configuration conf = new Configuration();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+		if (args.length != 2) {
+			System.out.println("\n" +
+					"This program converts p-value xml rows to fixed-width binary p-value records \n" +
+					"Usage is: \n\n" +
+					"hadoop jar [jarFile] XmlToPValueRecordConverter [args0] [args1] \n\n" +
+					"args0 - input path of p-value xml \n" +
+					"args1 - output path of binary p-value records \n"
+					);
+			return;
+		}
+		int res = ToolRunner.run(conf, new XmlToPValueRecordConverter(), args);
+		System.exit(res);
+	}
+
+	public int run(String[] args) throws Exception {
+
+		Job job = Job.getInstance(this.getConf(), "");
+		job.setJarByClass(XmlToPValueRecordConverter.class);
+
+		job.setJobName("convertPValues");
+
+		job.setMapperClass(ConversionMapper.class);
+		job.setNumReduceTasks(0);
+
+		job.setOutputFormatClass(PValueRecordOutputFormat.class);
+		job.setOutputKeyClass(PValueRecord.class);
+		job.setOutputValueClass(NullWritable.class);
+
+		FileInputFormat.addInputPath(job, new Path(args[0]));
+		FileOutputFormat.setOutputPath(job, new Path(args[1]));
+
+		return job.waitForCompletion(true) ? 0 : 1;
+	}
+
+	public static class ConversionMapper extends Mapper<Object, Text, PValueRecord, NullWritable> {
+
+		private final PValueRecord record = new PValueRecord();
+
+		public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+
+			if (PValueParser.parseRecord(value, record)) {
+				context.write(record, NullWritable.get());
+			} else {
+				context.getCounter(FDRCounters.MALFORMED_ROWS).increment(1);
+			}
+		}
+	}
+}
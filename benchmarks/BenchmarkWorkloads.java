@@ -0,0 +1,369 @@
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.math3.distribution.BetaDistribution;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+
+import benchmarks.Workload;
+
+/**
+ * The fitting and filtering hot paths as benchmark workloads, run by the JMH benchmarks in the benchmarks package.
+ * All data is drawn from a fixed seed, the same way RandomDataGenerationDriver draws it, so that every run and every
+ * release measures the same work.
+ *
+ * @author Will Findley
+ */
+public class BenchmarkWorkloads {
+
+	public static final long SEED = 20150626L;
+	// the number of p-values or rows the per-value workloads go through in one run
+	public static final int BATCH = 1024;
+
+	private BenchmarkWorkloads() {
+	}
+
+	public static double[] samplePValues(int n, double pi0, double alpha, double beta, long seed) {
+
+		Random rndm = new Random(seed);
+		BetaDistribution trueHypotheses = new BetaDistribution(alpha, beta);
+		double[] pValues = new double[n];
+		for (int i = 0; i < n; i++) {
+			pValues[i] = (rndm.nextDouble() >= pi0) ? trueHypotheses.inverseCumulativeProbability(rndm.nextDouble()) : rndm.nextDouble();
+		}
+		return pValues;
+	}
+
+	/**
+	 * @return the p-values as the generator's xml rows
+	 */
+	public static Text[] xmlRows(double[] pValues, long seed) {
+
+		Random rndm = new Random(seed);
+		Text[] rows = new Text[pValues.length];
+		for (int i = 0; i < pValues.length; i++) {
+			rows[i] = new Text("<row Id=\"" + (Math.abs(rndm.nextInt()) % 1000000000) + "\" p=\"" + pValues[i] + "\" t=\"" + rndm.nextInt(2) + "\" />");
+		}
+		return rows;
+	}
+
+	/**
+	 * The parameters every BUM workload takes, with a batch of p-values drawn from them.
+	 */
+	private abstract static class BumWorkload implements Workload {
+
+		protected double pi0;
+		protected double alpha;
+		protected double beta;
+		protected double[] pValues;
+
+		public void setUp(Map<String, String> params) throws Exception {
+
+			pi0 = Double.parseDouble(params.get("pi0"));
+			alpha = Double.parseDouble(params.get("alpha"));
+			beta = Double.parseDouble(params.get("beta"));
+			String size = params.get("numSamplesForFit");
+			pValues = samplePValues(size == null ? BATCH : Integer.parseInt(size), pi0, alpha, beta, SEED);
+		}
+	}
+
+	public static class Cdf extends BumWorkload {
+
+		private final BumModel bumModel = new BumModel();
+
+		public double run() {
+
+			double sum = 0;
+			for (double p : pValues) {
+				sum += bumModel.cdf(p, pi0, alpha, beta);
+			}
+			return sum;
+		}
+	}
+
+	public static class CdfWithGradient extends BumWorkload {
+
+		private final BumModel bumModel = new BumModel();
+		private final double[] gradient = new double[3];
+		private double[] coeffs;
+
+		public void setUp(Map<String, String> params) throws Exception {
+
+			super.setUp(params);
+			coeffs = new double[] {pi0, alpha, beta};
+		}
+
+		public double run() {
+
+			double sum = 0;
+			for (double p : pValues) {
+				sum += bumModel.cdfWithGradient(p, coeffs, gradient) + gradient[2];
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * The mapper's whole block fit with the optimizer parameter's fitter, from a fresh copy of the same p-values, on
+	 * every p-value or on the quantileKnots parameter's number of knots.
+	 */
+	public static class FitBlock extends BumWorkload {
+
+		private String optimizer;
+		private int numKnots;
+		private Configuration conf;
+		private double[] block;
+		private double[] cdfValues;
+
+		public void setUp(Map<String, String> params) throws Exception {
+
+			super.setUp(params);
+			optimizer = params.get("optimizer");
+			numKnots = Integer.parseInt(params.get("quantileKnots"));
+			conf = new Configuration(false);
+			block = new double[pValues.length];
+			cdfValues = new double[pValues.length];
+		}
+
+		public double run() {
+
+			// the stochastic fitter starts from the same seed every time too
+			BumFitter fitter = BumFitters.SGD_OPTIMIZER.equals(optimizer)
+					? new StochasticGradientBumFitter(new Random(SEED))
+					: BumFitters.create(conf, optimizer);
+			System.arraycopy(pValues, 0, block, 0, pValues.length);
+			double[] coeffs = MapReduceCDFFalseDiscoveryRate.FDRCalculationMapping.fitBlock(fitter, block, cdfValues, numKnots, null).getCoeffs();
+			return coeffs[0] + coeffs[1] + coeffs[2];
+		}
+	}
+
+	/**
+	 * One stochastic gradient descent epoch over the empirical CDF, from the true coefficients.
+	 */
+	public static class StochasticGradientDescentEpoch extends BumWorkload {
+
+		private EmpiricalCdf ecdf;
+
+		public void setUp(Map<String, String> params) throws Exception {
+
+			super.setUp(params);
+			ecdf = EmpiricalCdf.fromPValues(pValues.clone());
+		}
+
+		public double run() {
+
+			StochasticGradientBumFitter fitter = new StochasticGradientBumFitter(new Random(SEED));
+			return fitter.stochasticGradientDescent(ecdf, new double[] {pi0, alpha, beta}, BumFitters.TOLERANCE, 2);
+		}
+	}
+
+	public static class FromPValues extends BumWorkload {
+
+		private double[] block;
+
+		public void setUp(Map<String, String> params) throws Exception {
+
+			super.setUp(params);
+			block = new double[pValues.length];
+		}
+
+		public double run() {
+
+			System.arraycopy(pValues, 0, block, 0, pValues.length);
+			return EmpiricalCdf.fromPValues(block).getPValues()[0];
+		}
+	}
+
+	public static class Shuffle extends BumWorkload {
+
+		private EmpiricalCdf ecdf;
+		private Random rndm;
+
+		public void setUp(Map<String, String> params) throws Exception {
+
+			super.setUp(params);
+			ecdf = EmpiricalCdf.fromPValues(pValues.clone());
+			rndm = new Random(SEED);
+		}
+
+		public double run() {
+
+			ecdf.shuffle(rndm);
+			return ecdf.getPValues()[0];
+		}
+	}
+
+	/**
+	 * A batch of the generator's xml rows, with the same rows as binary records.
+	 */
+	private abstract static class RowWorkload extends BumWorkload {
+
+		protected Text[] rows;
+		protected byte[] records;
+		protected final PValueRecord record = new PValueRecord();
+
+		public void setUp(Map<String, String> params) throws Exception {
+
+			super.setUp(params);
+			rows = xmlRows(pValues, SEED);
+			records = new byte[rows.length * PValueRecord.RECORD_SIZE];
+			for (int i = 0; i < rows.length; i++) {
+				PValueParser.parseRecord(rows[i], record);
+				record.encode(records, i * PValueRecord.RECORD_SIZE);
+			}
+		}
+	}
+
+	/**
+	 * The String-based transformXmlToPValues both mappers carried before PValueParser, as the baseline it replaced.
+	 */
+	public static class StringParse extends RowWorkload {
+
+		private static double transformXmlToPValues(String xml) {
+
+			String startDelim = "p=\"";
+			String stopDelim = "\" t=";
+			int startIndex = xml.indexOf(startDelim) + startDelim.length();
+			int stopIndex = xml.indexOf(stopDelim, startIndex);
+			return Double.parseDouble(xml.substring(startIndex, stopIndex));
+		}
+
+		public double run() {
+
+			double sum = 0;
+			for (Text row : rows) {
+				sum += transformXmlToPValues(row.toString());
+			}
+			return sum;
+		}
+	}
+
+	public static class ParsePValue extends RowWorkload {
+
+		public double run() {
+
+			double sum = 0;
+			for (Text row : rows) {
+				sum += PValueParser.parsePValue(row);
+			}
+			return sum;
+		}
+	}
+
+	public static class ParseRecord extends RowWorkload {
+
+		public double run() {
+
+			double sum = 0;
+			for (Text row : rows) {
+				PValueParser.parseRecord(row, record);
+				sum += record.getId();
+			}
+			return sum;
+		}
+	}
+
+	public static class DecodeRecord extends RowWorkload {
+
+		public double run() {
+
+			double sum = 0;
+			for (int i = 0; i < rows.length; i++) {
+				record.decode(records, i * PValueRecord.RECORD_SIZE);
+				sum += record.getPValue();
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * The significance mappers' search for the p-value cutoff.
+	 */
+	public static class FindSignificancePValueCutoff extends BumWorkload {
+
+		private double significanceQValueCutoff;
+
+		public void setUp(Map<String, String> params) throws Exception {
+
+			super.setUp(params);
+			significanceQValueCutoff = Double.parseDouble(params.get("significanceQValueCutoff"));
+		}
+
+		public double run() {
+
+			return MapReduceSignificantFindings.CheckSignificanceMapper.computeSignificancePValueCutoff(pi0, alpha, beta, significanceQValueCutoff);
+		}
+	}
+
+	public static class DetermineQValue extends BumWorkload {
+
+		private BetaDistribution trueDiscoveries;
+
+		public void setUp(Map<String, String> params) throws Exception {
+
+			super.setUp(params);
+			trueDiscoveries = new BetaDistribution(alpha, beta);
+		}
+
+		public double run() {
+
+			double sum = 0;
+			for (double p : pValues) {
+				sum += MapReduceSignificantFindings.CheckSignificanceMapper.determineQValue(pi0, trueDiscoveries, p);
+			}
+			return sum;
+		}
+	}
+
+	public static class TableQValue extends BumWorkload {
+
+		private QValueTable table;
+
+		public void setUp(Map<String, String> params) throws Exception {
+
+			super.setUp(params);
+			table = QValueTable.tabulate(pi0, alpha, beta, QValueTable.DEFAULT_NUM_POINTS);
+		}
+
+		public double run() {
+
+			double sum = 0;
+			for (double p : pValues) {
+				sum += table.qValue(p);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * One row from the generator's record reader, in the format parameter's format, drawn by the sampler parameter's sampler.
+	 */
+	public static class NextKeyValue implements Workload {
+
+		private RandomDataGenerationDriver.RandomPValueRecordReader reader;
+
+		public void setUp(Map<String, String> params) throws Exception {
+
+			Configuration conf = new Configuration(false);
+			// more rows than any run will ask for
+			conf.setInt(RandomDataGenerationDriver.RandomPValueInputFormat.NUM_RECORDS_PER_TASK, Integer.MAX_VALUE);
+			conf.setLong(RandomDataGenerationDriver.RandomPValueInputFormat.SEED, SEED);
+			conf.set(PValueRecord.FORMAT, params.get("format"));
+			conf.set(RandomDataGenerationDriver.RandomPValueInputFormat.SAMPLER, params.get("sampler"));
+			conf.set("pi0", params.get("pi0"));
+			conf.set("alpha", params.get("alpha"));
+			conf.set("beta", params.get("beta"));
+
+			reader = new RandomDataGenerationDriver.RandomPValueRecordReader();
+			reader.initialize(new RandomDataGenerationDriver.FakeInputSplit(), new TaskAttemptContextImpl(conf, new TaskAttemptID()));
+		}
+
+		public double run() throws Exception {
+
+			reader.nextKeyValue();
+			return reader.getProgress();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The BUM model CDF, with and without its coefficient gradient, per p-value.
+ *
+ * @author Will Findley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BumModelBenchmark {
+
+	// the batch size of BenchmarkWorkloads
+	private static final int BATCH = 1024;
+
+	@Param({"0.5", "0.7", "0.9"})
+	public String pi0;
+
+	@Param({"0.1", "0.3", "0.7"})
+	public String alpha;
+
+	@Param({"2", "4", "10"})
+	public String beta;
+
+	private Workload cdf;
+	private Workload cdfWithGradient;
+
+	@Setup
+	public void setup() throws Exception {
+
+		cdf = Workload.Loader.load("Cdf", "pi0", pi0, "alpha", alpha, "beta", beta);
+		cdfWithGradient = Workload.Loader.load("CdfWithGradient", "pi0", pi0, "alpha", alpha, "beta", beta);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public double cdf() throws Exception {
+
+		return cdf.run();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public double cdfWithGradient() throws Exception {
+
+		return cdfWithGradient.run();
+	}
+}
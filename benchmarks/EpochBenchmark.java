@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The work a fit repeats for each block or epoch: building the empirical CDF, shuffling it, and one stochastic
+ * gradient descent epoch over it.
+ *
+ * @author Will Findley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EpochBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	public String numSamplesForFit;
+
+	@Param({"0.5", "0.9"})
+	public String pi0;
+
+	@Param({"0.2", "0.5"})
+	public String alpha;
+
+	@Param({"4"})
+	public String beta;
+
+	private Workload fromPValues;
+	private Workload shuffle;
+	private Workload stochasticGradientDescentEpoch;
+
+	@Setup
+	public void setup() throws Exception {
+
+		String[] params = {"numSamplesForFit", numSamplesForFit, "pi0", pi0, "alpha", alpha, "beta", beta};
+		fromPValues = Workload.Loader.load("FromPValues", params);
+		shuffle = Workload.Loader.load("Shuffle", params);
+		stochasticGradientDescentEpoch = Workload.Loader.load("StochasticGradientDescentEpoch", params);
+	}
+
+	@Benchmark
+	public double fromPValues() throws Exception {
+
+		return fromPValues.run();
+	}
+
+	@Benchmark
+	public double shuffle() throws Exception {
+
+		return shuffle.run();
+	}
+
+	@Benchmark
+	public double stochasticGradientDescentEpoch() throws Exception {
+
+		return stochasticGradientDescentEpoch.run();
+	}
+}
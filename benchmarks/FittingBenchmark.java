@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The mapper's block fit at several numSamplesForFit sizes, with every fitter, on every p-value and on quantile knots.
+ * Each fit starts from a fresh copy of the same seeded p-values, and the stochastic fitter from the same seed.
+ *
+ * @author Will Findley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FittingBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	public String numSamplesForFit;
+
+	@Param({"sgd", "minibatch", "lm", "mle"})
+	public String optimizer;
+
+	@Param({"0", "1000"})
+	public String quantileKnots;
+
+	@Param({"0.5", "0.9"})
+	public String pi0;
+
+	@Param({"0.2", "0.5"})
+	public String alpha;
+
+	@Param({"4"})
+	public String beta;
+
+	private Workload fitBlock;
+
+	@Setup
+	public void setup() throws Exception {
+
+		fitBlock = Workload.Loader.load("FitBlock", "numSamplesForFit", numSamplesForFit, "optimizer", optimizer, "quantileKnots", quantileKnots,
+				"pi0", pi0, "alpha", alpha, "beta", beta);
+	}
+
+	@Benchmark
+	public double fitBlock() throws Exception {
+
+		return fitBlock.run();
+	}
+}
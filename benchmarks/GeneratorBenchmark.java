@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generating one random p-value row with the generator's record reader, per row.
+ *
+ * @author Will Findley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeneratorBenchmark {
+
+	@Param({"xml", "binary"})
+	public String format;
+
+	@Param({"inverse", "gamma"})
+	public String sampler;
+
+	@Param({"0.5", "0.9"})
+	public String pi0;
+
+	@Param({"0.1", "0.3", "0.7"})
+	public String alpha;
+
+	@Param({"2", "4", "10"})
+	public String beta;
+
+	private Workload nextKeyValue;
+
+	@Setup
+	public void setup() throws Exception {
+
+		nextKeyValue = Workload.Loader.load("NextKeyValue", "format", format, "sampler", sampler, "pi0", pi0, "alpha", alpha, "beta", beta);
+	}
+
+	@Benchmark
+	public double nextKeyValue() throws Exception {
+
+		return nextKeyValue.run();
+	}
+}
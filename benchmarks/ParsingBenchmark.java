@@ -0,0 +1,86 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the p-value out of a row, per row: the String-based parsing the mappers used to do, the shared
+ * PValueParser that replaced it, and decoding binary records.
+ *
+ * @author Will Findley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+
+	// the batch size of BenchmarkWorkloads
+	private static final int BATCH = 1024;
+
+	@Param({"0.7"})
+	public String pi0;
+
+	@Param({"0.3"})
+	public String alpha;
+
+	@Param({"4"})
+	public String beta;
+
+	private Workload stringParse;
+	private Workload parsePValue;
+	private Workload parseRecord;
+	private Workload decodeRecord;
+
+	@Setup
+	public void setup() throws Exception {
+
+		String[] params = {"pi0", pi0, "alpha", alpha, "beta", beta};
+		stringParse = Workload.Loader.load("StringParse", params);
+		parsePValue = Workload.Loader.load("ParsePValue", params);
+		parseRecord = Workload.Loader.load("ParseRecord", params);
+		decodeRecord = Workload.Loader.load("DecodeRecord", params);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public double stringParse() throws Exception {
+
+		return stringParse.run();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public double parsePValue() throws Exception {
+
+		return parsePValue.run();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public double parseRecord() throws Exception {
+
+		return parseRecord.run();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public double decodeRecord() throws Exception {
+
+		return decodeRecord.run();
+	}
+}
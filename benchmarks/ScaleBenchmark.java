@@ -0,0 +1,363 @@
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormatCounter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormatCounter;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import org.apache.commons.math3.distribution.BetaDistribution;
+
+/**
+ * End-to-end scale benchmark of the real jobs in Hadoop local mode, for the costs the microbenchmarks leave out:
+ * record readers, serialization, the combiners, the shuffle and output writing.
+ *
+ * For every row count it generates seeded p-values with RandomDataGenerationDriver, fits them with
+ * MapReduceCDFFalseDiscoveryRate and finds the significant ones with MapReduceSignificantFindings, each job with the
+ * -D settings given.  It records each phase's wall time, throughput, garbage collection time and job counters, and
+ * how far the fitted pi0, alpha, beta, p-value cutoff and number of findings are from those of the generating model,
+ * and writes them all to a JSON report, so the reports of two commits can be compared field by field.
+ *
+ * @author Will Findley
+ */
+public class ScaleBenchmark extends Configured implements Tool {
+
+	// job configuration key for the rows each generating map task writes, and so how many map tasks there are
+	public static final String ROWS_PER_TASK = "scaleBenchmarkRowsPerTask";
+	public static final long DEFAULT_ROWS_PER_TASK = 1000000;
+	// job configuration key for a label of the run in the report, e.g. the commit it was built from
+	public static final String LABEL = "scaleBenchmarkLabel";
+	// job configuration key, true to keep each row count's data and outputs instead of deleting them when it is done
+	public static final String KEEP_DATA = "scaleBenchmarkKeepData";
+
+	// the job counters of each phase in the report
+	private static final Enum<?>[] REPORTED_COUNTERS = {
+		TaskCounter.MAP_INPUT_RECORDS, TaskCounter.MAP_OUTPUT_RECORDS, TaskCounter.MAP_OUTPUT_BYTES,
+		TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES, TaskCounter.COMBINE_INPUT_RECORDS, TaskCounter.COMBINE_OUTPUT_RECORDS,
+		TaskCounter.REDUCE_SHUFFLE_BYTES, TaskCounter.SPILLED_RECORDS, TaskCounter.GC_TIME_MILLIS,
+		FileInputFormatCounter.BYTES_READ, FileOutputFormatCounter.BYTES_WRITTEN,
+		FDRCounters.RECORDS_PARSED, FDRCounters.FITS_COMPLETED, FDRCounters.FIT_ITERATIONS, FDRCounters.FITS_NOT_CONVERGED,
+		FDRCounters.ROWS_BELOW_CUTOFF
+	};
+
+	public static void main(String[] args) throws Exception {
+
+		// pull out the -D job settings first so that only the positional args are counted
+		Configuration conf = new Configuration();
+		args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+		if (args.length != 8) {
+			System.out.println("\n" +
+					"This program benchmarks the generating, fitting and significance jobs end to end in Hadoop local mode \n" +
+					"Usage is: \n\n" +
+					"hadoop jar [jarFile] ScaleBenchmark [args0] [args1] [args2] [args3] [args4] [args5] [args6] [args7] \n\n" +
+					"args0 - working directory, emptied of each row count's data once it is done \n" +
+					"args1 - comma separated row counts to run, e.g. 100000,1000000,10000000,100000000 \n" +
+					"args2 - pi0 of the generated p-values \n" +
+					"args3 - alpha of the generated p-values \n" +
+					"args4 - beta of the generated p-values \n" +
+					"args5 - number of p-values for each map's independent BUM fit \n" +
+					"args6 - false discovery rate cutoff for significance \n" +
+					"args7 - path of the JSON report \n\n" +
+					"-D scaleBenchmarkRowsPerTask=[n] rows per generating map task (default 1000000) \n" +
+					"-D scaleBenchmarkLabel=[label] labels the report, e.g. with the commit \n" +
+					"-D scaleBenchmarkKeepData=true keeps every row count's data and outputs \n" +
+					"-D settings of RandomDataGenerationDriver, MapReduceCDFFalseDiscoveryRate and MapReduceSignificantFindings are passed on, \n" +
+					"   and random.generator.seed is 1 unless given, so every run reads the same p-values \n"
+					);
+			return;
+		}
+		int res = ToolRunner.run(conf, new ScaleBenchmark(), args);
+		System.exit(res);
+	}
+
+	public int run(String[] args) throws Exception {
+
+		Configuration conf = this.getConf();
+		// local mode, whatever the site files say, so the numbers do not depend on a cluster
+		conf.set("mapreduce.framework.name", "local");
+		conf.set("fs.defaultFS", "file:///");
+		if (conf.get(RandomDataGenerationDriver.RandomPValueInputFormat.SEED) == null) {
+			conf.setLong(RandomDataGenerationDriver.RandomPValueInputFormat.SEED, 1);
+		}
+		if (MapReduceCDFFalseDiscoveryRate.ITERATIVE_FIT_MODE.equals(conf.get(MapReduceCDFFalseDiscoveryRate.FIT_MODE))) {
+			throw new IllegalArgumentException("the benchmark reads the counters of one fitting job, which " +
+					MapReduceCDFFalseDiscoveryRate.ITERATIVE_FIT_MODE + " mode does not run");
+		}
+
+		Path workDir = new Path(args[0]);
+		double pi0 = Double.parseDouble(args[2]);
+		double alpha = Double.parseDouble(args[3]);
+		double beta = Double.parseDouble(args[4]);
+		double qValueCutoff = Double.parseDouble(args[6]);
+		long rowsPerTask = conf.getLong(ROWS_PER_TASK, DEFAULT_ROWS_PER_TASK);
+		FileSystem fs = workDir.getFileSystem(conf);
+
+		// what a perfect fit would give, to measure the fits against
+		double trueCutoff = MapReduceSignificantFindings.CheckSignificanceMapper.computeSignificancePValueCutoff(pi0, alpha, beta, qValueCutoff);
+		double trueShareBelowCutoff = pi0 * trueCutoff + (1 - pi0) * new BetaDistribution(alpha, beta).cumulativeProbability(trueCutoff);
+
+		JsonWriter report = new JsonWriter();
+		report.beginObject();
+		report.field("label", conf.get(LABEL, ""));
+		report.field("javaVersion", System.getProperty("java.version"));
+		report.field("processors", Runtime.getRuntime().availableProcessors());
+		report.field("maxHeapBytes", Runtime.getRuntime().maxMemory());
+		report.field("pi0", pi0);
+		report.field("alpha", alpha);
+		report.field("beta", beta);
+		report.field("numSamplesForFit", Integer.parseInt(args[5]));
+		report.field("qValueCutoff", qValueCutoff);
+		report.field("fitMode", conf.get(MapReduceCDFFalseDiscoveryRate.FIT_MODE, MapReduceCDFFalseDiscoveryRate.BLOCK_FIT_MODE));
+		report.field("seed", conf.get(RandomDataGenerationDriver.RandomPValueInputFormat.SEED));
+		report.field("rowsPerTask", rowsPerTask);
+		report.field("trueCutoff", trueCutoff);
+		report.beginArray("runs");
+
+		for (String rowCount : args[1].split(",")) {
+			long rows = Long.parseLong(rowCount.trim());
+			int numTasks = (int) Math.max(1, (rows + rowsPerTask - 1) / rowsPerTask);
+			Path runDir = new Path(workDir, "rows-" + rows);
+			Path input = new Path(runDir, "input");
+			Path coefficientsDir = new Path(runDir, FDRPipelineDriver.COEFFICIENTS_DIR);
+			Path significantDir = new Path(runDir, FDRPipelineDriver.SIGNIFICANT_FINDINGS_DIR);
+			fs.delete(runDir, true);
+
+			report.beginObject();
+			report.field("rows", rows);
+			report.beginObject("phases");
+
+			// every task writes the same number of rows, so the count is rounded up to a multiple of the tasks
+			long taskRows = (rows + numTasks - 1) / numTasks;
+			RandomDataGenerationDriver generator = new RandomDataGenerationDriver();
+			String[] generatorArgs = {Integer.toString(numTasks), Long.toString(taskRows), args[2], args[3], args[4], input.toString()};
+			if (!runPhase("generate", generator, generatorArgs, new Configuration(conf), report)) return 1;
+			long generatedRows = taskRows * numTasks;
+
+			MapReduceCDFFalseDiscoveryRate fitter = new MapReduceCDFFalseDiscoveryRate();
+			String[] fitArgs = {input.toString(), coefficientsDir.toString(), args[5]};
+			if (!runPhase("fit", fitter, fitArgs, new Configuration(conf), report)) return 1;
+			Pi0AlphaBetaCountTuple fitted = FDRPipelineDriver.readCoefficients(conf, coefficientsDir);
+
+			// the client computes the cutoff once, as the pipeline does
+			double cutoff = MapReduceSignificantFindings.CheckSignificanceMapper.computeSignificancePValueCutoff(
+					fitted.getPi0(), fitted.getAlpha(), fitted.getBeta(), qValueCutoff);
+			Configuration significanceConf = new Configuration(conf);
+			significanceConf.set(MapReduceSignificantFindings.SIGNIFICANCE_P_VALUE_CUTOFF, Double.toString(cutoff));
+			MapReduceSignificantFindings significance = new MapReduceSignificantFindings();
+			String[] significanceArgs = {input.toString(), significantDir.toString(), Double.toString(fitted.getPi0()),
+					Double.toString(fitted.getAlpha()), Double.toString(fitted.getBeta()), args[6]};
+			if (!runPhase("significance", significance, significanceArgs, significanceConf, report)) return 1;
+			long findings = significance.getJob().getCounters().findCounter(FDRCounters.ROWS_BELOW_CUTOFF).getValue();
+			report.endObject();
+
+			report.field("generatedRows", generatedRows);
+			report.beginObject("fitted");
+			report.field("pi0", fitted.getPi0());
+			report.field("alpha", fitted.getAlpha());
+			report.field("beta", fitted.getBeta());
+			report.field("cutoff", cutoff);
+			report.field("findings", findings);
+			report.endObject();
+			report.beginObject("error");
+			report.field("pi0", fitted.getPi0() - pi0);
+			report.field("alpha", fitted.getAlpha() - alpha);
+			report.field("beta", fitted.getBeta() - beta);
+			report.field("cutoffRelative", (cutoff - trueCutoff) / trueCutoff);
+			// against the findings the generating model expects below its own cutoff
+			double expectedFindings = trueShareBelowCutoff * generatedRows;
+			report.field("findingsRelative", (findings - expectedFindings) / expectedFindings);
+			report.endObject();
+			report.endObject();
+
+			System.out.println("Scale benchmark\t rows: " + generatedRows + "\t" + fitted + "\t cutoff: " + cutoff + " (true " + trueCutoff + ")");
+			if (!conf.getBoolean(KEEP_DATA, false)) fs.delete(runDir, true);
+		}
+
+		report.endArray();
+		report.endObject();
+
+		Path reportPath = new Path(args[7]);
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(reportPath.getFileSystem(conf).create(reportPath, true), StandardCharsets.UTF_8));
+		try {
+			writer.write(report.toString());
+			writer.newLine();
+		} finally {
+			writer.close();
+		}
+		System.out.println("Scale benchmark report written to " + reportPath);
+		return 0;
+	}
+
+	/**
+	 * Runs one job's tool and adds its wall time, this JVM's garbage collection time (the local runner's tasks run in
+	 * it), the rows per second it read and its counters to the report, under the phase's name.
+	 *
+	 * @return true if the job succeeded
+	 */
+	private static boolean runPhase(String phase, Tool tool, String[] args, Configuration conf, JsonWriter report) throws Exception {
+
+		long gcBefore = totalGcMillis();
+		long start = System.nanoTime();
+		int res = ToolRunner.run(conf, tool, args);
+		long wallNanos = System.nanoTime() - start;
+		long gcMillis = totalGcMillis() - gcBefore;
+		if (res != 0) return false;
+
+		Job job = (tool instanceof MapReduceCDFFalseDiscoveryRate) ? ((MapReduceCDFFalseDiscoveryRate) tool).getJob()
+				: (tool instanceof MapReduceSignificantFindings) ? ((MapReduceSignificantFindings) tool).getJob()
+				: ((RandomDataGenerationDriver) tool).getJob();
+		Counters counters = job.getCounters();
+
+		report.beginObject(phase);
+		report.field("wallMillis", wallNanos / 1000000.0);
+		report.field("gcMillis", gcMillis);
+		// the generator's record reader makes up its rows, so its rate is of the rows it wrote
+		report.field("rowsPerSecond", counters.findCounter(TaskCounter.MAP_INPUT_RECORDS).getValue() / (wallNanos / 1e9));
+		report.beginObject("counters");
+		for (Enum<?> name : REPORTED_COUNTERS) {
+			Counter counter = counters.findCounter(name);
+			report.field(name.name(), counter.getValue());
+		}
+		report.endObject();
+		report.endObject();
+		return true;
+	}
+
+	private static long totalGcMillis() {
+
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+
+	/**
+	 * Just enough of a JSON writer for the report: nested objects and arrays of names and numbers or strings, indented
+	 * so that two reports diff line by line.
+	 */
+	static class JsonWriter {
+
+		private final StringBuilder json = new StringBuilder();
+		// whether the innermost open object or array has a member yet, for the commas
+		private final List<Boolean> hasMembers = new ArrayList<Boolean>();
+
+		void beginObject() {
+
+			open(null, '{');
+		}
+
+		void beginObject(String name) {
+
+			open(name, '{');
+		}
+
+		void beginArray(String name) {
+
+			open(name, '[');
+		}
+
+		void endObject() {
+
+			close('}');
+		}
+
+		void endArray() {
+
+			close(']');
+		}
+
+		void field(String name, String value) {
+
+			member(name);
+			quote(value);
+		}
+
+		void field(String name, long value) {
+
+			member(name);
+			json.append(value);
+		}
+
+		void field(String name, double value) {
+
+			member(name);
+			// JSON has no NaN or infinity
+			if (Double.isNaN(value) || Double.isInfinite(value)) {
+				json.append("null");
+			} else {
+				json.append(value);
+			}
+		}
+
+		private void open(String name, char bracket) {
+
+			if (!hasMembers.isEmpty()) member(name);
+			json.append(bracket);
+			hasMembers.add(false);
+		}
+
+		private void close(char bracket) {
+
+			boolean any = hasMembers.remove(hasMembers.size() - 1);
+			if (any) newLine();
+			json.append(bracket);
+		}
+
+		private void member(String name) {
+
+			int last = hasMembers.size() - 1;
+			if (hasMembers.get(last)) json.append(',');
+			hasMembers.set(last, true);
+			newLine();
+			if (name != null) {
+				quote(name);
+				json.append(": ");
+			}
+		}
+
+		private void newLine() {
+
+			json.append('\n');
+			for (int i = 0; i < hasMembers.size(); i++) {
+				json.append("  ");
+			}
+		}
+
+		private void quote(String value) {
+
+			json.append('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\') {
+					json.append('\\').append(c);
+				} else if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+			json.append('"');
+		}
+
+		public String toString() {
+
+			return json.toString();
+		}
+	}
+}
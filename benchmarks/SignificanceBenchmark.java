@@ -0,0 +1,78 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The significance mappers' p-value cutoff search, and per-row q-values computed directly or looked up in a QValueTable.
+ *
+ * @author Will Findley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignificanceBenchmark {
+
+	// the batch size of BenchmarkWorkloads
+	private static final int BATCH = 1024;
+
+	@Param({"0.5", "0.7", "0.9"})
+	public String pi0;
+
+	@Param({"0.1", "0.3", "0.7"})
+	public String alpha;
+
+	@Param({"2", "4", "10"})
+	public String beta;
+
+	@Param({"0.01", "0.05"})
+	public String significanceQValueCutoff;
+
+	private Workload findSignificancePValueCutoff;
+	private Workload determineQValue;
+	private Workload tableQValue;
+
+	@Setup
+	public void setup() throws Exception {
+
+		String[] params = {"pi0", pi0, "alpha", alpha, "beta", beta, "significanceQValueCutoff", significanceQValueCutoff};
+		findSignificancePValueCutoff = Workload.Loader.load("FindSignificancePValueCutoff", params);
+		determineQValue = Workload.Loader.load("DetermineQValue", params);
+		tableQValue = Workload.Loader.load("TableQValue", params);
+	}
+
+	@Benchmark
+	public double findSignificancePValueCutoff() throws Exception {
+
+		return findSignificancePValueCutoff.run();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public double determineQValue() throws Exception {
+
+		return determineQValue.run();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public double tableQValue() throws Exception {
+
+		return tableQValue.run();
+	}
+}
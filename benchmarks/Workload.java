@@ -0,0 +1,47 @@
+package benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One measured piece of work.  The FDR classes all live in the default package, which JMH benchmark classes may not,
+ * and classes in a named package can not refer to the default package.  So the benchmarks in this package only
+ * load their workloads by name, from BenchmarkWorkloads in the default package, and call them through this interface.
+ * Each call site only ever sees one workload class, so the JIT inlines the call and it costs nothing measurable.
+ *
+ * @author Will Findley
+ */
+public interface Workload {
+
+	/**
+	 * Prepares the data the workload runs on from the benchmark's parameters.
+	 */
+	void setUp(Map<String, String> params) throws Exception;
+
+	/**
+	 * Does the work once.
+	 *
+	 * @return a value depending on all of the work, so that none of it can be optimized away
+	 */
+	double run() throws Exception;
+
+	public static final class Loader {
+
+		private Loader() {
+		}
+
+		/**
+		 * @return the named nested class of BenchmarkWorkloads, set up with the given name, value, name, value, ... parameters
+		 */
+		public static Workload load(String name, String... params) throws Exception {
+
+			Map<String, String> paramMap = new HashMap<String, String>();
+			for (int i = 0; i + 1 < params.length; i += 2) {
+				paramMap.put(params[i], params[i+1]);
+			}
+			Workload workload = (Workload) Class.forName("BenchmarkWorkloads$" + name).getDeclaredConstructor().newInstance();
+			workload.setUp(paramMap);
+			return workload;
+		}
+	}
+}